@@ -0,0 +1,30 @@
+package ch.uzh.ifi.hase.soprafs21.benchmark;
+
+import ch.uzh.ifi.hase.soprafs21.Application;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Starts the application without the web server, e.g. on its own embedded H2 database with
+ * "--spring.datasource.url=jdbc:h2:mem:<name>", so every benchmark trial works on a fresh table.
+ */
+final class BenchmarkApplication {
+
+    private BenchmarkApplication() {
+    }
+
+    static ConfigurableApplicationContext start(String... arguments) {
+        // as arguments, so they take precedence over application.properties
+        List<String> allArguments = new ArrayList<>(Arrays.asList(arguments));
+        allArguments.add("--spring.main.banner-mode=off");
+        allArguments.add("--logging.level.root=WARN");
+        return new SpringApplicationBuilder(Application.class)
+                .web(WebApplicationType.NONE)
+                .run(allArguments.toArray(new String[0]));
+    }
+}
@@ -0,0 +1,31 @@
+package ch.uzh.ifi.hase.soprafs21.benchmark;
+
+import ch.uzh.ifi.hase.soprafs21.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs21.entity.User;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+final class BenchmarkUsers {
+
+    private BenchmarkUsers() {
+    }
+
+    // users as they come out of the database, without touching it
+    static List<User> create(int count) {
+        List<User> users = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            User user = new User();
+            user.setId((long) i + 1);
+            user.setName("name" + i);
+            user.setUsername("user" + i);
+            user.setToken(UUID.randomUUID().toString());
+            user.setStatus(i % 2 == 0 ? UserStatus.ONLINE : UserStatus.OFFLINE);
+            user.setCreationDate("01/01/2021 00:00:00");
+            user.setBirthday("01.01.2000");
+            users.add(user);
+        }
+        return users;
+    }
+}
@@ -0,0 +1,67 @@
+package ch.uzh.ifi.hase.soprafs21.benchmark;
+
+import ch.uzh.ifi.hase.soprafs21.filter.TokenBucketRateLimiter;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-request overhead of the rate limits of login and registration (see RateLimitFilter): a token from
+ * a bucket of one of KEYS clients, a token from the bucket of a single client that all threads hit at once
+ * (the compare-and-set contended), and all the filter does for a login (the username read from the body,
+ * a token per IP and per username). The limits are high enough that no request is rejected.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RateLimiterBenchmark {
+
+    private static final int KEYS = 10_000;
+
+    private TokenBucketRateLimiter ipLimiter;
+
+    private TokenBucketRateLimiter usernameLimiter;
+
+    private ObjectMapper objectMapper;
+
+    private final String[] ips = new String[KEYS];
+
+    private final byte[][] bodies = new byte[KEYS][];
+
+    @Setup
+    public void setup() {
+        ipLimiter = new TokenBucketRateLimiter(1e9, 1000, 2 * KEYS);
+        usernameLimiter = new TokenBucketRateLimiter(1e9, 1000, 2 * KEYS);
+        objectMapper = new ObjectMapper();
+        for (int i = 0; i < KEYS; i++) {
+            ips[i] = "10.0." + (i / 256) + "." + (i % 256);
+            bodies[i] = ("{\"username\":\"user" + i + "\",\"name\":\"secret" + i + "\"}").getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    @Benchmark
+    public long acquireDistinctKeys() {
+        return ipLimiter.tryAcquire(ips[ThreadLocalRandom.current().nextInt(KEYS)]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long acquireSameKey() {
+        return ipLimiter.tryAcquire(ips[0]);
+    }
+
+    @Benchmark
+    public long loginRequest() throws IOException {
+        int client = ThreadLocalRandom.current().nextInt(KEYS);
+        long wait = ipLimiter.tryAcquire(ips[client]);
+        String username = objectMapper.readTree(bodies[client]).path("username").asText();
+        return wait + usernameLimiter.tryAcquire(username);
+    }
+}
@@ -0,0 +1,89 @@
+package ch.uzh.ifi.hase.soprafs21.benchmark;
+
+import ch.uzh.ifi.hase.soprafs21.constant.UserStatus;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time from start to ready (including the rebuild of the token index and the username filter) with the users kept
+ * in the file-backed database of the durable profile or in the snapshot of the in-memory database.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RestartBenchmark {
+
+    private static final int SEED_BATCH_SIZE = 10_000;
+
+    @Param({"100000", "1000000"})
+    public int users;
+
+    @Param({"durable", "snapshot"})
+    public String store;
+
+    private Path directory;
+
+    private ConfigurableApplicationContext context;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("restart-benchmark");
+        ConfigurableApplicationContext seeding = start();
+        seed(seeding.getBean(JdbcTemplate.class));
+        // the snapshot is written here
+        seeding.close();
+    }
+
+    @Benchmark
+    public ConfigurableApplicationContext restart() {
+        context = start();
+        return context;
+    }
+
+    @TearDown(Level.Iteration)
+    public void stop() {
+        context.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        FileSystemUtils.deleteRecursively(directory);
+    }
+
+    private ConfigurableApplicationContext start() {
+        if ("durable".equals(store)) {
+            return BenchmarkApplication.start("--spring.profiles.active=durable", "--soprafs21.data-dir=" + directory);
+        }
+        return BenchmarkApplication.start("--spring.datasource.url=jdbc:h2:mem:restart-" + users,
+                "--soprafs21.snapshot.enabled=true", "--soprafs21.snapshot.path=" + directory.resolve("users.snapshot"));
+    }
+
+    private void seed(JdbcTemplate jdbcTemplate) {
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        List<Object[]> batch = new ArrayList<>(SEED_BATCH_SIZE);
+        for (int i = 1; i <= users; i++) {
+            UserStatus status = i % 10 == 0 ? UserStatus.ONLINE : UserStatus.OFFLINE;
+            batch.add(new Object[]{(long) i, "name" + i, "user" + i, UUID.randomUUID().toString(), status.ordinal(),
+                    "01/01/2021 00:00:00", now});
+            if (batch.size() == SEED_BATCH_SIZE || i == users) {
+                jdbcTemplate.batchUpdate("insert into USER (ID, NAME, USERNAME, TOKEN, STATUS, CREATION_DATE, CREATED_AT) " +
+                        "values (?, ?, ?, ?, ?, ?, ?)", batch);
+                batch.clear();
+            }
+        }
+    }
+}
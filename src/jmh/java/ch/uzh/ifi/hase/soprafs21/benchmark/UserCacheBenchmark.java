@@ -0,0 +1,84 @@
+package ch.uzh.ifi.hase.soprafs21.benchmark;
+
+import ch.uzh.ifi.hase.soprafs21.constant.UserImportStatus;
+import ch.uzh.ifi.hase.soprafs21.entity.User;
+import ch.uzh.ifi.hase.soprafs21.repository.UserRepository;
+import ch.uzh.ifi.hase.soprafs21.rest.dto.UserImportResultDTO;
+import ch.uzh.ifi.hase.soprafs21.service.UserService;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads of hot users with and without the second-level cache: the profile read (getUser) and the username lookup
+ * of login and registration (findByUsername). The reads go to the first HOT_USERS of the 100000 users,
+ * which fit into the cache (soprafs21.cache.max-entries).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserCacheBenchmark {
+
+    private static final int TABLE_SIZE = 100_000;
+
+    private static final int SEED_CHUNK_SIZE = 10_000;
+
+    private static final int HOT_USERS = 1000;
+
+    @Param({"true", "false"})
+    public boolean secondLevelCache;
+
+    private ConfigurableApplicationContext context;
+
+    private UserService userService;
+
+    private UserRepository userRepository;
+
+    private final long[] ids = new long[HOT_USERS];
+
+    @Setup(Level.Trial)
+    public void setup() {
+        context = BenchmarkApplication.start("--spring.datasource.url=jdbc:h2:mem:user-cache-" + secondLevelCache,
+                "--spring.jpa.properties.hibernate.cache.use_second_level_cache=" + secondLevelCache,
+                "--spring.jpa.properties.hibernate.cache.use_query_cache=" + secondLevelCache);
+        userService = context.getBean(UserService.class);
+        userRepository = context.getBean("userRepository", UserRepository.class);
+
+        for (int seeded = 0; seeded < TABLE_SIZE; seeded += SEED_CHUNK_SIZE) {
+            List<User> users = new ArrayList<>();
+            for (int i = seeded; i < Math.min(TABLE_SIZE, seeded + SEED_CHUNK_SIZE); i++) {
+                User user = new User();
+                user.setUsername("user" + i);
+                user.setName("name" + i);
+                users.add(user);
+            }
+            for (UserImportResultDTO result : userService.importUsers(users)) {
+                if (result.getStatus() == UserImportStatus.CREATED && result.getIndex() < HOT_USERS) {
+                    ids[result.getIndex()] = result.getId();
+                }
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public User getUser() {
+        return userService.getUser(ids[ThreadLocalRandom.current().nextInt(HOT_USERS)]);
+    }
+
+    @Benchmark
+    public User findByUsername() {
+        return userRepository.findByUsername("user" + ThreadLocalRandom.current().nextInt(HOT_USERS));
+    }
+}
@@ -0,0 +1,122 @@
+package ch.uzh.ifi.hase.soprafs21.benchmark;
+
+import ch.uzh.ifi.hase.soprafs21.entity.User;
+import ch.uzh.ifi.hase.soprafs21.rest.dto.UserPostDTO;
+import ch.uzh.ifi.hase.soprafs21.service.UserService;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.HttpStatus;
+import org.springframework.orm.jpa.SharedEntityManagerCreator;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionSystemException;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.server.ResponseStatusException;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.LockModeType;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Concurrent edits of a few hot users: the optimistic edit (read the version, update if it is unchanged, read again
+ * and retry on 412) against a baseline that locks the row (select for update) for the read-modify-write.
+ * With few users most edits collide, with many collisions are rare. The retries of the optimistic edits are counted.
+ * H2 gives up on rows that stay locked for more than a second, the optimistic edit retries these as well.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class UserEditContentionBenchmark {
+
+    @Param({"4", "256"})
+    public int hotUsers;
+
+    private ConfigurableApplicationContext context;
+
+    private UserService userService;
+
+    private TransactionTemplate transactionTemplate;
+
+    private EntityManager entityManager;
+
+    private long[] ids;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Retries {
+
+        public long retries;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            retries = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        context = BenchmarkApplication.start("--spring.datasource.url=jdbc:h2:mem:user-edit-" + hotUsers);
+        userService = context.getBean(UserService.class);
+        transactionTemplate = new TransactionTemplate(context.getBean(PlatformTransactionManager.class));
+        entityManager = SharedEntityManagerCreator.createSharedEntityManager(context.getBean(EntityManagerFactory.class));
+
+        ids = new long[hotUsers];
+        for (int i = 0; i < hotUsers; i++) {
+            User user = new User();
+            user.setName("name" + i);
+            user.setUsername("hot" + i);
+            ids[i] = userService.createUser(user).getId();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public void optimisticEdit(Retries counters) {
+        long userId = randomUser();
+        while (true) {
+            Long version = userService.getUser(userId).getVersion();
+            try {
+                userService.updateUser(userId, edit(), version);
+                return;
+            }
+            catch (ResponseStatusException e) {
+                if (e.getStatus() != HttpStatus.PRECONDITION_FAILED) {
+                    throw e;
+                }
+                counters.retries++;
+            }
+            catch (TransactionSystemException e) {
+                // lock timeout, the pool closed the connection before the rollback
+                counters.retries++;
+            }
+        }
+    }
+
+    @Benchmark
+    public void lockedEdit() {
+        long userId = randomUser();
+        transactionTemplate.executeWithoutResult(status -> {
+            User user = entityManager.find(User.class, userId, LockModeType.PESSIMISTIC_WRITE);
+            user.setBirthday(edit().getBirthday());
+        });
+    }
+
+    private long randomUser() {
+        return ids[ThreadLocalRandom.current().nextInt(hotUsers)];
+    }
+
+    private static UserPostDTO edit() {
+        UserPostDTO userEditDTO = new UserPostDTO();
+        userEditDTO.setBirthday(String.format("%02d.01.2000", ThreadLocalRandom.current().nextInt(1, 29)));
+        return userEditDTO;
+    }
+}
@@ -0,0 +1,68 @@
+package ch.uzh.ifi.hase.soprafs21.benchmark;
+
+import ch.uzh.ifi.hase.soprafs21.entity.User;
+import ch.uzh.ifi.hase.soprafs21.service.UserService;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creating a cohort of USERS users one user at a time (createUser) against the bulk import (importUsers),
+ * as the time per cohort. Every invocation creates a new cohort, so the table grows by USERS per invocation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class UserImportBenchmark {
+
+    private static final int USERS = 5_000;
+
+    private ConfigurableApplicationContext context;
+
+    private UserService userService;
+
+    private List<User> users;
+
+    private int invocation;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        context = BenchmarkApplication.start("--spring.datasource.url=jdbc:h2:mem:user-import");
+        userService = context.getBean(UserService.class);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Setup(Level.Invocation)
+    public void newUsers() {
+        invocation++;
+        users = new ArrayList<>(USERS);
+        for (int i = 0; i < USERS; i++) {
+            User user = new User();
+            user.setName("name" + i);
+            user.setUsername("user" + invocation + "-" + i);
+            users.add(user);
+        }
+    }
+
+    @Benchmark
+    public void createUser() {
+        for (User user : users) {
+            userService.createUser(user);
+        }
+    }
+
+    @Benchmark
+    public Object importUsers() {
+        return userService.importUsers(users);
+    }
+}
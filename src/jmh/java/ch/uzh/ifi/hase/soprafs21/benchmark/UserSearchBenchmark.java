@@ -0,0 +1,120 @@
+package ch.uzh.ifi.hase.soprafs21.benchmark;
+
+import ch.uzh.ifi.hase.soprafs21.entity.User;
+import ch.uzh.ifi.hase.soprafs21.rest.dto.UserSearchResultDTO;
+import ch.uzh.ifi.hase.soprafs21.service.UserSearchIndex;
+import ch.uzh.ifi.hase.soprafs21.service.UserService;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Search as you type: the in-memory UserSearchIndex against a LIKE '%q%' query on the USER table,
+ * both returning the first 10 users whose username or name contains the query.
+ * searchIndexFirstLetter is the first keystroke: a query of one letter, which a large share of the users start with.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserSearchBenchmark {
+
+    private static final int SEED_CHUNK_SIZE = 10_000;
+
+    private static final int LIMIT = 10;
+
+    private static final String[] SYLLABLES = {"an", "be", "chi", "da", "el", "fo", "gu", "ha", "in", "jo", "ka", "lu",
+            "ma", "ne", "or", "pe", "qui", "ra", "so", "ti", "ul", "ve", "wa", "xe", "yo", "zu"};
+
+    private static final int QUERY_COUNT = 1000;
+
+    @Param({"10000", "100000"})
+    public int tableSize;
+
+    private ConfigurableApplicationContext context;
+
+    private UserSearchIndex searchIndex;
+
+    private JdbcTemplate jdbcTemplate;
+
+    private String[] queries;
+
+    private String[] firstLetters;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        context = BenchmarkApplication.start("--spring.datasource.url=jdbc:h2:mem:user-search-" + tableSize);
+        UserService userService = context.getBean(UserService.class);
+        searchIndex = context.getBean(UserSearchIndex.class);
+        jdbcTemplate = context.getBean(JdbcTemplate.class);
+
+        // made up names, so prefixes and substrings are about as selective as with real users
+        Random random = new Random(42);
+        List<String> usernames = new ArrayList<>(tableSize);
+        for (int seeded = 0; seeded < tableSize; seeded += SEED_CHUNK_SIZE) {
+            List<User> users = new ArrayList<>();
+            for (int i = seeded; i < Math.min(tableSize, seeded + SEED_CHUNK_SIZE); i++) {
+                User user = new User();
+                user.setUsername(word(random, 3) + i);
+                user.setName(word(random, 2) + " " + word(random, 3));
+                usernames.add(user.getUsername());
+                users.add(user);
+            }
+            userService.importUsers(users);
+        }
+
+        // what is typed into the search box: the first letters or a part of an existing username
+        queries = new String[QUERY_COUNT];
+        firstLetters = new String[QUERY_COUNT];
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            String username = usernames.get(random.nextInt(usernames.size()));
+            int length = Math.min(username.length(), 2 + random.nextInt(5));
+            int start = i % 2 == 0 ? 0 : random.nextInt(username.length() - length + 1);
+            queries[i] = username.substring(start, start + length);
+            firstLetters[i] = username.substring(0, 1);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public List<UserSearchResultDTO> searchIndex() {
+        return searchIndex.search(query(), LIMIT);
+    }
+
+    @Benchmark
+    public List<UserSearchResultDTO> searchIndexFirstLetter() {
+        return searchIndex.search(firstLetters[ThreadLocalRandom.current().nextInt(firstLetters.length)], LIMIT);
+    }
+
+    @Benchmark
+    public List<Map<String, Object>> sqlLike() {
+        String pattern = "%" + query() + "%";
+        return jdbcTemplate.queryForList("select ID, USERNAME, NAME from USER where lower(USERNAME) like ? or lower(NAME) like ? limit ?",
+                pattern, pattern, LIMIT);
+    }
+
+    private static String word(Random random, int syllables) {
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i < syllables; i++) {
+            word.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+        }
+        return word.toString();
+    }
+
+    private String query() {
+        return queries[ThreadLocalRandom.current().nextInt(queries.length)];
+    }
+}
@@ -0,0 +1,89 @@
+package ch.uzh.ifi.hase.soprafs21.benchmark;
+
+import ch.uzh.ifi.hase.soprafs21.constant.UserImportStatus;
+import ch.uzh.ifi.hase.soprafs21.entity.User;
+import ch.uzh.ifi.hase.soprafs21.rest.dto.UserImportResultDTO;
+import ch.uzh.ifi.hase.soprafs21.service.UserService;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput of the UserService operations at different sizes of the user table.
+ * createUser adds a row per call, so the table grows a bit beyond tableSize during the measurement.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserServiceBenchmark {
+
+    private static final int SEED_CHUNK_SIZE = 10_000;
+
+    @Param({"1000", "10000", "100000"})
+    public int tableSize;
+
+    private ConfigurableApplicationContext context;
+
+    private UserService userService;
+
+    private long[] ids;
+
+    private final AtomicLong created = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        context = BenchmarkApplication.start("--spring.datasource.url=jdbc:h2:mem:user-service-" + tableSize);
+        userService = context.getBean(UserService.class);
+
+        ids = new long[tableSize];
+        int seeded = 0;
+        while (seeded < tableSize) {
+            List<User> users = new ArrayList<>();
+            for (int i = seeded; i < Math.min(tableSize, seeded + SEED_CHUNK_SIZE); i++) {
+                users.add(newUser("user" + i, "name" + i));
+            }
+            for (UserImportResultDTO result : userService.importUsers(users)) {
+                if (result.getStatus() == UserImportStatus.CREATED) {
+                    ids[seeded++] = result.getId();
+                }
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public User getUser() {
+        return userService.getUser(ids[ThreadLocalRandom.current().nextInt(tableSize)]);
+    }
+
+    @Benchmark
+    public User createUser() {
+        long next = created.incrementAndGet();
+        return userService.createUser(newUser("created" + next, "name"));
+    }
+
+    @Benchmark
+    public User handleLoginRequest() {
+        int index = ThreadLocalRandom.current().nextInt(tableSize);
+        return userService.handleLoginRequest(newUser("user" + index, "name" + index)).join();
+    }
+
+    private static User newUser(String username, String name) {
+        User user = new User();
+        user.setUsername(username);
+        user.setName(name);
+        return user;
+    }
+}
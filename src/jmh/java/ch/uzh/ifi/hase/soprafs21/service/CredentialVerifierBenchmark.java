@@ -0,0 +1,99 @@
+package ch.uzh.ifi.hase.soprafs21.service;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.web.server.ResponseStatusException;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Logins per second through the CredentialVerifier with a realistic password hash (PBKDF2), with 1x, 2x and 4x
+ * as many logins at once as there are cores. More logins than cores should not raise the throughput, the extra
+ * logins wait in the queue or are rejected with 503 (the verified and rejected counters).
+ * In the package of the verifier, for its constructor that takes the matcher.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 3, time = 3)
+@Fork(1)
+public class CredentialVerifierBenchmark {
+
+    private static final int ITERATIONS = 20_000;
+
+    private static final byte[] SALT = "soprafs21".getBytes(StandardCharsets.UTF_8);
+
+    @Param({"1", "2", "4"})
+    public int loginsPerCore;
+
+    private int logins;
+
+    private String stored;
+
+    private CredentialVerifier credentialVerifier;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Logins {
+
+        public long verified;
+
+        public long rejected;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            verified = 0;
+            rejected = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        logins = cores * loginsPerCore;
+        stored = hash("password");
+        credentialVerifier = new CredentialVerifier(cores, cores, (presented, hashed) -> hashed.equals(hash(presented)));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        credentialVerifier.shutdown();
+    }
+
+    // the logins of as many clients at once, each waits for its answer
+    @Benchmark
+    public void loginBurst(Logins counters) {
+        List<CompletableFuture<Boolean>> verifications = new ArrayList<>(logins);
+        for (int i = 0; i < logins; i++) {
+            try {
+                verifications.add(credentialVerifier.verify("password", stored));
+            }
+            catch (ResponseStatusException e) {
+                counters.rejected++;
+            }
+        }
+        for (CompletableFuture<Boolean> verification : verifications) {
+            verification.join();
+            counters.verified++;
+        }
+    }
+
+    private static String hash(String password) {
+        try {
+            PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), SALT, ITERATIONS, 256);
+            byte[] key = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+            return Base64.getEncoder().encodeToString(key);
+        }
+        catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package ch.uzh.ifi.hase.soprafs21.loadtest;
+
+/**
+ * The endpoints of the UserController the load test drives, with the name used in the mix, e.g. "get=10,login=3".
+ */
+enum Endpoint {
+    CREATE("create", "POST /users"),
+    LOGIN("login", "PUT /login"),
+    GET("get", "GET /users/{id}"),
+    // an edit reads the user for its ETag first, as a client editing a profile does
+    UPDATE("update", "GET+PUT /users/{id}"),
+    LOGOUT("logout", "PUT /logout/{id}");
+
+    private final String key;
+    private final String description;
+
+    Endpoint(String key, String description) {
+        this.key = key;
+        this.description = description;
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    String getDescription() {
+        return description;
+    }
+
+    static Endpoint fromKey(String key) {
+        for (Endpoint endpoint : values()) {
+            if (endpoint.key.equals(key)) {
+                return endpoint;
+            }
+        }
+        throw new IllegalArgumentException("Unknown endpoint in the mix: " + key);
+    }
+}
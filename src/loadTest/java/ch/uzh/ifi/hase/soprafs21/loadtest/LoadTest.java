@@ -0,0 +1,155 @@
+package ch.uzh.ifi.hase.soprafs21.loadtest;
+
+import ch.uzh.ifi.hase.soprafs21.Application;
+import org.HdrHistogram.Histogram;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load Test
+ * Boots the application on a random port (or uses loadtest.base-url) and drives the UserController endpoints
+ * from many concurrent clients at a fixed rate of requests per second, split evenly over the clients.
+ * Prints throughput and p50/p99/p999 latency per endpoint and writes the full latency distributions
+ * as .hgrm files to loadtest.report-dir. The latencies count from the time a request was due (see LoadTestClient),
+ * a rate the server cannot keep up with shows as growing latencies.
+ *
+ * Settings (system properties, passed with ./gradlew loadTest -Ploadtest.clients=64 ...):
+ * loadtest.clients, loadtest.rate (requests per second of all clients), loadtest.warmup-seconds, loadtest.duration-seconds,
+ * loadtest.mix (weights per endpoint, e.g. "create=1,login=3,get=10,update=2,logout=3"), loadtest.base-url
+ */
+public class LoadTest {
+
+    private static final String DEFAULT_MIX = "create=1,login=3,get=10,update=2,logout=3";
+
+    public static void main(String[] args) throws Exception {
+        int clients = Integer.getInteger("loadtest.clients", 32);
+        int rate = Integer.getInteger("loadtest.rate", 500);
+        if (rate <= 0) {
+            throw new IllegalArgumentException("loadtest.rate must be positive: " + rate);
+        }
+        int warmupSeconds = Integer.getInteger("loadtest.warmup-seconds", 5);
+        int durationSeconds = Integer.getInteger("loadtest.duration-seconds", 30);
+        Endpoint[] weightedEndpoints = parseMix(System.getProperty("loadtest.mix", DEFAULT_MIX));
+        File reportDir = new File(System.getProperty("loadtest.report-dir", "build/reports/loadtest"));
+
+        ConfigurableApplicationContext context = null;
+        String baseUrl = System.getProperty("loadtest.base-url");
+        if (baseUrl == null) {
+            List<String> arguments = new ArrayList<>(Arrays.asList(args));
+            // as arguments, so they take precedence over application.properties
+            // all clients share one address, the rate limits of login and registration would measure themselves
+            arguments.addAll(Arrays.asList("--server.port=0", "--spring.main.banner-mode=off", "--logging.level.root=WARN",
+                    "--soprafs21.rate-limit.enabled=false"));
+            context = new SpringApplicationBuilder(Application.class).run(arguments.toArray(new String[0]));
+            baseUrl = "http://localhost:" + ((WebServerApplicationContext) context).getWebServer().getPort();
+        }
+
+        try {
+            System.out.printf("Load test against %s: %d clients, %d requests/s, %ds warmup, %ds measured, mix %s%n",
+                    baseUrl, clients, rate, warmupSeconds, durationSeconds, System.getProperty("loadtest.mix", DEFAULT_MIX));
+            Map<Endpoint, Histogram> histograms = new EnumMap<>(Endpoint.class);
+            Map<Endpoint, Long> errors = new EnumMap<>(Endpoint.class);
+            run(baseUrl, clients, rate, warmupSeconds, durationSeconds, weightedEndpoints, histograms, errors);
+            report(histograms, errors, durationSeconds, reportDir);
+        }
+        finally {
+            if (context != null) {
+                context.close();
+            }
+        }
+    }
+
+    private static void run(String baseUrl, int clients, int rate, int warmupSeconds, int durationSeconds, Endpoint[] weightedEndpoints,
+                            Map<Endpoint, Histogram> histograms, Map<Endpoint, Long> errors) throws Exception {
+        HttpClient httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(5))
+                .build();
+        List<Long> knownIds = Collections.synchronizedList(new ArrayList<>());
+        long recordFrom = System.nanoTime() + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long stopAt = recordFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+        long intervalNanos = Math.max(1, TimeUnit.SECONDS.toNanos(clients) / rate);
+
+        List<LoadTestClient> loadTestClients = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            LoadTestClient client = new LoadTestClient(httpClient, baseUrl, weightedEndpoints, knownIds, intervalNanos, recordFrom, stopAt);
+            loadTestClients.add(client);
+            futures.add(executor.submit(client));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        for (LoadTestClient client : loadTestClients) {
+            client.getHistograms().forEach((endpoint, histogram) ->
+                    histograms.computeIfAbsent(endpoint, e -> new Histogram(histogram.getHighestTrackableValue(), 3)).add(histogram));
+            client.getErrors().forEach((endpoint, count) -> errors.merge(endpoint, count, Long::sum));
+        }
+    }
+
+    private static void report(Map<Endpoint, Histogram> histograms, Map<Endpoint, Long> errors, int durationSeconds,
+                               File reportDir) throws IOException {
+        reportDir.mkdirs();
+        System.out.printf("%-18s %10s %10s %10s %10s %10s %10s %8s%n",
+                "endpoint", "requests", "req/s", "p50 ms", "p99 ms", "p999 ms", "max ms", "errors");
+        for (Map.Entry<Endpoint, Histogram> entry : histograms.entrySet()) {
+            Endpoint endpoint = entry.getKey();
+            Histogram histogram = entry.getValue();
+            if (histogram.getTotalCount() == 0) {
+                continue;
+            }
+            System.out.printf("%-18s %10d %10.1f %10.2f %10.2f %10.2f %10.2f %8d%n",
+                    endpoint.getDescription(), histogram.getTotalCount(), histogram.getTotalCount() / (double) durationSeconds,
+                    millis(histogram.getValueAtPercentile(50)), millis(histogram.getValueAtPercentile(99)),
+                    millis(histogram.getValueAtPercentile(99.9)), millis(histogram.getMaxValue()), errors.get(endpoint));
+
+            try (PrintStream out = new PrintStream(new FileOutputStream(new File(reportDir, endpoint.getKey() + ".hgrm")))) {
+                // values are recorded in microseconds, the file shows milliseconds
+                histogram.outputPercentileDistribution(out, 1000.0);
+            }
+        }
+        System.out.println("Latency distributions written to " + reportDir.getAbsolutePath());
+    }
+
+    // every endpoint appears as often as its weight, so a random pick follows the mix
+    static Endpoint[] parseMix(String mix) {
+        List<Endpoint> weighted = new ArrayList<>();
+        for (String part : mix.split(",")) {
+            String[] keyAndWeight = part.trim().split("=");
+            Endpoint endpoint = Endpoint.fromKey(keyAndWeight[0].trim());
+            int weight = keyAndWeight.length > 1 ? Integer.parseInt(keyAndWeight[1].trim()) : 1;
+            for (int i = 0; i < weight; i++) {
+                weighted.add(endpoint);
+            }
+        }
+        if (weighted.isEmpty()) {
+            throw new IllegalArgumentException("The mix has no endpoints: " + mix);
+        }
+        return weighted.toArray(new Endpoint[0]);
+    }
+
+    private static double millis(long micros) {
+        return micros / 1000.0;
+    }
+}
@@ -0,0 +1,178 @@
+package ch.uzh.ifi.hase.soprafs21.loadtest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.HdrHistogram.Histogram;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One virtual user of the load test. It registers its own user and then sends a request every intervalNanos
+ * (open loop), picking the endpoint of every request by the weights of the mix.
+ * The latency of a request is measured from the time it was due, not from the time it was sent: a request that
+ * has to wait for a slow one before it counts the wait as well, a stall of the server is not hidden by the clients
+ * sending less during it (coordinated omission). The latencies of the requests after the warmup are recorded
+ * in one histogram per endpoint.
+ */
+class LoadTestClient implements Runnable {
+
+    private static final long HIGHEST_TRACKABLE_MICROS = TimeUnit.MINUTES.toMicros(1);
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private static final AtomicLong USERNAMES = new AtomicLong();
+
+    private final HttpClient httpClient;
+    private final String baseUrl;
+    private final Endpoint[] weightedEndpoints;
+    private final List<Long> knownIds;
+    private final long intervalNanos;
+    private final long recordFromNanos;
+    private final long stopAtNanos;
+
+    private final Map<Endpoint, Histogram> histograms = new EnumMap<>(Endpoint.class);
+    private final Map<Endpoint, Long> errors = new EnumMap<>(Endpoint.class);
+
+    private long ownId;
+    private String ownUsername;
+    private String ownName;
+
+    LoadTestClient(HttpClient httpClient, String baseUrl, Endpoint[] weightedEndpoints, List<Long> knownIds,
+                   long intervalNanos, long recordFromNanos, long stopAtNanos) {
+        this.httpClient = httpClient;
+        this.baseUrl = baseUrl;
+        this.weightedEndpoints = weightedEndpoints;
+        this.knownIds = knownIds;
+        this.intervalNanos = intervalNanos;
+        this.recordFromNanos = recordFromNanos;
+        this.stopAtNanos = stopAtNanos;
+        for (Endpoint endpoint : Endpoint.values()) {
+            histograms.put(endpoint, new Histogram(HIGHEST_TRACKABLE_MICROS, 3));
+            errors.put(endpoint, 0L);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            ownUsername = nextUsername();
+            ownName = "name-" + ownUsername;
+            ownId = register(ownUsername, ownName);
+
+            // the clients start at random offsets, so they do not send in lockstep
+            long due = System.nanoTime() + ThreadLocalRandom.current().nextLong(intervalNanos);
+            while (due < stopAtNanos) {
+                long now = System.nanoTime();
+                if (due > now) {
+                    TimeUnit.NANOSECONDS.sleep(due - now);
+                }
+                Endpoint endpoint = weightedEndpoints[ThreadLocalRandom.current().nextInt(weightedEndpoints.length)];
+                send(endpoint, due);
+                due += intervalNanos;
+            }
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("Load test client failed", e);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    Map<Endpoint, Histogram> getHistograms() {
+        return histograms;
+    }
+
+    Map<Endpoint, Long> getErrors() {
+        return errors;
+    }
+
+    private void send(Endpoint endpoint, long due) throws IOException, InterruptedException {
+        HttpRequest request;
+        switch (endpoint) {
+            case CREATE:
+                String username = nextUsername();
+                request = json(URI.create(baseUrl + "/users")).POST(body(username, "name-" + username, null)).build();
+                break;
+            case LOGIN:
+                request = json(URI.create(baseUrl + "/login")).PUT(body(ownUsername, ownName, null)).build();
+                break;
+            case GET:
+                long id = knownIds.get(ThreadLocalRandom.current().nextInt(knownIds.size()));
+                request = HttpRequest.newBuilder(URI.create(baseUrl + "/users/" + id)).GET().build();
+                break;
+            case UPDATE:
+                // the edit is only accepted with the current ETag of the user (If-Match)
+                request = json(URI.create(baseUrl + "/users/" + ownId)).header("If-Match", readOwnTag())
+                        .PUT(body(null, null, randomBirthday())).build();
+                break;
+            case LOGOUT:
+                request = HttpRequest.newBuilder(URI.create(baseUrl + "/logout/" + ownId)).PUT(HttpRequest.BodyPublishers.noBody()).build();
+                break;
+            default:
+                throw new IllegalArgumentException(endpoint.name());
+        }
+
+        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+        long end = System.nanoTime();
+
+        if (endpoint == Endpoint.CREATE && response.statusCode() == 201) {
+            knownIds.add(OBJECT_MAPPER.readTree(response.body()).get("id").asLong());
+        }
+        if (due >= recordFromNanos && end <= stopAtNanos) {
+            histograms.get(endpoint).recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(end - due), HIGHEST_TRACKABLE_MICROS));
+            if (response.statusCode() >= 400) {
+                errors.merge(endpoint, 1L, Long::sum);
+            }
+        }
+    }
+
+    private String readOwnTag() throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + "/users/" + ownId)).GET().build();
+        HttpResponse<Void> response = httpClient.send(request, HttpResponse.BodyHandlers.discarding());
+        return response.headers().firstValue("ETag")
+                .orElseThrow(() -> new IllegalStateException("No ETag for user " + ownId + ": " + response.statusCode()));
+    }
+
+    private long register(String username, String name) throws IOException, InterruptedException {
+        HttpRequest request = json(URI.create(baseUrl + "/users")).POST(body(username, name, null)).build();
+        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 201) {
+            throw new IllegalStateException("Could not register " + username + ": " + response.statusCode() + " " + response.body());
+        }
+        long id = OBJECT_MAPPER.readTree(response.body()).get("id").asLong();
+        knownIds.add(id);
+        return id;
+    }
+
+    private static HttpRequest.Builder json(URI uri) {
+        return HttpRequest.newBuilder(uri).header("Content-Type", "application/json");
+    }
+
+    private static HttpRequest.BodyPublisher body(String username, String name, String birthday) throws IOException {
+        Map<String, String> userPostDTO = new HashMap<>();
+        userPostDTO.put("username", username);
+        userPostDTO.put("name", name);
+        userPostDTO.put("birthday", birthday);
+        return HttpRequest.BodyPublishers.ofByteArray(OBJECT_MAPPER.writeValueAsBytes(userPostDTO));
+    }
+
+    private static String nextUsername() {
+        return "load-" + ProcessHandle.current().pid() + "-" + USERNAMES.incrementAndGet();
+    }
+
+    private static String randomBirthday() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return String.format("%02d.%02d.%d", random.nextInt(1, 29), random.nextInt(1, 13), random.nextInt(1950, 2010));
+    }
+}
@@ -0,0 +1,163 @@
+package ch.uzh.ifi.hase.soprafs21.loadtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Startup Benchmark
+ * Starts the application as a new JVM and measures the time until GET / first answers with 200, for the default
+ * profile, the faststart profile and the faststart profile with the class data sharing archive (if it exists).
+ * The median of every variant is written to startup.results and compared with startup.baseline,
+ * a variant that got slower than the baseline by more than startup.threshold (default 0.1 = 10%) fails the run.
+ *
+ * Settings (system properties): startup.classpath, startup.cds-archive, startup.runs (default 5),
+ * startup.threshold, startup.results, startup.baseline
+ */
+public class StartupBenchmark {
+
+    private static final String MAIN_CLASS = "ch.uzh.ifi.hase.soprafs21.Application";
+
+    private static final long TIMEOUT_MS = TimeUnit.MINUTES.toMillis(2);
+
+    private static final HttpClient HTTP_CLIENT = HttpClient.newBuilder().connectTimeout(Duration.ofMillis(200)).build();
+
+    public static void main(String[] args) throws Exception {
+        String classpath = required("startup.classpath");
+        int runs = Integer.getInteger("startup.runs", 5);
+        double threshold = Double.parseDouble(System.getProperty("startup.threshold", "0.1"));
+        File cdsArchive = new File(System.getProperty("startup.cds-archive", "build/cds/app.jsa"));
+
+        Map<String, List<String>> variants = new LinkedHashMap<>();
+        variants.put("default", List.of());
+        variants.put("faststart", List.of("--spring.profiles.active=faststart"));
+        if (cdsArchive.exists()) {
+            variants.put("faststart-cds", List.of("-XX:SharedArchiveFile=" + cdsArchive.getAbsolutePath(), "--spring.profiles.active=faststart"));
+        }
+
+        Properties results = new Properties();
+        for (Map.Entry<String, List<String>> variant : variants.entrySet()) {
+            long[] millis = new long[runs];
+            for (int run = 0; run < runs; run++) {
+                millis[run] = timeToFirstResponse(classpath, variant.getValue());
+            }
+            Arrays.sort(millis);
+            long median = millis[runs / 2];
+            results.setProperty(variant.getKey(), String.valueOf(median));
+            System.out.printf("%-14s median %5d ms, min %5d ms, max %5d ms%n", variant.getKey(), median, millis[0], millis[runs - 1]);
+        }
+
+        File resultsFile = new File(System.getProperty("startup.results", "build/reports/startup/results.properties"));
+        resultsFile.getParentFile().mkdirs();
+        try (OutputStream out = Files.newOutputStream(resultsFile.toPath())) {
+            results.store(out, "median milliseconds to the first successful GET /");
+        }
+
+        File baselineFile = new File(System.getProperty("startup.baseline", "src/loadTest/startup-baseline.properties"));
+        if (!baselineFile.exists()) {
+            System.out.println("No baseline at " + baselineFile + ", store one with ./gradlew startupBenchmark startupBaseline");
+            return;
+        }
+        Properties baseline = new Properties();
+        try (InputStream in = Files.newInputStream(baselineFile.toPath())) {
+            baseline.load(in);
+        }
+        List<String> regressions = new ArrayList<>();
+        for (String variant : results.stringPropertyNames()) {
+            String before = baseline.getProperty(variant);
+            if (before == null) {
+                continue;
+            }
+            long old = Long.parseLong(before);
+            long now = Long.parseLong(results.getProperty(variant));
+            System.out.printf("%-14s %5d ms -> %5d ms (%+.1f%%)%n", variant, old, now, (now - old) * 100.0 / old);
+            if (now > old * (1 + threshold)) {
+                regressions.add(variant);
+            }
+        }
+        if (!regressions.isEmpty()) {
+            System.err.println("Startup got slower than the baseline by more than " + threshold * 100 + "%: " + regressions);
+            System.exit(1);
+        }
+    }
+
+    private static long timeToFirstResponse(String classpath, List<String> options) throws IOException, InterruptedException {
+        int port = freePort();
+        List<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        for (String option : options) {
+            if (option.startsWith("-X")) {
+                command.add(option);
+            }
+        }
+        command.add("-cp");
+        command.add(classpath);
+        command.add(MAIN_CLASS);
+        command.add("--server.port=" + port);
+        for (String option : options) {
+            if (option.startsWith("--")) {
+                command.add(option);
+            }
+        }
+
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/"))
+                // the first request also creates the lazy beans of the faststart profile, so it may take a while
+                .timeout(Duration.ofSeconds(30)).GET().build();
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+        try {
+            while (System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS)) {
+                if (!process.isAlive()) {
+                    throw new IllegalStateException("The application exited with " + process.exitValue() + ": " + command);
+                }
+                try {
+                    if (HTTP_CLIENT.send(request, HttpResponse.BodyHandlers.discarding()).statusCode() == 200) {
+                        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                    }
+                }
+                catch (ConnectException | HttpTimeoutException e) {
+                    // not listening yet
+                }
+                Thread.sleep(5);
+            }
+            throw new IllegalStateException("No answer within " + TIMEOUT_MS + " ms: " + command);
+        }
+        finally {
+            process.destroy();
+            if (!process.waitFor(30, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+            }
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static String required(String property) {
+        String value = System.getProperty(property);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing system property " + property);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,31 @@
+package ch.uzh.ifi.hase.soprafs21.config;
+
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.converter.cbor.MappingJackson2CborHttpMessageConverter;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.http.converter.smile.MappingJackson2SmileHttpMessageConverter;
+
+/**
+ * Binary Format Configuration
+ * Besides JSON the controllers read and write CBOR (application/cbor) and Smile (application/x-jackson-smile),
+ * chosen by the Accept and Content-Type headers. Both are binary encodings of the same Jackson data model, so the
+ * DTOs do not change; they are smaller than JSON and faster to write and parse.
+ * The converters get the ObjectMapper settings of Spring Boot (spring.jackson.*), Boot adds every converter bean
+ * to the converters of Spring MVC. Compression of large responses is configured in application.properties.
+ */
+@Configuration
+public class BinaryFormatConfig {
+
+    @Bean
+    public MappingJackson2CborHttpMessageConverter cborHttpMessageConverter(Jackson2ObjectMapperBuilder builder) {
+        return new MappingJackson2CborHttpMessageConverter(builder.factory(new CBORFactory()).build());
+    }
+
+    @Bean
+    public MappingJackson2SmileHttpMessageConverter smileHttpMessageConverter(Jackson2ObjectMapperBuilder builder) {
+        return new MappingJackson2SmileHttpMessageConverter(builder.factory(new SmileFactory()).build());
+    }
+}
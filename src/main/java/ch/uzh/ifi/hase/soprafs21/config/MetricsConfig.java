@@ -0,0 +1,54 @@
+package ch.uzh.ifi.hase.soprafs21.config;
+
+import ch.uzh.ifi.hase.soprafs21.service.CredentialVerifier;
+import ch.uzh.ifi.hase.soprafs21.service.OnlineUserCounter;
+import ch.uzh.ifi.hase.soprafs21.service.PresenceBroadcaster;
+import ch.uzh.ifi.hase.soprafs21.service.SessionExpiry;
+import ch.uzh.ifi.hase.soprafs21.service.TokenIndex;
+import ch.uzh.ifi.hase.soprafs21.service.UserStatusWriteBehind;
+import io.micrometer.core.aop.TimedAspect;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Metrics Configuration
+ * The HTTP, Hibernate, HikariCP and JVM metrics are bound by Spring Boot (see application.properties).
+ * Here the @Timed methods of the services get their timers, and the in-memory state of the services is exposed as gauges.
+ */
+@Configuration
+public class MetricsConfig {
+
+    @Bean
+    public TimedAspect timedAspect(MeterRegistry registry) {
+        return new TimedAspect(registry);
+    }
+
+    @Bean
+    public MeterBinder userStateMetrics(TokenIndex tokenIndex, UserStatusWriteBehind statusWriteBehind,
+                                        PresenceBroadcaster presenceBroadcaster, CredentialVerifier credentialVerifier,
+                                        OnlineUserCounter onlineCounter, SessionExpiry sessionExpiry) {
+        return registry -> {
+            Gauge.builder("user.online", onlineCounter, OnlineUserCounter::count)
+                    .description("Users that are online")
+                    .register(registry);
+            Gauge.builder("user.sessions.active", sessionExpiry, SessionExpiry::size)
+                    .description("Sessions of logged in users watched for idleness")
+                    .register(registry);
+            Gauge.builder("user.tokens.active", tokenIndex, TokenIndex::size)
+                    .description("Tokens of logged in users")
+                    .register(registry);
+            Gauge.builder("user.status.pending", statusWriteBehind, UserStatusWriteBehind::pendingCount)
+                    .description("Status changes waiting for the write-behind flush")
+                    .register(registry);
+            Gauge.builder("user.presence.subscribers", presenceBroadcaster, PresenceBroadcaster::subscriberCount)
+                    .description("Open presence streams")
+                    .register(registry);
+            Gauge.builder("user.credentials.queued", credentialVerifier, CredentialVerifier::queuedCount)
+                    .description("Logins waiting for the credential check")
+                    .register(registry);
+        };
+    }
+}
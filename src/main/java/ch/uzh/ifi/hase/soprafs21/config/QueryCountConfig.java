@@ -0,0 +1,33 @@
+package ch.uzh.ifi.hase.soprafs21.config;
+
+import ch.uzh.ifi.hase.soprafs21.repository.QueryCountingDataSource;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import javax.sql.DataSource;
+
+/**
+ * Query Count Configuration
+ * With soprafs21.query-count.enabled the DataSource is wrapped in a QueryCountingDataSource,
+ * the QueryCountFilter then reports the statements of every request.
+ */
+@Configuration
+@ConditionalOnProperty("soprafs21.query-count.enabled")
+public class QueryCountConfig {
+
+    // static, so the post processor does not pull the configuration into early initialization
+    @Bean
+    public static BeanPostProcessor queryCountingDataSourcePostProcessor() {
+        return new BeanPostProcessor() {
+            @Override
+            public Object postProcessAfterInitialization(Object bean, String beanName) {
+                if (bean instanceof DataSource && !(bean instanceof QueryCountingDataSource)) {
+                    return new QueryCountingDataSource((DataSource) bean);
+                }
+                return bean;
+            }
+        };
+    }
+}
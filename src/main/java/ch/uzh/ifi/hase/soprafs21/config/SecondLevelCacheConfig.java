@@ -0,0 +1,84 @@
+package ch.uzh.ifi.hase.soprafs21.config;
+
+import com.github.benmanes.caffeine.jcache.configuration.CaffeineConfiguration;
+import com.github.benmanes.caffeine.jcache.spi.CaffeineCachingProvider;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.JCacheMetrics;
+import org.hibernate.cache.jcache.ConfigSettings;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernatePropertiesCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import javax.cache.CacheManager;
+import javax.cache.Caching;
+import java.net.URI;
+import java.util.OptionalLong;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Second-Level Cache Configuration
+ * Hibernate keeps the users (region "user") and the results of findByUsername (region "user-by-username")
+ * in Caffeine caches behind JCache, so the profile reads of hot users and the lookups of login and registration
+ * do not go to the database (enabled in application.properties).
+ * The caches are created here with their bounds (soprafs21.cache.*): each holds at most max-entries entries,
+ * written at most ttl-seconds ago, the least recently used go first. The update timestamps of the tables must not be
+ * evicted, otherwise cached query results could outlive a change of the table, there is one entry per table anyway.
+ * Each application context gets its own cache manager (the tests start several in one JVM).
+ * The hits and misses per region are counted by the Hibernate statistics (hibernate_second_level_cache_requests,
+ * hibernate_cache_query_requests), the sizes and evictions of the caches by the cache_* metrics.
+ */
+@Configuration
+public class SecondLevelCacheConfig {
+
+    public static final String USER_REGION = "user";
+
+    public static final String USERNAME_QUERY_REGION = "user-by-username";
+
+    // the regions Hibernate uses for query results without a region of their own and for the update timestamps
+    private static final String DEFAULT_QUERY_REGION = "default-query-results-region";
+    private static final String TIMESTAMPS_REGION = "default-update-timestamps-region";
+
+    @Bean(destroyMethod = "close")
+    public CacheManager hibernateCacheManager(@Value("${soprafs21.cache.max-entries:10000}") long maxEntries,
+                                              @Value("${soprafs21.cache.ttl-seconds:600}") long ttlSeconds) {
+        CacheManager cacheManager = Caching.getCachingProvider(CaffeineCachingProvider.class.getName())
+                .getCacheManager(URI.create("soprafs21:hibernate-" + UUID.randomUUID()), getClass().getClassLoader());
+
+        cacheManager.createCache(USER_REGION, bounded(maxEntries, ttlSeconds));
+        cacheManager.createCache(USERNAME_QUERY_REGION, bounded(maxEntries, ttlSeconds));
+        cacheManager.createCache(DEFAULT_QUERY_REGION, bounded(maxEntries, ttlSeconds));
+        cacheManager.createCache(TIMESTAMPS_REGION, unbounded());
+        return cacheManager;
+    }
+
+    @Bean
+    public HibernatePropertiesCustomizer hibernateCacheManagerCustomizer(CacheManager hibernateCacheManager) {
+        return properties -> properties.put(ConfigSettings.CACHE_MANAGER, hibernateCacheManager);
+    }
+
+    @Bean
+    public MeterBinder hibernateCacheMetrics(CacheManager hibernateCacheManager) {
+        return registry -> {
+            for (String name : hibernateCacheManager.getCacheNames()) {
+                JCacheMetrics.monitor(registry, hibernateCacheManager.getCache(name));
+            }
+        };
+    }
+
+    private static CaffeineConfiguration<Object, Object> bounded(long maxEntries, long ttlSeconds) {
+        CaffeineConfiguration<Object, Object> configuration = unbounded();
+        configuration.setMaximumSize(OptionalLong.of(maxEntries));
+        configuration.setExpireAfterWrite(OptionalLong.of(TimeUnit.SECONDS.toNanos(ttlSeconds)));
+        return configuration;
+    }
+
+    private static CaffeineConfiguration<Object, Object> unbounded() {
+        CaffeineConfiguration<Object, Object> configuration = new CaffeineConfiguration<>();
+        // Hibernate copies the entries itself (disassembled state), the cache does not have to
+        configuration.setStoreByValue(false);
+        configuration.setStatisticsEnabled(true);
+        return configuration;
+    }
+}
@@ -0,0 +1,44 @@
+package ch.uzh.ifi.hase.soprafs21.config;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Training Run
+ * With soprafs21.exit-after-startup the application answers one GET / to itself and exits as soon as it is ready.
+ * Used by the Gradle task appCdsArchive, the JVM records the classes loaded up to then in the class data sharing archive.
+ */
+@Component
+@Lazy(false)
+@ConditionalOnProperty("soprafs21.exit-after-startup")
+public class TrainingRun implements ApplicationListener<ApplicationReadyEvent> {
+
+    private final Logger log = LoggerFactory.getLogger(TrainingRun.class);
+
+    @Override
+    public void onApplicationEvent(ApplicationReadyEvent event) {
+        if (event.getApplicationContext() instanceof WebServerApplicationContext) {
+            int port = ((WebServerApplicationContext) event.getApplicationContext()).getWebServer().getPort();
+            try {
+                HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + "/").openConnection();
+                log.info("Training request answered with {}", connection.getResponseCode());
+                connection.disconnect();
+            }
+            catch (IOException e) {
+                log.warn("Training request failed", e);
+            }
+        }
+        System.exit(SpringApplication.exit(event.getApplicationContext()));
+    }
+}
@@ -0,0 +1,5 @@
+package ch.uzh.ifi.hase.soprafs21.constant;
+
+public enum UserImportStatus {
+    CREATED, CONFLICT, INVALID;
+}
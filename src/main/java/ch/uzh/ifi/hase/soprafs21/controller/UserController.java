@@ -1,15 +1,49 @@
 package ch.uzh.ifi.hase.soprafs21.controller;
 
+import ch.uzh.ifi.hase.soprafs21.constant.UserStatus;
 import ch.uzh.ifi.hase.soprafs21.entity.User;
+import ch.uzh.ifi.hase.soprafs21.repository.UserField;
+import ch.uzh.ifi.hase.soprafs21.repository.UserPageQuery;
+import ch.uzh.ifi.hase.soprafs21.rest.dto.UserCountDTO;
 import ch.uzh.ifi.hase.soprafs21.rest.dto.UserGetDTO;
+import ch.uzh.ifi.hase.soprafs21.rest.dto.UserImportResultDTO;
 import ch.uzh.ifi.hase.soprafs21.rest.dto.UserPostDTO;
+import ch.uzh.ifi.hase.soprafs21.rest.dto.UserSearchResultDTO;
+import ch.uzh.ifi.hase.soprafs21.rest.dto.UserTokenDTO;
 import ch.uzh.ifi.hase.soprafs21.rest.mapper.DTOMapper;
+import ch.uzh.ifi.hase.soprafs21.service.PresenceBroadcaster;
+import ch.uzh.ifi.hase.soprafs21.service.UserChangeTracker;
+import ch.uzh.ifi.hase.soprafs21.service.UserSearchIndex;
 import ch.uzh.ifi.hase.soprafs21.service.UserService;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
 
 /**
  * User Controller
@@ -19,75 +53,344 @@ import java.util.List;
 @RestController
 public class UserController {
 
+    static final int DEFAULT_PAGE_SIZE = 50;
+    static final int MAX_PAGE_SIZE = 500;
+
+    static final String APPLICATION_NDJSON_VALUE = "application/x-ndjson";
+
+    static final int MAX_IMPORT_SIZE = 10_000;
+
+    static final int DEFAULT_SEARCH_LIMIT = 10;
+    static final int MAX_SEARCH_LIMIT = 50;
+
+    // the formats a user is sent in (see BinaryFormatConfig), JSON if the client accepts any
+    private static final List<MediaType> USER_FORMATS = List.of(MediaType.APPLICATION_JSON, MediaType.APPLICATION_CBOR,
+            new MediaType("application", "x-jackson-smile"));
+
     private final UserService userService;
 
-    UserController(UserService userService) {
+    private final ObjectMapper objectMapper;
+
+    private final PresenceBroadcaster presenceBroadcaster;
+
+    private final UserChangeTracker changeTracker;
+
+    private final UserSearchIndex searchIndex;
+
+    UserController(UserService userService, ObjectMapper objectMapper, PresenceBroadcaster presenceBroadcaster,
+                   UserChangeTracker changeTracker, UserSearchIndex searchIndex) {
         this.userService = userService;
+        this.objectMapper = objectMapper;
+        this.presenceBroadcaster = presenceBroadcaster;
+        this.changeTracker = changeTracker;
+        this.searchIndex = searchIndex;
     }
 
     //TODO this class is the key between front and backend so they can communicate properly
 
-    // we get all the users
+    // we get all the users, page by page as soon as one of the paging or filter parameters is given
+    // nothing is read if the client already has the current list (If-None-Match)
     @GetMapping("/users")
+    @ResponseBody
+    public ResponseEntity<List<UserGetDTO>> getAllUsers(
+            WebRequest request,
+            @RequestParam(required = false) Integer limit,
+            @RequestParam(required = false) Long after,
+            @RequestParam(required = false) UserStatus status,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime createdFrom,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime createdTo) {
+        String eTag = changeTracker.collectionTag();
+        if (request.checkNotModified(eTag)) {
+            return null;
+        }
+
+        if (limit == null && after == null && status == null && createdFrom == null && createdTo == null) {
+            // fetch all users in the internal representation
+            return ResponseEntity.ok().eTag(eTag).body(convertToUserGetDTOs(userService.getUsers()));
+        }
+
+        // fetch one user more than asked for to know if there is a next page
+        int pageSize = pageSize(limit);
+        List<User> users = userService.getUsers(new UserPageQuery(after, pageSize + 1, status, createdFrom, createdTo));
+        return page(eTag, convertToUserGetDTOs(users), pageSize, UserGetDTO::getId);
+    }
+
+    // the same list with only the requested fields (e.g. fields=username,status), only their columns are read
+    @GetMapping(value = "/users", params = "fields")
+    @ResponseBody
+    public ResponseEntity<List<Map<String, Object>>> getAllUserFields(
+            WebRequest request,
+            @RequestParam String fields,
+            @RequestParam(required = false) Integer limit,
+            @RequestParam(required = false) Long after,
+            @RequestParam(required = false) UserStatus status,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime createdFrom,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime createdTo) {
+        Set<UserField> userFields = parseFields(fields);
+        String eTag = changeTracker.collectionTag();
+        if (request.checkNotModified(eTag)) {
+            return null;
+        }
+
+        if (limit == null && after == null && status == null && createdFrom == null && createdTo == null) {
+            return ResponseEntity.ok().eTag(eTag).body(userService.getUsers(null, userFields));
+        }
+
+        int pageSize = pageSize(limit);
+        List<Map<String, Object>> users = userService.getUsers(new UserPageQuery(after, pageSize + 1, status, createdFrom, createdTo), userFields);
+        return page(eTag, users, pageSize, user -> (Long) user.get(UserField.ID.getAttribute()));
+    }
+
+    // the users changed after the since cursor (0 for all), the Link header carries the cursor for the next call
+    // a client that polls this instead of the whole list only reads what changed
+    @GetMapping("/users/changes")
+    @ResponseBody
+    public ResponseEntity<List<UserGetDTO>> getUserChanges(@RequestParam long since, @RequestParam(required = false) Integer limit) {
+        if (since < 0) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "since must not be negative");
+        }
+        int pageSize = pageSize(limit);
+
+        // only changes whose transactions completed, a change committed later must not fall behind the cursor
+        long until = userService.getStableChangeSeq();
+        List<User> changes = until > since ? userService.getChanges(since, until, pageSize + 1) : List.of();
+
+        long cursor = since;
+        if (changes.size() > pageSize) {
+            changes = changes.subList(0, pageSize);
+            cursor = changes.get(pageSize - 1).getChangeSeq();
+        }
+        else if (until > since) {
+            cursor = until;
+        }
+
+        String next = ServletUriComponentsBuilder.fromCurrentRequest()
+                .replaceQueryParam("since", cursor)
+                .toUriString();
+        return ResponseEntity.ok()
+                .header(HttpHeaders.LINK, String.format("<%s>; rel=\"next\"", next))
+                .body(convertToUserGetDTOs(changes));
+    }
+
+    // the number of users that are online, counted in memory, so dashboards do not have to fetch and filter all users
+    @GetMapping("/users/online/count")
     @ResponseStatus(HttpStatus.OK)
     @ResponseBody
-    public List<UserGetDTO> getAllUsers() {
-        // fetch all users in the internal representation
-        List<User> users = userService.getUsers();
-        List<UserGetDTO> userGetDTOs = new ArrayList<>();
+    public UserCountDTO getOnlineCount() {
+        return new UserCountDTO(userService.getOnlineCount());
+    }
 
-        // convert each user to the API representation
-        for (User user : users) {
-            userGetDTOs.add(DTOMapper.INSTANCE.convertEntityToUserGetDTO(user));
+    // search as you type: users whose username or name contains q, answered from the in-memory index
+    @GetMapping("/users/search")
+    @ResponseStatus(HttpStatus.OK)
+    @ResponseBody
+    public List<UserSearchResultDTO> searchUsers(@RequestParam String q, @RequestParam(required = false) Integer limit) {
+        if (q.isBlank()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "q must not be blank");
         }
-        return userGetDTOs;
+        int resultSize = limit == null ? DEFAULT_SEARCH_LIMIT : limit;
+        if (resultSize < 1 || resultSize > MAX_SEARCH_LIMIT) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, String.format("limit must be between 1 and %d", MAX_SEARCH_LIMIT));
+        }
+        return searchIndex.search(q, resultSize);
+    }
+
+    // we stream all the users as one JSON object per line, without keeping the whole list in memory
+    @GetMapping(value = "/users/export", produces = APPLICATION_NDJSON_VALUE)
+    public void exportUsers(HttpServletResponse response) throws IOException {
+        response.setStatus(HttpStatus.OK.value());
+        response.setContentType(APPLICATION_NDJSON_VALUE);
+        response.setCharacterEncoding("UTF-8");
+
+        ObjectWriter writer = objectMapper.writerFor(UserGetDTO.class);
+        OutputStream outputStream = response.getOutputStream();
+        userService.exportUsers(user -> {
+            try {
+                outputStream.write(writer.writeValueAsBytes(DTOMapper.INSTANCE.convertEntityToUserGetDTO(user)));
+                outputStream.write('\n');
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        outputStream.flush();
     }
 
+    // the frontend subscribes here to get every ONLINE/OFFLINE change pushed instead of polling the user list
+    @GetMapping(value = "/users/presence/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamPresence() {
+        return presenceBroadcaster.subscribe();
+    }
 
     @PostMapping("/users")
     @ResponseStatus(HttpStatus.CREATED)
     @ResponseBody
-    public UserGetDTO createUser(@RequestBody UserPostDTO userPostDTO) {
+    public UserTokenDTO createUser(@RequestBody UserPostDTO userPostDTO) {
         // convert API user to internal representation
         User userInput = DTOMapper.INSTANCE.convertUserPostDTOtoEntity(userPostDTO);
 
         // create user
         User createdUser = userService.createUser(userInput);
 
-        // convert internal representation of user back to API
-        return DTOMapper.INSTANCE.convertEntityToUserGetDTO(createdUser);
+        // convert internal representation of user back to API, with the token the client authenticates with
+        return DTOMapper.INSTANCE.convertEntityToUserTokenDTO(createdUser);
+    }
+
+    // create a whole cohort at once, the body is a JSON array of users
+    @PostMapping(value = "/users/batch", consumes = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseStatus(HttpStatus.OK)
+    @ResponseBody
+    public List<UserImportResultDTO> importUsers(@RequestBody List<UserPostDTO> userPostDTOs) {
+        if (userPostDTOs.size() > MAX_IMPORT_SIZE) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, String.format("At most %d users can be imported at once", MAX_IMPORT_SIZE));
+        }
+
+        List<User> users = new ArrayList<>(userPostDTOs.size());
+        for (UserPostDTO userPostDTO : userPostDTOs) {
+            users.add(userPostDTO == null ? null : DTOMapper.INSTANCE.convertUserPostDTOtoEntity(userPostDTO));
+        }
+        return userService.importUsers(users);
+    }
+
+    // same as above, but with one JSON object per line, a line that cannot be read is reported as invalid
+    @PostMapping(value = "/users/batch", consumes = APPLICATION_NDJSON_VALUE)
+    @ResponseStatus(HttpStatus.OK)
+    @ResponseBody
+    public List<UserImportResultDTO> importUsersNdjson(HttpServletRequest request) throws IOException {
+        List<User> users = new ArrayList<>();
+        BufferedReader reader = request.getReader();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isBlank()) {
+                continue;
+            }
+            if (users.size() == MAX_IMPORT_SIZE) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, String.format("At most %d users can be imported at once", MAX_IMPORT_SIZE));
+            }
+            try {
+                users.add(DTOMapper.INSTANCE.convertUserPostDTOtoEntity(objectMapper.readValue(line, UserPostDTO.class)));
+            }
+            catch (JsonProcessingException e) {
+                users.add(null);
+            }
+        }
+        return userService.importUsers(users);
     }
 
     @PutMapping("/login")
     @ResponseStatus(HttpStatus.OK)
     @ResponseBody
-    public UserGetDTO requestLogin(@RequestBody UserPostDTO userPostDTO){
+    public CompletableFuture<UserTokenDTO> requestLogin(@RequestBody UserPostDTO userPostDTO){
         // here I want to convert the API to the internal representation
         User userInput = DTOMapper.INSTANCE.convertUserPostDTOtoEntity(userPostDTO);
 
-        // asking userService if userInput exists
-        User userLogin = userService.handleLoginRequest(userInput);
-
-        // convert internal representation of the user back to the API
-        return DTOMapper.INSTANCE.convertEntityToUserGetDTO(userLogin);
+        // asking userService if userInput exists, the request thread is free again while the credentials are checked
+        // convert internal representation of the user back to the API, with the token of the new session
+        return userService.handleLoginRequest(userInput).thenApply(DTOMapper.INSTANCE::convertEntityToUserTokenDTO);
     }
 
     // I get data from the backend to the frontend with the specific userID
+    // the ETag is the version and status of the user, nothing is read if the client has the current one (If-None-Match)
+    // the format is chosen here, so the strong ETag names the format the user is actually sent in
     @GetMapping("/users/{userId}")
-    @ResponseStatus(HttpStatus.OK)
     @ResponseBody
-    public UserGetDTO getCurrentUser(@PathVariable Long userId){
-        // fetch all users in the internal representation
+    public ResponseEntity<UserGetDTO> getCurrentUser(@PathVariable Long userId, WebRequest request){
+        MediaType format = userFormat(request);
+        String knownTag = changeTracker.knownUserTag(userId);
+        if (knownTag != null && request.checkNotModified(UserChangeTracker.userTag(knownTag, format))) {
+            return null;
+        }
+
+        // fetch the user in the internal representation
+        long stamp = changeTracker.userStamp(userId);
         User user = userService.getUser(userId);
-        return DTOMapper.INSTANCE.convertEntityToUserGetDTO(user);
+        String eTag = knownTag;
+        if (eTag == null) {
+            eTag = UserChangeTracker.userTag(user.getVersion(), user.getStatus());
+            changeTracker.rememberUserTag(userId, stamp, eTag);
+            if (request.checkNotModified(UserChangeTracker.userTag(eTag, format))) {
+                return null;
+            }
+        }
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok().eTag(UserChangeTracker.userTag(eTag, format));
+        if (format != null) {
+            response.contentType(format);
+        }
+        return response.body(DTOMapper.INSTANCE.convertEntityToUserGetDTO(user));
+    }
+
+    // the same user with only the requested fields, the version and status are read for the ETag in any case
+    @GetMapping(value = "/users/{userId}", params = "fields")
+    @ResponseBody
+    public ResponseEntity<Map<String, Object>> getCurrentUserFields(@PathVariable Long userId, @RequestParam String fields,
+                                                                    WebRequest request) {
+        Set<UserField> userFields = parseFields(fields);
+        String knownTag = changeTracker.knownUserTag(userId);
+        if (knownTag != null && request.checkNotModified(UserChangeTracker.weak(knownTag))) {
+            return null;
+        }
+
+        Set<UserField> selectedFields = EnumSet.copyOf(userFields);
+        selectedFields.add(UserField.VERSION);
+        selectedFields.add(UserField.STATUS);
+        long stamp = changeTracker.userStamp(userId);
+        Map<String, Object> user = userService.getUser(userId, selectedFields);
+        String eTag = knownTag;
+        if (eTag == null) {
+            eTag = UserChangeTracker.userTag((Long) user.get(UserField.VERSION.getAttribute()),
+                    (UserStatus) user.get(UserField.STATUS.getAttribute()));
+            changeTracker.rememberUserTag(userId, stamp, eTag);
+            if (request.checkNotModified(UserChangeTracker.weak(eTag))) {
+                return null;
+            }
+        }
+
+        for (UserField field : selectedFields) {
+            if (!userFields.contains(field)) {
+                user.remove(field.getAttribute());
+            }
+        }
+        return ResponseEntity.ok().eTag(UserChangeTracker.weak(eTag)).body(user);
     }
 
     // I put data from the backend to the frontend and with the specific userID i can edit every user
+    // the client sends the ETag it read in If-Match, an edit of a user that changed since is refused (412)
     @PutMapping("/users/{userId}")
     @ResponseStatus(HttpStatus.NO_CONTENT)
     @ResponseBody
-    public void EditUser(@PathVariable Long userId, @RequestBody UserPostDTO userEditDTO) {
-        userService.updateUser(userId, userEditDTO);
+    public void EditUser(@PathVariable Long userId, @RequestBody UserPostDTO userEditDTO,
+                         @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch) {
+        if (ifMatch == null || ifMatch.isBlank()) {
+            throw new ResponseStatusException(HttpStatus.PRECONDITION_REQUIRED, "If-Match is required, send the ETag of the user");
+        }
+
+        // * is any version of an existing user
+        Long expectedVersion = null;
+        if (!"*".equals(ifMatch.trim())) {
+            List<Long> versions = UserChangeTracker.versions(ifMatch);
+            if (versions == null || versions.isEmpty()) {
+                throw new ResponseStatusException(HttpStatus.PRECONDITION_FAILED,
+                        "If-Match has no strong ETag of the user, send the ETag of GET /users/" + userId);
+            }
+            expectedVersion = versions.get(0);
+            // several versions listed, only the current one can match
+            if (versions.size() > 1) {
+                Long currentVersion = userService.getUser(userId).getVersion();
+                expectedVersion = currentVersion == null ? 0L : currentVersion;
+                if (!versions.contains(expectedVersion)) {
+                    throw new ResponseStatusException(HttpStatus.PRECONDITION_FAILED, "The user was changed in the meantime, read it again");
+                }
+            }
+        }
+        userService.updateUser(userId, userEditDTO, expectedVersion);
+    }
+
+    // keeps the session of a logged in user alive, users without a heartbeat are logged out after the idle timeout
+    @PutMapping("/users/{userId}/heartbeat")
+    @ResponseStatus(HttpStatus.NO_CONTENT)
+    @ResponseBody
+    public void heartbeat(@PathVariable Long userId){
+        userService.heartbeat(userId);
     }
 
     // Use this so I can set all users that are offline to offline
@@ -98,4 +401,69 @@ public class UserController {
         userService.logout(userId);
     }
 
+    private static int pageSize(Integer limit) {
+        int pageSize = limit == null ? DEFAULT_PAGE_SIZE : limit;
+        if (pageSize < 1 || pageSize > MAX_PAGE_SIZE) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, String.format("limit must be between 1 and %d", MAX_PAGE_SIZE));
+        }
+        return pageSize;
+    }
+
+    // the users were fetched with one more than the page size, if that one is there the Link header points to the next page
+    private static <T> ResponseEntity<List<T>> page(String eTag, List<T> users, int pageSize, Function<T, Long> id) {
+        if (users.size() <= pageSize) {
+            return ResponseEntity.ok().eTag(eTag).body(users);
+        }
+
+        List<T> page = users.subList(0, pageSize);
+        String next = ServletUriComponentsBuilder.fromCurrentRequest()
+                .replaceQueryParam("limit", pageSize)
+                .replaceQueryParam("after", id.apply(page.get(pageSize - 1)))
+                .toUriString();
+        return ResponseEntity.ok()
+                .eTag(eTag)
+                .header(HttpHeaders.LINK, String.format("<%s>; rel=\"next\"", next))
+                .body(page);
+    }
+
+    // the first format the client accepts, null if it accepts none of them (answered with 406 by Spring MVC)
+    private static MediaType userFormat(WebRequest request) {
+        String accept = request.getHeader(HttpHeaders.ACCEPT);
+        List<MediaType> acceptedTypes;
+        try {
+            acceptedTypes = accept == null || accept.isBlank() ? List.of(MediaType.ALL) : MediaType.parseMediaTypes(accept);
+        }
+        catch (InvalidMediaTypeException e) {
+            return null;
+        }
+        acceptedTypes = new ArrayList<>(acceptedTypes);
+        MediaType.sortBySpecificityAndQuality(acceptedTypes);
+        for (MediaType acceptedType : acceptedTypes) {
+            for (MediaType format : USER_FORMATS) {
+                if (acceptedType.getQualityValue() > 0 && acceptedType.isCompatibleWith(format)) {
+                    return format;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static Set<UserField> parseFields(String fields) {
+        try {
+            return UserField.parse(fields);
+        }
+        catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        }
+    }
+
+    // convert each user to the API representation
+    private List<UserGetDTO> convertToUserGetDTOs(List<User> users) {
+        List<UserGetDTO> userGetDTOs = new ArrayList<>();
+        for (User user : users) {
+            userGetDTOs.add(DTOMapper.INSTANCE.convertEntityToUserGetDTO(user));
+        }
+        return userGetDTOs;
+    }
+
 }
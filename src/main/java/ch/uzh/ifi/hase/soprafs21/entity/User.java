@@ -1,9 +1,12 @@
 package ch.uzh.ifi.hase.soprafs21.entity;
 
 import ch.uzh.ifi.hase.soprafs21.constant.UserStatus;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 
 import javax.persistence.*;
 import java.io.Serializable;
+import java.time.LocalDateTime;
 import java.util.Calendar;
 import java.util.Date;
 
@@ -13,15 +16,30 @@ import java.util.Date;
  * Every variable will be mapped into a database field with the @Column annotation
  * - nullable = false -> this cannot be left empty
  * - unique = true -> this value must be unqiue across the database -> composes the primary key
+ * The indexes back the keyset pagination of the user list (ordered by id, filtered by status or creation time)
+ * and the change feed (ordered by the change sequence).
+ * The users are kept in the second-level cache (see SecondLevelCacheConfig).
  */
 @Entity
-@Table(name = "USER")
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "user")
+@Table(name = "USER", indexes = {
+        @Index(name = "IDX_USER_STATUS_ID", columnList = "status, id"),
+        @Index(name = "IDX_USER_CREATED_AT_ID", columnList = "createdAt, id"),
+        @Index(name = "IDX_USER_CHANGE_SEQ", columnList = "changeSeq")
+})
 public class User implements Serializable {
 
     private static final long serialVersionUID = 1L;
 
+    public static final String ID_SEQUENCE = "USER_SEQ";
+
+    // the sequence hands out blocks of 50 ids (pooled optimizer), so inserts in a batch do not need a round trip per id
+    public static final int ID_ALLOCATION_SIZE = 50;
+
     @Id
-    @GeneratedValue
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "user_sequence")
+    @SequenceGenerator(name = "user_sequence", sequenceName = ID_SEQUENCE, allocationSize = ID_ALLOCATION_SIZE)
     private Long id;
 
     @Column(nullable = false)
@@ -42,6 +60,18 @@ public class User implements Serializable {
     @Column(nullable = false)
     private String creationDate;
 
+    @Column
+    private LocalDateTime createdAt;
+
+    // set with every change of the user, see UserChangeSequence
+    @Column
+    private Long changeSeq;
+
+    // optimistic lock of the profile (username, birthday), sent as ETag and expected back in If-Match of an edit
+    // the status is not versioned: a login or logout never makes an edit of the profile fail
+    @Version
+    private Long version;
+
 
     public String getBirthday() {
         return birthday;
@@ -59,6 +89,30 @@ public class User implements Serializable {
         this.creationDate = creationDate;
     }
 
+    public LocalDateTime getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(LocalDateTime createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    public Long getChangeSeq() {
+        return changeSeq;
+    }
+
+    public void setChangeSeq(Long changeSeq) {
+        this.changeSeq = changeSeq;
+    }
+
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+
     /**@Column(nullable = true) // kann ich mich registrieren ohne dieses feld
     private String password; //TODO nicht vergessen false setzten */
 
@@ -0,0 +1,36 @@
+package ch.uzh.ifi.hase.soprafs21.filter;
+
+import ch.uzh.ifi.hase.soprafs21.repository.QueryCount;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.MethodParameter;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.http.server.ServletServerHttpResponse;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyAdvice;
+
+/**
+ * Writes the query count headers of the QueryCountFilter right before a response body, i.e. before the response is committed.
+ */
+@ControllerAdvice
+@ConditionalOnProperty("soprafs21.query-count.enabled")
+public class QueryCountAdvice implements ResponseBodyAdvice<Object> {
+
+    @Override
+    public boolean supports(MethodParameter returnType, Class<? extends HttpMessageConverter<?>> converterType) {
+        return true;
+    }
+
+    @Override
+    public Object beforeBodyWrite(Object body, MethodParameter returnType, MediaType selectedContentType,
+                                  Class<? extends HttpMessageConverter<?>> selectedConverterType,
+                                  ServerHttpRequest request, ServerHttpResponse response) {
+        QueryCount queryCount = QueryCount.current();
+        if (queryCount != null && response instanceof ServletServerHttpResponse) {
+            QueryCountFilter.writeHeaders(((ServletServerHttpResponse) response).getServletResponse(), queryCount);
+        }
+        return body;
+    }
+}
@@ -0,0 +1,67 @@
+package ch.uzh.ifi.hase.soprafs21.filter;
+
+import ch.uzh.ifi.hase.soprafs21.repository.QueryCount;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Query Count Filter
+ * Counts the SQL statements and rows of every request (see QueryCount) and reports them in the headers
+ * X-Query-Count and X-Query-Rows and in the log. Requests above soprafs21.query-count.warn-threshold statements
+ * are logged as warning, they usually load a collection row by row (N+1).
+ * Responses with a body get the headers from the QueryCountAdvice, as they are already committed here.
+ */
+@Component
+@ConditionalOnProperty("soprafs21.query-count.enabled")
+public class QueryCountFilter extends OncePerRequestFilter {
+
+    public static final String QUERY_COUNT_HEADER = "X-Query-Count";
+
+    public static final String QUERY_ROWS_HEADER = "X-Query-Rows";
+
+    private final Logger log = LoggerFactory.getLogger(QueryCountFilter.class);
+
+    private final long warnThreshold;
+
+    public QueryCountFilter(@Value("${soprafs21.query-count.warn-threshold:10}") long warnThreshold) {
+        this.warnThreshold = warnThreshold;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        QueryCount queryCount = QueryCount.start();
+        try {
+            filterChain.doFilter(request, response);
+        }
+        finally {
+            QueryCount.stop();
+            if (!response.isCommitted()) {
+                writeHeaders(response, queryCount);
+            }
+            if (queryCount.getStatements() > warnThreshold) {
+                log.warn("{} {}: {} statements, {} rows", request.getMethod(), request.getRequestURI(),
+                        queryCount.getStatements(), queryCount.getRows());
+            }
+            else {
+                log.debug("{} {}: {} statements, {} rows", request.getMethod(), request.getRequestURI(),
+                        queryCount.getStatements(), queryCount.getRows());
+            }
+        }
+    }
+
+    static void writeHeaders(HttpServletResponse response, QueryCount queryCount) {
+        response.setHeader(QUERY_COUNT_HEADER, String.valueOf(queryCount.getStatements()));
+        response.setHeader(QUERY_ROWS_HEADER, String.valueOf(queryCount.getRows()));
+    }
+}
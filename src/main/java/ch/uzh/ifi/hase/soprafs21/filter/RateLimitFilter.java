@@ -0,0 +1,193 @@
+package ch.uzh.ifi.hase.soprafs21.filter;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rate Limit Filter
+ * Logging in (PUT /login) and registering (POST /users) each cost a lookup, a write and a flush, so a single client
+ * could keep the connection pool busy. Both are limited per client IP and per username (soprafs21.rate-limit.*),
+ * with a TokenBucketRateLimiter each: the IP limit catches a client trying many usernames, the username limit many
+ * clients trying one account. A request over a limit is rejected with 429 and Retry-After (seconds), before anything
+ * is read from the database.
+ * The username is read from the JSON body, which is kept for the controller. Bodies larger than MAX_BODY_SIZE are
+ * rejected with 413, a user is far smaller. The idle buckets are dropped periodically.
+ * The client IP is the remote address, behind a proxy server.forward-headers-strategy has to be set for it.
+ */
+@Component
+@ConditionalOnProperty("soprafs21.rate-limit.enabled")
+public class RateLimitFilter extends OncePerRequestFilter {
+
+    static final int MAX_BODY_SIZE = 8 * 1024;
+
+    private final Logger log = LoggerFactory.getLogger(RateLimitFilter.class);
+
+    private final TokenBucketRateLimiter ipLimiter;
+
+    private final TokenBucketRateLimiter usernameLimiter;
+
+    private final ObjectMapper objectMapper;
+
+    public RateLimitFilter(ObjectMapper objectMapper,
+                           @Value("${soprafs21.rate-limit.ip.per-second:10}") double ipPerSecond,
+                           @Value("${soprafs21.rate-limit.ip.burst:50}") int ipBurst,
+                           @Value("${soprafs21.rate-limit.username.per-second:1}") double usernamePerSecond,
+                           @Value("${soprafs21.rate-limit.username.burst:5}") int usernameBurst,
+                           @Value("${soprafs21.rate-limit.max-keys:100000}") int maxKeys) {
+        this.objectMapper = objectMapper;
+        this.ipLimiter = new TokenBucketRateLimiter(ipPerSecond, ipBurst, maxKeys);
+        this.usernameLimiter = new TokenBucketRateLimiter(usernamePerSecond, usernameBurst, maxKeys);
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        long wait = ipLimiter.tryAcquire(request.getRemoteAddr());
+        if (wait > 0) {
+            reject(response, wait);
+            return;
+        }
+
+        byte[] body = request.getInputStream().readNBytes(MAX_BODY_SIZE + 1);
+        if (body.length > MAX_BODY_SIZE) {
+            response.sendError(HttpStatus.PAYLOAD_TOO_LARGE.value(), "The request body is too large");
+            return;
+        }
+        String username = username(body);
+        if (username != null) {
+            wait = usernameLimiter.tryAcquire(username);
+            if (wait > 0) {
+                reject(response, wait);
+                return;
+            }
+        }
+
+        filterChain.doFilter(new CachedBodyRequest(request, body), response);
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        String path = request.getServletPath();
+        String method = request.getMethod();
+        return !((HttpMethod.PUT.matches(method) && "/login".equals(path))
+                || (HttpMethod.POST.matches(method) && "/users".equals(path)));
+    }
+
+    @Scheduled(fixedDelayString = "${soprafs21.rate-limit.eviction-interval-ms:60000}")
+    public void evictIdleKeys() {
+        int evicted = ipLimiter.evictIdle() + usernameLimiter.evictIdle();
+        log.debug("Dropped {} idle rate limit buckets, {} left", evicted, ipLimiter.size() + usernameLimiter.size());
+    }
+
+    // null if the body is no JSON object with a username, the controller answers it
+    private String username(byte[] body) {
+        try {
+            JsonNode username = objectMapper.readTree(body).path("username");
+            return username.isTextual() ? username.asText() : null;
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void reject(HttpServletResponse response, long waitNanos) throws IOException {
+        long seconds = Math.max(1, (waitNanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+        response.setHeader(HttpHeaders.RETRY_AFTER, Long.toString(seconds));
+        response.sendError(HttpStatus.TOO_MANY_REQUESTS.value(), "Too many requests, retry later");
+    }
+
+    // the request with the body that was read already
+    private static final class CachedBodyRequest extends HttpServletRequestWrapper {
+
+        private final byte[] body;
+
+        private CachedBodyRequest(HttpServletRequest request, byte[] body) {
+            super(request);
+            this.body = body;
+        }
+
+        @Override
+        public ServletInputStream getInputStream() {
+            ByteArrayInputStream input = new ByteArrayInputStream(body);
+            return new ServletInputStream() {
+                @Override
+                public int read() {
+                    return input.read();
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) {
+                    return input.read(buffer, offset, length);
+                }
+
+                @Override
+                public boolean isFinished() {
+                    return input.available() == 0;
+                }
+
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+
+                // the body is in memory already, the listener can read all of it right away
+                @Override
+                public void setReadListener(ReadListener readListener) {
+                    try {
+                        if (!isFinished()) {
+                            readListener.onDataAvailable();
+                        }
+                        if (isFinished()) {
+                            readListener.onAllDataRead();
+                        }
+                    }
+                    catch (IOException e) {
+                        readListener.onError(e);
+                    }
+                }
+            };
+        }
+
+        @Override
+        public BufferedReader getReader() {
+            String encoding = getCharacterEncoding();
+            Charset charset = encoding != null ? Charset.forName(encoding) : StandardCharsets.UTF_8;
+            return new BufferedReader(new InputStreamReader(getInputStream(), charset));
+        }
+
+        @Override
+        public int getContentLength() {
+            return body.length;
+        }
+
+        @Override
+        public long getContentLengthLong() {
+            return body.length;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package ch.uzh.ifi.hase.soprafs21.filter;
+
+import ch.uzh.ifi.hase.soprafs21.service.TokenIndex;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Token Authentication Filter
+ * Checks the token in the Authorization header ("Bearer <token>" or just the token) against the TokenIndex.
+ * A known token puts the id of its user into the request attribute AUTHENTICATED_USER_ID.
+ * Requests without a known token (none, or one of a session that ended) are let through anonymously unless
+ * soprafs21.auth.token-required is set, then they are rejected with 401. Registering and logging in never need a token.
+ */
+@Component
+public class TokenAuthenticationFilter extends OncePerRequestFilter {
+
+    public static final String AUTHENTICATED_USER_ID = TokenAuthenticationFilter.class.getName() + ".userId";
+
+    private static final String BEARER_PREFIX = "Bearer ";
+
+    private final TokenIndex tokenIndex;
+
+    private final boolean tokenRequired;
+
+    public TokenAuthenticationFilter(TokenIndex tokenIndex, @Value("${soprafs21.auth.token-required:false}") boolean tokenRequired) {
+        this.tokenIndex = tokenIndex;
+        this.tokenRequired = tokenRequired;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        String authorization = request.getHeader(HttpHeaders.AUTHORIZATION);
+        String token = authorization == null || authorization.isBlank() ? null
+                : authorization.startsWith(BEARER_PREFIX) ? authorization.substring(BEARER_PREFIX.length()).trim() : authorization.trim();
+
+        Long userId = token == null ? null : tokenIndex.lookup(token);
+        if (userId != null) {
+            request.setAttribute(AUTHENTICATED_USER_ID, userId);
+            filterChain.doFilter(request, response);
+            return;
+        }
+
+        // a client still sending the token of an ended session (logout, idle expiry) must be able to log in again
+        if (tokenRequired && !isPublic(request)) {
+            response.sendError(HttpStatus.UNAUTHORIZED.value(), token == null ? "A token is required" : "The token is not valid");
+            return;
+        }
+        filterChain.doFilter(request, response);
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        // CORS preflight requests never carry the Authorization header
+        return HttpMethod.OPTIONS.matches(request.getMethod());
+    }
+
+    private boolean isPublic(HttpServletRequest request) {
+        String path = request.getServletPath();
+        String method = request.getMethod();
+        return (HttpMethod.POST.matches(method) && "/users".equals(path))
+                || (HttpMethod.PUT.matches(method) && "/login".equals(path))
+                || (HttpMethod.GET.matches(method) && "/".equals(path))
+                // health checks and the Prometheus scraper do not log in
+                || (HttpMethod.GET.matches(method) && ("/actuator/health".equals(path) || "/actuator/prometheus".equals(path)));
+    }
+}
@@ -0,0 +1,116 @@
+package ch.uzh.ifi.hase.soprafs21.filter;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Token Bucket Rate Limiter
+ * One token bucket per key (e.g. a client IP), refilled with permitsPerSecond tokens and holding at most burst tokens.
+ * A bucket is a single AtomicLong, the time at which it would be full again (the theoretical arrival time of GCRA,
+ * which behaves exactly like a token bucket). Taking a token is one compare-and-set, there are no locks, so requests
+ * of different keys never wait for each other and requests of the same key only retry the CAS.
+ * A full bucket (the time lies in the past) is the same as no bucket, so idle keys can be dropped without changing
+ * anything: evictIdle does that periodically. The number of keys is bounded by maxKeys, a new key beyond it shares
+ * one of OVERFLOW_BUCKETS buckets with the other keys of the same hash until the next eviction made room. So the memory
+ * stays bounded and a flood of new keys is still limited, the keys of a shared bucket just get the tokens of one key.
+ * The hash is seeded per limiter, so a client cannot pick keys that share the bucket of someone else's key.
+ */
+public class TokenBucketRateLimiter {
+
+    static final int OVERFLOW_BUCKETS = 4096;
+
+    private final ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+
+    // the buckets of the keys beyond maxKeys, created on first use
+    private final AtomicReferenceArray<AtomicLong> overflowBuckets = new AtomicReferenceArray<>(OVERFLOW_BUCKETS);
+
+    private final long overflowSeed = ThreadLocalRandom.current().nextLong();
+
+    // the time one token takes to refill
+    private final long intervalNanos;
+
+    // how far the bucket may be ahead of now: all tokens but one taken
+    private final long toleranceNanos;
+
+    private final int maxKeys;
+
+    public TokenBucketRateLimiter(double permitsPerSecond, int burst, int maxKeys) {
+        if (permitsPerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("The rate and the burst must be positive");
+        }
+        this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+        this.toleranceNanos = intervalNanos * (burst - 1);
+        this.maxKeys = maxKeys;
+    }
+
+    /**
+     * Takes a token from the bucket of the key.
+     *
+     * @return 0 if there was a token, otherwise the nanoseconds until there is one again
+     */
+    public long tryAcquire(String key) {
+        return tryAcquire(key, System.nanoTime());
+    }
+
+    long tryAcquire(String key, long now) {
+        AtomicLong bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = buckets.size() < maxKeys ? buckets.computeIfAbsent(key, k -> new AtomicLong(now)) : overflowBucket(key, now);
+        }
+        while (true) {
+            long full = bucket.get();
+            long wait = full - now - toleranceNanos;
+            if (wait > 0) {
+                return wait;
+            }
+            // a bucket that has been full for a while starts from now, it does not save up tokens
+            long next = (full - now < 0 ? now : full) + intervalNanos;
+            if (bucket.compareAndSet(full, next)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Drops the buckets that are full again. A key that takes a token at the same time may get a full bucket
+     * once more, i.e. at most one token too many.
+     *
+     * @return the number of dropped keys
+     */
+    public int evictIdle() {
+        return evictIdle(System.nanoTime());
+    }
+
+    int evictIdle(long now) {
+        int evicted = 0;
+        for (Map.Entry<String, AtomicLong> entry : buckets.entrySet()) {
+            if (entry.getValue().get() - now <= 0 && buckets.remove(entry.getKey(), entry.getValue())) {
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    public int size() {
+        return buckets.size();
+    }
+
+    private AtomicLong overflowBucket(String key, long now) {
+        // FNV-1a over the characters, starting from the seed
+        long hash = overflowSeed;
+        for (int i = 0; i < key.length(); i++) {
+            hash = (hash ^ key.charAt(i)) * 0x100000001b3L;
+        }
+        int index = (int) ((hash ^ (hash >>> 32)) & (OVERFLOW_BUCKETS - 1));
+        AtomicLong bucket = overflowBuckets.get(index);
+        if (bucket == null) {
+            overflowBuckets.compareAndSet(index, null, new AtomicLong(now));
+            bucket = overflowBuckets.get(index);
+        }
+        return bucket;
+    }
+}
@@ -0,0 +1,54 @@
+package ch.uzh.ifi.hase.soprafs21.repository;
+
+/**
+ * Query Count
+ * Statements and rows of the current unit of work (usually one HTTP request) on the current thread,
+ * counted by the QueryCountingDataSource between start() and stop().
+ * Work handed to other threads (e.g. the credential check of the login) is not counted.
+ */
+public final class QueryCount {
+
+    private static final ThreadLocal<QueryCount> CURRENT = new ThreadLocal<>();
+
+    private long statements;
+
+    private long rows;
+
+    private QueryCount() {
+    }
+
+    public static QueryCount start() {
+        QueryCount queryCount = new QueryCount();
+        CURRENT.set(queryCount);
+        return queryCount;
+    }
+
+    /**
+     * @return the count of the current thread, null if nothing is counted on this thread
+     */
+    public static QueryCount current() {
+        return CURRENT.get();
+    }
+
+    public static void stop() {
+        CURRENT.remove();
+    }
+
+    void addStatement() {
+        statements++;
+    }
+
+    void addRows(long count) {
+        rows += count;
+    }
+
+    // executed statements, a JDBC batch counts as one round trip
+    public long getStatements() {
+        return statements;
+    }
+
+    // rows read from result sets plus rows changed by updates
+    public long getRows() {
+        return rows;
+    }
+}
@@ -0,0 +1,57 @@
+package ch.uzh.ifi.hase.soprafs21.repository;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * User Field
+ * The attributes of a user that can be asked for with the fields parameter (sparse fieldsets).
+ * Only the columns of the requested fields are selected, the id is always part of the result.
+ */
+public enum UserField {
+
+    ID("id"),
+    NAME("name"),
+    USERNAME("username"),
+    STATUS("status"),
+    CREATION_DATE("creationDate"),
+    BIRTHDAY("birthday"),
+    VERSION("version");
+
+    private final String attribute;
+
+    UserField(String attribute) {
+        this.attribute = attribute;
+    }
+
+    // the name of the attribute in the User entity and in the API representation
+    public String getAttribute() {
+        return attribute;
+    }
+
+    /**
+     * Parses a comma separated list of attribute names, e.g. "username,status".
+     *
+     * @throws IllegalArgumentException if one of the names is not a field of the user
+     */
+    public static Set<UserField> parse(String fields) {
+        Set<UserField> result = EnumSet.of(ID);
+        for (String name : fields.split(",")) {
+            String attribute = name.trim();
+            if (attribute.isEmpty()) {
+                continue;
+            }
+            result.add(fromAttribute(attribute));
+        }
+        return result;
+    }
+
+    private static UserField fromAttribute(String attribute) {
+        for (UserField field : values()) {
+            if (field.attribute.equals(attribute)) {
+                return field;
+            }
+        }
+        throw new IllegalArgumentException(String.format("Unknown field %s", attribute));
+    }
+}
@@ -0,0 +1,13 @@
+package ch.uzh.ifi.hase.soprafs21.repository;
+
+/**
+ * Projection of a user on its id, username and name, used to fill the search index without loading whole users.
+ */
+public interface UserNames {
+
+    Long getId();
+
+    String getUsername();
+
+    String getName();
+}
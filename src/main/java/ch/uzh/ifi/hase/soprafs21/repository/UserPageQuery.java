@@ -0,0 +1,72 @@
+package ch.uzh.ifi.hase.soprafs21.repository;
+
+import ch.uzh.ifi.hase.soprafs21.constant.UserStatus;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * User Page Query
+ * Describes one page of the user list: the users with an id greater than the cursor (after),
+ * optionally filtered by status and by a creation time range [createdFrom, createdTo).
+ * Null filters are not applied.
+ * The status filter can be corrected for status changes that are not written yet (see withPendingStatus).
+ */
+public class UserPageQuery {
+
+    private Long after;
+    private int limit;
+    private UserStatus status;
+    private LocalDateTime createdFrom;
+    private LocalDateTime createdTo;
+    private Collection<Long> pendingWithStatus = Set.of();
+    private Collection<Long> pendingWithOtherStatus = Set.of();
+
+    public UserPageQuery(Long after, int limit, UserStatus status, LocalDateTime createdFrom, LocalDateTime createdTo) {
+        this.after = after;
+        this.limit = limit;
+        this.status = status;
+        this.createdFrom = createdFrom;
+        this.createdTo = createdTo;
+    }
+
+    public Long getAfter() {
+        return after;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public UserStatus getStatus() {
+        return status;
+    }
+
+    public LocalDateTime getCreatedFrom() {
+        return createdFrom;
+    }
+
+    public LocalDateTime getCreatedTo() {
+        return createdTo;
+    }
+
+    /**
+     * The users whose status in the table is about to change (write-behind): the ones changing to the filtered status
+     * match the filter whatever the table says, the ones changing to another status do not.
+     */
+    public UserPageQuery withPendingStatus(Collection<Long> pendingWithStatus, Collection<Long> pendingWithOtherStatus) {
+        UserPageQuery query = new UserPageQuery(after, limit, status, createdFrom, createdTo);
+        query.pendingWithStatus = pendingWithStatus;
+        query.pendingWithOtherStatus = pendingWithOtherStatus;
+        return query;
+    }
+
+    public Collection<Long> getPendingWithStatus() {
+        return pendingWithStatus;
+    }
+
+    public Collection<Long> getPendingWithOtherStatus() {
+        return pendingWithOtherStatus;
+    }
+}
@@ -1,16 +1,67 @@
 package ch.uzh.ifi.hase.soprafs21.repository;
 
+import ch.uzh.ifi.hase.soprafs21.config.SecondLevelCacheConfig;
+import ch.uzh.ifi.hase.soprafs21.constant.UserStatus;
 import ch.uzh.ifi.hase.soprafs21.entity.User;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import javax.persistence.QueryHint;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.hibernate.jpa.QueryHints.HINT_CACHEABLE;
+import static org.hibernate.jpa.QueryHints.HINT_CACHE_REGION;
+import static org.hibernate.jpa.QueryHints.HINT_FETCH_SIZE;
+import static org.hibernate.jpa.QueryHints.HINT_READONLY;
+
 @Repository("userRepository")
-public interface UserRepository extends JpaRepository<User, Long> {
+public interface UserRepository extends JpaRepository<User, Long>, UserRepositoryCustom {
     User findByName(String name);
     //TODO Here I can change ByName to ByPassword and it should work
 
+    // cached, the lookups of login and registration repeat for the same usernames
+    @QueryHints({@QueryHint(name = HINT_CACHEABLE, value = "true"),
+            @QueryHint(name = HINT_CACHE_REGION, value = SecondLevelCacheConfig.USERNAME_QUERY_REGION)})
     User findByUsername(String username);
 
+    // set based uniqueness check: which of the given usernames are taken already
+    @Query("select u.username from User u where u.username in :usernames")
+    List<String> findExistingUsernames(@Param("usernames") Collection<String> usernames);
+
+    @QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = "1000"))
+    @Query("select u.username from User u")
+    Stream<String> streamAllUsernames();
+
+    @QueryHints(@QueryHint(name = HINT_FETCH_SIZE, value = "1000"))
+    @Query("select u.id as id, u.username as username, u.name as name from User u")
+    Stream<UserNames> streamAllNames();
+
+    @Query("select u.id as id, u.token as token from User u where u.status = :status")
+    List<UserToken> findTokensByStatus(@Param("status") UserStatus status);
+
+    // answered from the index on status and id alone, the rows of the other status are not touched
+    @Query("select u.id from User u where u.status = :status")
+    List<Long> findIdsByStatus(@Param("status") UserStatus status);
+
+    /**
+     * Streams all users ordered by id. The rows are fetched from the database in chunks of the fetch size,
+     * the stream has to be consumed and closed inside a transaction.
+     */
+    @QueryHints({@QueryHint(name = HINT_FETCH_SIZE, value = "500"), @QueryHint(name = HINT_READONLY, value = "true")})
+    @Query("select u from User u order by u.id")
+    Stream<User> streamAll();
 
+    /**
+     * The users changed after the since sequence number, up to and including until, in the order of their changes.
+     * The pageable only limits the number of users.
+     */
+    @Query("select u from User u where u.changeSeq > :since and u.changeSeq <= :until order by u.changeSeq")
+    List<User> findChanges(@Param("since") long since, @Param("until") long until, Pageable pageable);
 
 }
@@ -0,0 +1,83 @@
+package ch.uzh.ifi.hase.soprafs21.repository;
+
+import ch.uzh.ifi.hase.soprafs21.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs21.entity.User;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.persistence.Tuple;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Queries of the UserRepository that are built at runtime and therefore cannot be derived by Spring Data.
+ *
+ * @see UserRepositoryImpl
+ */
+public interface UserRepositoryCustom {
+
+    /**
+     * Returns one page of users ordered by id, starting after the cursor of the query.
+     * Only the filters that are set are part of the statement, so the indexes on the USER table can be used.
+     */
+    List<User> findPage(UserPageQuery query);
+
+    /**
+     * Same as findPage, but only the columns of the given fields are selected (one tuple element per field,
+     * with the attribute name as alias). No entities are loaded, so nothing is kept in the persistence context.
+     * A null query returns all users ordered by id.
+     */
+    List<Tuple> findPageFields(UserPageQuery query, Set<UserField> fields);
+
+    /**
+     * Selects the columns of the given fields of a single user.
+     */
+    Optional<Tuple> findFieldsById(Long id, Set<UserField> fields);
+
+    /**
+     * Sets the status of a single user without loading the entity.
+     *
+     * @return the number of updated rows, 0 if there is no user with this id
+     */
+    @Transactional
+    int updateStatus(Long id, UserStatus status, long changeSeq);
+
+    /**
+     * Sets the status and the token of a single user without loading the entity, for a login.
+     *
+     * @return the number of updated rows, 0 if there is no user with this id
+     */
+    @Transactional
+    int updateStatusAndToken(Long id, UserStatus status, String token, long changeSeq);
+
+    /**
+     * Sets the status of several users with one update statement (per 500 users), each user with its own change
+     * sequence number.
+     *
+     * @return the number of updated rows
+     */
+    @Transactional
+    int updateStatuses(Map<Long, Long> changeSeqByUserId, UserStatus status);
+
+    /**
+     * Updates the editable profile fields of a single user without loading the entity.
+     * A null value keeps the stored value. With a version the user is only updated if it still has this version
+     * (optimistic locking), either way the version is incremented.
+     *
+     * @return the number of updated rows, 0 if there is no user with this id (and version)
+     */
+    @Transactional
+    int updateProfile(Long id, String username, String birthday, long changeSeq, Long version);
+
+    /**
+     * Removes the user from the persistence context, so it can be garbage collected while a stream is still open.
+     */
+    void detach(User user);
+
+    /**
+     * Removes the users from the second-level cache, for changes written past Hibernate (e.g. JDBC batches).
+     */
+    void evict(Collection<Long> ids);
+}
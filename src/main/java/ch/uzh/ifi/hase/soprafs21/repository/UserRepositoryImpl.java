@@ -0,0 +1,276 @@
+package ch.uzh.ifi.hase.soprafs21.repository;
+
+import ch.uzh.ifi.hase.soprafs21.config.SecondLevelCacheConfig;
+import ch.uzh.ifi.hase.soprafs21.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs21.entity.User;
+import org.hibernate.Cache;
+import org.hibernate.Session;
+import org.hibernate.cache.spi.access.EntityDataAccess;
+import org.hibernate.cache.spi.access.SoftLock;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.query.NativeQuery;
+import org.hibernate.type.LongType;
+import org.hibernate.type.StringType;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Tuple;
+import javax.persistence.TypedQuery;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+import javax.persistence.criteria.Selection;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Implementation of the custom UserRepository queries, picked up by Spring Data through the Impl suffix.
+ */
+public class UserRepositoryImpl implements UserRepositoryCustom {
+
+    static final String UPDATE_STATUS_SQL = "update USER set STATUS = ?1, CHANGE_SEQ = ?2 where ID = ?3";
+
+    static final String UPDATE_STATUS_TOKEN_SQL = "update USER set STATUS = ?1, TOKEN = ?2, CHANGE_SEQ = ?3 where ID = ?4";
+
+    // plain JDBC parameters, run on the connection of the session. Every user keeps its own change sequence number
+    // (the changes feed pages by it), the case expression picks it by id.
+    static final String UPDATE_STATUSES_SQL = "update USER set STATUS = ?, CHANGE_SEQ = case ID %s end where ID in (%s)";
+
+    // users per statement, bounds the number of parameters
+    static final int UPDATE_STATUSES_CHUNK = 500;
+
+    static final String UPDATE_PROFILE_SQL = "update USER set USERNAME = coalesce(?1, USERNAME), BIRTHDAY = coalesce(?2, BIRTHDAY), "
+            + "CHANGE_SEQ = ?3, VERSION = coalesce(VERSION, 0) + 1 where ID = ?4";
+
+    private static final String VERSION_CONDITION = " and coalesce(VERSION, 0) = ?5";
+
+    // The updates of a single row are synchronized with this query space instead of the USER table. For an update of
+    // the table Hibernate drops all cached users and all cached query results of it, i.e. with every login and logout.
+    // Only the updated user is locked in the cache instead, and the username lookups are dropped if the username changed.
+    private static final String SINGLE_ROW_SPACE = "USER_ROW";
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Override
+    public List<User> findPage(UserPageQuery query) {
+        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+        CriteriaQuery<User> criteria = builder.createQuery(User.class);
+        Root<User> user = criteria.from(User.class);
+
+        criteria.select(user)
+                .where(pagePredicates(builder, user, query))
+                .orderBy(builder.asc(user.get("id")));
+
+        return entityManager.createQuery(criteria)
+                .setMaxResults(query.getLimit())
+                .getResultList();
+    }
+
+    @Override
+    public List<Tuple> findPageFields(UserPageQuery query, Set<UserField> fields) {
+        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+        CriteriaQuery<Tuple> criteria = builder.createTupleQuery();
+        Root<User> user = criteria.from(User.class);
+
+        criteria.multiselect(selections(user, fields)).orderBy(builder.asc(user.get("id")));
+        if (query != null) {
+            criteria.where(pagePredicates(builder, user, query));
+        }
+
+        TypedQuery<Tuple> typedQuery = entityManager.createQuery(criteria);
+        if (query != null) {
+            typedQuery.setMaxResults(query.getLimit());
+        }
+        return typedQuery.getResultList();
+    }
+
+    @Override
+    public Optional<Tuple> findFieldsById(Long id, Set<UserField> fields) {
+        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+        CriteriaQuery<Tuple> criteria = builder.createTupleQuery();
+        Root<User> user = criteria.from(User.class);
+
+        criteria.multiselect(selections(user, fields)).where(builder.equal(user.get("id"), id));
+
+        return entityManager.createQuery(criteria).getResultStream().findFirst();
+    }
+
+    @Override
+    public int updateStatus(Long id, UserStatus status, long changeSeq) {
+        NativeQuery<?> update = singleRowUpdate(UPDATE_STATUS_SQL)
+                .setParameter(1, status.ordinal())
+                .setParameter(2, changeSeq)
+                .setParameter(3, id);
+        return execute(update, id, false);
+    }
+
+    @Override
+    public int updateStatusAndToken(Long id, UserStatus status, String token, long changeSeq) {
+        NativeQuery<?> update = singleRowUpdate(UPDATE_STATUS_TOKEN_SQL)
+                .setParameter(1, status.ordinal())
+                .setParameter(2, token)
+                .setParameter(3, changeSeq)
+                .setParameter(4, id);
+        return execute(update, id, false);
+    }
+
+    @Override
+    public int updateStatuses(Map<Long, Long> changeSeqByUserId, UserStatus status) {
+        entityManager.flush();
+        lockCachedUsers(changeSeqByUserId.keySet());
+        List<Map.Entry<Long, Long>> entries = new ArrayList<>(changeSeqByUserId.entrySet());
+        int updatedRows = entityManager.unwrap(Session.class).doReturningWork(connection -> {
+            int rows = 0;
+            for (int from = 0; from < entries.size(); from += UPDATE_STATUSES_CHUNK) {
+                List<Map.Entry<Long, Long>> chunk = entries.subList(from, Math.min(from + UPDATE_STATUSES_CHUNK, entries.size()));
+                String sql = String.format(UPDATE_STATUSES_SQL,
+                        String.join(" ", Collections.nCopies(chunk.size(), "when ? then ?")),
+                        String.join(", ", Collections.nCopies(chunk.size(), "?")));
+                try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                    int parameter = 1;
+                    statement.setInt(parameter++, status.ordinal());
+                    for (Map.Entry<Long, Long> entry : chunk) {
+                        statement.setLong(parameter++, entry.getKey());
+                        statement.setLong(parameter++, entry.getValue());
+                    }
+                    for (Map.Entry<Long, Long> entry : chunk) {
+                        statement.setLong(parameter++, entry.getKey());
+                    }
+                    rows += statement.executeUpdate();
+                }
+            }
+            return rows;
+        });
+        entityManager.clear();
+        return updatedRows;
+    }
+
+    @Override
+    public int updateProfile(Long id, String username, String birthday, long changeSeq, Long version) {
+        // typed, so a null value is bound as null of the column type
+        NativeQuery<?> update = singleRowUpdate(version == null ? UPDATE_PROFILE_SQL : UPDATE_PROFILE_SQL + VERSION_CONDITION)
+                .setParameter(1, username, StringType.INSTANCE)
+                .setParameter(2, birthday, StringType.INSTANCE)
+                .setParameter(3, changeSeq, LongType.INSTANCE)
+                .setParameter(4, id, LongType.INSTANCE);
+        if (version != null) {
+            update.setParameter(5, version, LongType.INSTANCE);
+        }
+        return execute(update, id, username != null);
+    }
+
+    @Override
+    public void detach(User user) {
+        entityManager.detach(user);
+    }
+
+    @Override
+    public void evict(Collection<Long> ids) {
+        Cache cache = cache();
+        for (Long id : ids) {
+            cache.evictEntityData(User.class, id);
+        }
+    }
+
+    private NativeQuery<?> singleRowUpdate(String sql) {
+        return entityManager.createNativeQuery(sql).unwrap(NativeQuery.class).addSynchronizedQuerySpace(SINGLE_ROW_SPACE);
+    }
+
+    /**
+     * Runs the update like a @Modifying query (pending changes are flushed before, the persistence context
+     * is cleared after). The user is soft-locked in the second-level cache like with an update of the entity, and
+     * the cached username lookups are dropped if the username changed, right away and again after the transaction.
+     */
+    private int execute(NativeQuery<?> update, Long id, boolean usernameChanged) {
+        entityManager.flush();
+        lockCachedUsers(List.of(id));
+        int updatedRows = update.executeUpdate();
+        entityManager.clear();
+
+        if (usernameChanged) {
+            // the cached lookups of the old and of the new username are wrong now
+            evictUsernameLookups();
+            if (TransactionSynchronizationManager.isSynchronizationActive()) {
+                TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                    @Override
+                    public void afterCompletion(int status) {
+                        evictUsernameLookups();
+                    }
+                });
+            }
+        }
+        return updatedRows;
+    }
+
+    /**
+     * Locks the cached users (READ_WRITE) until the transaction completes, like Hibernate does for an update of the
+     * entity. Until then reads miss the cache and do not put the user back, and after it neither do reads of
+     * transactions that started before the unlock, so no read puts the old state back.
+     * A lock taken over a cached user keeps its version and then only lets newer versions in, but a status update does
+     * not change the version. The cached user is removed first, so the lock goes by the time of the unlock.
+     */
+    private void lockCachedUsers(Collection<Long> ids) {
+        SessionImplementor session = entityManager.unwrap(SessionImplementor.class);
+        EntityPersister persister = session.getFactory().getMetamodel().entityPersister(User.class);
+        EntityDataAccess cacheAccess = persister.getCacheAccessStrategy();
+        for (Long id : ids) {
+            Object key = cacheAccess.generateCacheKey(id, persister, session.getFactory(), session.getTenantIdentifier());
+            cacheAccess.evict(key);
+            SoftLock lock = cacheAccess.lockItem(session, key, null);
+            session.getActionQueue().registerProcess((success, completedSession) ->
+                    cacheAccess.unlockItem(completedSession, key, lock));
+        }
+    }
+
+    private void evictUsernameLookups() {
+        cache().evictQueryRegion(SecondLevelCacheConfig.USERNAME_QUERY_REGION);
+    }
+
+    private Cache cache() {
+        return entityManager.getEntityManagerFactory().getCache().unwrap(Cache.class);
+    }
+
+    private static Predicate[] pagePredicates(CriteriaBuilder builder, Root<User> user, UserPageQuery query) {
+        List<Predicate> predicates = new ArrayList<>();
+        if (query.getAfter() != null) {
+            predicates.add(builder.greaterThan(user.get("id"), query.getAfter()));
+        }
+        if (query.getStatus() != null) {
+            Predicate status = builder.equal(user.get("status"), query.getStatus());
+            if (!query.getPendingWithOtherStatus().isEmpty()) {
+                status = builder.and(status, builder.not(user.get("id").in(query.getPendingWithOtherStatus())));
+            }
+            if (!query.getPendingWithStatus().isEmpty()) {
+                status = builder.or(status, user.get("id").in(query.getPendingWithStatus()));
+            }
+            predicates.add(status);
+        }
+        if (query.getCreatedFrom() != null) {
+            predicates.add(builder.greaterThanOrEqualTo(user.get("createdAt"), query.getCreatedFrom()));
+        }
+        if (query.getCreatedTo() != null) {
+            predicates.add(builder.lessThan(user.get("createdAt"), query.getCreatedTo()));
+        }
+        return predicates.toArray(new Predicate[0]);
+    }
+
+    // one column per field, the alias is the attribute name
+    private static List<Selection<?>> selections(Root<User> user, Set<UserField> fields) {
+        List<Selection<?>> selections = new ArrayList<>(fields.size());
+        for (UserField field : fields) {
+            selections.add(user.get(field.getAttribute()).alias(field.getAttribute()));
+        }
+        return selections;
+    }
+}
@@ -0,0 +1,11 @@
+package ch.uzh.ifi.hase.soprafs21.repository;
+
+/**
+ * Projection of a user on its id and token, used to fill the token index without loading whole users.
+ */
+public interface UserToken {
+
+    Long getId();
+
+    String getToken();
+}
@@ -0,0 +1,21 @@
+package ch.uzh.ifi.hase.soprafs21.rest.dto;
+
+public class UserCountDTO {
+
+    private long count;
+
+    public UserCountDTO() {
+    }
+
+    public UserCountDTO(long count) {
+        this.count = count;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public void setCount(long count) {
+        this.count = count;
+    }
+}
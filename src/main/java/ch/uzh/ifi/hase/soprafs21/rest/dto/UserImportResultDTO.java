@@ -0,0 +1,62 @@
+package ch.uzh.ifi.hase.soprafs21.rest.dto;
+
+import ch.uzh.ifi.hase.soprafs21.constant.UserImportStatus;
+
+public class UserImportResultDTO {
+
+    private int index;
+    private String username;
+    private UserImportStatus status;
+    private Long id;
+    private String message;
+
+    public UserImportResultDTO() {
+    }
+
+    public UserImportResultDTO(int index, String username, UserImportStatus status, String message) {
+        this.index = index;
+        this.username = username;
+        this.status = status;
+        this.message = message;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public void setIndex(int index) {
+        this.index = index;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    public UserImportStatus getStatus() {
+        return status;
+    }
+
+    public void setStatus(UserImportStatus status) {
+        this.status = status;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public void setMessage(String message) {
+        this.message = message;
+    }
+}
@@ -0,0 +1,33 @@
+package ch.uzh.ifi.hase.soprafs21.rest.dto;
+
+import ch.uzh.ifi.hase.soprafs21.constant.UserStatus;
+
+public class UserPresenceDTO {
+
+    private Long id;
+    private UserStatus status;
+
+    public UserPresenceDTO() {
+    }
+
+    public UserPresenceDTO(Long id, UserStatus status) {
+        this.id = id;
+        this.status = status;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public UserStatus getStatus() {
+        return status;
+    }
+
+    public void setStatus(UserStatus status) {
+        this.status = status;
+    }
+}
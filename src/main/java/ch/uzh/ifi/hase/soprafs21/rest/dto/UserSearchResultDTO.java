@@ -0,0 +1,41 @@
+package ch.uzh.ifi.hase.soprafs21.rest.dto;
+
+public class UserSearchResultDTO {
+
+    private Long id;
+    private String username;
+    private String name;
+
+    public UserSearchResultDTO() {
+    }
+
+    public UserSearchResultDTO(Long id, String username, String name) {
+        this.id = id;
+        this.username = username;
+        this.name = name;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+}
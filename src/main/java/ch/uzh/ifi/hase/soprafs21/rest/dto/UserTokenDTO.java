@@ -0,0 +1,17 @@
+package ch.uzh.ifi.hase.soprafs21.rest.dto;
+
+/**
+ * The user as returned by registering and logging in, with the token the client authenticates its requests with.
+ */
+public class UserTokenDTO extends UserGetDTO {
+
+    private String token;
+
+    public String getToken() {
+        return token;
+    }
+
+    public void setToken(String token) {
+        this.token = token;
+    }
+}
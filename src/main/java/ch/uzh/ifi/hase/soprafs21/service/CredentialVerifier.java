@@ -0,0 +1,78 @@
+package ch.uzh.ifi.hase.soprafs21.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiPredicate;
+
+/**
+ * Credential Verifier
+ * Checks the credentials of a login on its own pool of threads (one per core by default) with a bounded queue,
+ * so CPU heavy password hashing never runs on the request threads of Tomcat.
+ * If the queue is full the login is rejected right away with 503 instead of waiting.
+ */
+@Component
+public class CredentialVerifier {
+
+    private final ThreadPoolExecutor executor;
+
+    private final BiPredicate<String, String> matcher;
+
+    @Autowired
+    public CredentialVerifier(@Value("${soprafs21.credentials.threads:0}") int threads,
+                              @Value("${soprafs21.credentials.queue-capacity:256}") int queueCapacity) {
+        this(threads > 0 ? threads : Runtime.getRuntime().availableProcessors(), queueCapacity, CredentialVerifier::constantTimeEquals);
+    }
+
+    CredentialVerifier(int threads, int queueCapacity, BiPredicate<String, String> matcher) {
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("credential-verifier-");
+        threadFactory.setDaemon(true);
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), threadFactory, new ThreadPoolExecutor.AbortPolicy());
+        this.matcher = matcher;
+    }
+
+    /**
+     * @param presented the password sent with the login
+     * @param stored    the password as it is stored for the user
+     * @return completes with true if they match, on a thread of the verifier
+     * @throws ResponseStatusException 503 if too many logins are waiting already
+     */
+    public CompletableFuture<Boolean> verify(String presented, String stored) {
+        try {
+            return CompletableFuture.supplyAsync(() -> matcher.test(presented, stored), executor);
+        }
+        catch (RejectedExecutionException e) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Too many logins at the moment, please try again");
+        }
+    }
+
+    public int queuedCount() {
+        return executor.getQueue().size();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    // compares in constant time, so the time of a failed login does not tell how much of the password was right
+    private static boolean constantTimeEquals(String presented, String stored) {
+        if (presented == null || stored == null) {
+            return false;
+        }
+        return MessageDigest.isEqual(presented.getBytes(StandardCharsets.UTF_8), stored.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,145 @@
+package ch.uzh.ifi.hase.soprafs21.service;
+
+import ch.uzh.ifi.hase.soprafs21.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs21.repository.UserRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Online User Counter
+ * Counts the users that are ONLINE, so GET /users/online/count does not have to read the users.
+ * The UserService reports every status transition. The ids of the online users are kept to count a user only once
+ * (a login of a user that is online already changes nothing), the count itself is a LongAdder: its cells are striped
+ * over the threads, so concurrent logins and logouts do not contend on one counter.
+ * As with the change tracker, a transition in a transaction is only counted once the transaction committed.
+ * The counter is filled at startup and reconciled periodically with the USER table (soprafs21.online-count.*),
+ * so users changed past the service (e.g. directly in the database) are not off forever.
+ */
+@Component
+@Lazy(false)
+public class OnlineUserCounter {
+
+    private final Logger log = LoggerFactory.getLogger(OnlineUserCounter.class);
+
+    private final Set<Long> onlineUsers = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder count = new LongAdder();
+
+    private final UserRepository userRepository;
+
+    private final UserStatusWriteBehind statusWriteBehind;
+
+    // the users with a transition while a reconciliation runs, their status in memory is newer than the one read
+    private volatile Set<Long> changedWhileReconciling;
+
+    public OnlineUserCounter(@Qualifier("userRepository") UserRepository userRepository, UserStatusWriteBehind statusWriteBehind) {
+        this.userRepository = userRepository;
+        this.statusWriteBehind = statusWriteBehind;
+    }
+
+    public void markOnline(Long userId) {
+        afterCommit(() -> {
+            noteChange(userId);
+            add(userId);
+        });
+    }
+
+    public void markOffline(Long userId) {
+        afterCommit(() -> {
+            noteChange(userId);
+            remove(userId);
+        });
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    /**
+     * Sets the online users to the ONLINE users of the table, with the status changes that are not written yet
+     * laid over them. A user with a transition while the table is read keeps the status it has in memory.
+     *
+     * @return the number of users whose status in memory was wrong
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    @Scheduled(initialDelayString = "${soprafs21.online-count.reconcile-interval-ms:60000}",
+            fixedDelayString = "${soprafs21.online-count.reconcile-interval-ms:60000}")
+    public synchronized int reconcile() {
+        Set<Long> changed = ConcurrentHashMap.newKeySet();
+        changedWhileReconciling = changed;
+        try {
+            Set<Long> onlineInTable = new HashSet<>(userRepository.findIdsByStatus(UserStatus.ONLINE));
+
+            Set<Long> candidates = new HashSet<>(onlineInTable);
+            candidates.addAll(onlineUsers);
+            int corrected = 0;
+            for (Long userId : candidates) {
+                if (changed.contains(userId)) {
+                    continue;
+                }
+                UserStatus pending = statusWriteBehind.pendingStatus(userId);
+                boolean online = pending != null ? pending == UserStatus.ONLINE : onlineInTable.contains(userId);
+                if (online ? add(userId) : remove(userId)) {
+                    corrected++;
+                }
+            }
+            if (corrected > 0) {
+                log.info("Online count reconciled, {} users were off", corrected);
+            }
+            return corrected;
+        }
+        finally {
+            changedWhileReconciling = null;
+        }
+    }
+
+    private boolean add(Long userId) {
+        if (onlineUsers.add(userId)) {
+            count.increment();
+            return true;
+        }
+        return false;
+    }
+
+    private boolean remove(Long userId) {
+        if (onlineUsers.remove(userId)) {
+            count.decrement();
+            return true;
+        }
+        return false;
+    }
+
+    private void noteChange(Long userId) {
+        Set<Long> changed = changedWhileReconciling;
+        if (changed != null) {
+            changed.add(userId);
+        }
+    }
+
+    private static void afterCommit(Runnable change) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    change.run();
+                }
+            });
+        }
+        else {
+            change.run();
+        }
+    }
+}
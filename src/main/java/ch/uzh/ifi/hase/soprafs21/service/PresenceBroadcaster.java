@@ -0,0 +1,250 @@
+package ch.uzh.ifi.hase.soprafs21.service;
+
+import ch.uzh.ifi.hase.soprafs21.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs21.rest.dto.UserPresenceDTO;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Presence Broadcaster
+ * Pushes the status changes of the users to all subscribers of the presence stream (server-sent events).
+ * Publishing never blocks: an event is only put into the bounded buffer of every subscriber and the buffers are
+ * written to the clients on a small pool of sender threads. A subscriber whose buffer is full is dropped,
+ * so one slow client cannot hold up the others.
+ * Writing to a client that does not read blocks once its TCP window is full, until the container gives up on the
+ * connection. A write running longer than soprafs21.presence.write-timeout-ms is therefore given up: the subscriber
+ * is dropped with an error and the pool gets a sender thread more in place of the blocked one, until the write returns.
+ * The writing thread holds the lock of the emitter, so a dropped emitter is only completed by the thread that owns
+ * its sending flag: right away if no sender works on it, otherwise by the sender once its write returned.
+ */
+@Component
+public class PresenceBroadcaster {
+
+    static final String EVENT_NAME = "presence";
+
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+
+    // the subscribers a sender works on, subscribed or dropped in the meantime (e.g. with a full buffer)
+    private final Set<Subscriber> writing = ConcurrentHashMap.newKeySet();
+
+    private final Executor senders;
+
+    private final long writeTimeoutNanos;
+
+    private final int bufferSize;
+
+    private final long timeoutMillis;
+
+    @Autowired
+    public PresenceBroadcaster(@Value("${soprafs21.presence.sender-threads:2}") int senderThreads,
+                               @Value("${soprafs21.presence.buffer-size:256}") int bufferSize,
+                               @Value("${soprafs21.presence.timeout-ms:1800000}") long timeoutMillis,
+                               @Value("${soprafs21.presence.write-timeout-ms:5000}") long writeTimeoutMillis) {
+        this(Executors.newFixedThreadPool(senderThreads, daemonThreadFactory()), bufferSize, timeoutMillis, writeTimeoutMillis);
+    }
+
+    PresenceBroadcaster(Executor senders, int bufferSize, long timeoutMillis, long writeTimeoutMillis) {
+        this.senders = senders;
+        this.bufferSize = bufferSize;
+        this.timeoutMillis = timeoutMillis;
+        this.writeTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(writeTimeoutMillis);
+    }
+
+    public SseEmitter subscribe() {
+        return subscribe(new SseEmitter(timeoutMillis));
+    }
+
+    SseEmitter subscribe(SseEmitter emitter) {
+        Subscriber subscriber = new Subscriber(emitter, bufferSize);
+        subscribers.add(subscriber);
+
+        emitter.onCompletion(() -> subscribers.remove(subscriber));
+        emitter.onTimeout(() -> drop(subscriber));
+        emitter.onError(error -> subscribers.remove(subscriber));
+        return emitter;
+    }
+
+    public void publish(Long userId, UserStatus status) {
+        UserPresenceDTO event = new UserPresenceDTO(userId, status);
+        for (Subscriber subscriber : subscribers) {
+            if (subscriber.buffer.offer(event)) {
+                scheduleSend(subscriber);
+            }
+            else {
+                drop(subscriber);
+            }
+        }
+    }
+
+    public int subscriberCount() {
+        return subscribers.size();
+    }
+
+    /**
+     * Gives up the writes that are running for longer than the write timeout.
+     *
+     * @return the number of subscribers dropped
+     */
+    @Scheduled(fixedDelayString = "${soprafs21.presence.write-timeout-ms:5000}")
+    public int dropBlockedSubscribers() {
+        return dropBlockedSubscribers(System.nanoTime());
+    }
+
+    synchronized int dropBlockedSubscribers(long now) {
+        int dropped = 0;
+        for (Subscriber subscriber : writing) {
+            long writeStarted = subscriber.writeStarted;
+            if (writeStarted == 0 || now - writeStarted <= writeTimeoutNanos || subscriber.blocked) {
+                continue;
+            }
+            subscriber.blocked = true;
+            resizeSenders(1);
+            drop(subscriber, new TimeoutException("The client did not read the presence stream"));
+            dropped++;
+        }
+        return dropped;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        for (Subscriber subscriber : subscribers) {
+            drop(subscriber);
+        }
+        if (senders instanceof ExecutorService) {
+            ((ExecutorService) senders).shutdownNow();
+        }
+    }
+
+    // at most one sender works on a subscriber at a time, so its events stay in order
+    private void scheduleSend(Subscriber subscriber) {
+        if (subscriber.sending.compareAndSet(false, true)) {
+            senders.execute(() -> send(subscriber));
+        }
+    }
+
+    private void send(Subscriber subscriber) {
+        writing.add(subscriber);
+        try {
+            UserPresenceDTO event;
+            while ((event = subscriber.buffer.poll()) != null) {
+                subscriber.writeStarted = System.nanoTime();
+                subscriber.emitter.send(SseEmitter.event().name(EVENT_NAME).data(event, MediaType.APPLICATION_JSON));
+                subscriber.writeStarted = 0;
+            }
+        }
+        catch (IOException | IllegalStateException e) {
+            // the client went away or the emitter is already completed
+            drop(subscriber);
+        }
+        finally {
+            subscriber.writeStarted = 0;
+            releaseWriting(subscriber);
+            subscriber.sending.set(false);
+        }
+
+        // dropped while writing
+        completeIfClosed(subscriber);
+        // an event may have come in after the last poll but before sending was reset
+        if (!subscriber.closed && !subscriber.buffer.isEmpty()) {
+            scheduleSend(subscriber);
+        }
+    }
+
+    private void drop(Subscriber subscriber) {
+        drop(subscriber, null);
+    }
+
+    private void drop(Subscriber subscriber, Throwable error) {
+        if (subscribers.remove(subscriber)) {
+            subscriber.buffer.clear();
+            subscriber.error = error;
+            subscriber.closed = true;
+            completeIfClosed(subscriber);
+        }
+    }
+
+    // the sending flag stays set, nothing is sent to the subscriber anymore
+    private void completeIfClosed(Subscriber subscriber) {
+        if (subscriber.closed && subscriber.sending.compareAndSet(false, true)) {
+            if (subscriber.error != null) {
+                subscriber.emitter.completeWithError(subscriber.error);
+            }
+            else {
+                subscriber.emitter.complete();
+            }
+        }
+    }
+
+    private synchronized void releaseWriting(Subscriber subscriber) {
+        writing.remove(subscriber);
+        if (subscriber.blocked) {
+            // the write was given up, the thread that replaced this one is not needed anymore
+            resizeSenders(-1);
+        }
+    }
+
+    // keeps the number of sender threads that are not blocked the same
+    private synchronized void resizeSenders(int delta) {
+        if (senders instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) senders;
+            if (delta > 0) {
+                pool.setMaximumPoolSize(pool.getMaximumPoolSize() + delta);
+                pool.setCorePoolSize(pool.getCorePoolSize() + delta);
+            }
+            else {
+                pool.setCorePoolSize(pool.getCorePoolSize() + delta);
+                pool.setMaximumPoolSize(pool.getMaximumPoolSize() + delta);
+            }
+        }
+    }
+
+    private static CustomizableThreadFactory daemonThreadFactory() {
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("presence-sender-");
+        threadFactory.setDaemon(true);
+        return threadFactory;
+    }
+
+    private static final class Subscriber {
+
+        private final SseEmitter emitter;
+
+        private final BlockingQueue<UserPresenceDTO> buffer;
+
+        private final AtomicBoolean sending = new AtomicBoolean();
+
+        // when the running write started, 0 if there is none
+        private volatile long writeStarted;
+
+        // the running write was given up, guarded by the broadcaster
+        private boolean blocked;
+
+        // dropped, the emitter is completed (with the error, if there is one) as soon as no sender works on it
+        private volatile boolean closed;
+
+        private volatile Throwable error;
+
+        private Subscriber(SseEmitter emitter, int bufferSize) {
+            this.emitter = emitter;
+            this.buffer = new ArrayBlockingQueue<>(bufferSize);
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package ch.uzh.ifi.hase.soprafs21.service;
+
+import ch.uzh.ifi.hase.soprafs21.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs21.repository.UserRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Session Expiry
+ * Tracks when the logged in users were last seen (login or heartbeat) and finds the ones idle for longer than the
+ * idle timeout (soprafs21.session.*), so users who closed the browser without logging out do not stay ONLINE.
+ * The sessions are kept in a hashed timing wheel: one slot per tick, a session sits in the slot of the tick its
+ * deadline falls into, and each tick only the sessions of its slot are looked at. A heartbeat only sets the last-seen
+ * time of the session, it does not move the session in the wheel: when the slot comes up, a session that was seen
+ * since is put into the slot of its new deadline instead of being expired.
+ * The wheel has one slot more than the ticks of the idle timeout, so a deadline never falls into the slot being
+ * looked at. A session that is stopped (logout) is dropped from its slot when the slot comes up.
+ * The tick runs here, the expired users are handed to the UserService to be logged out. The UserService is looked up
+ * only then, so the tick runs even where beans are created lazily (faststart profile).
+ */
+@Component
+@Lazy(false)
+public class SessionExpiry {
+
+    private final Logger log = LoggerFactory.getLogger(SessionExpiry.class);
+
+    private final ConcurrentHashMap<Long, Session> sessions = new ConcurrentHashMap<>();
+
+    private final List<Set<Long>> wheel;
+
+    private final long idleTimeoutMillis;
+
+    private final long tickMillis;
+
+    private final UserRepository userRepository;
+
+    private final ObjectProvider<UserService> userService;
+
+    // the last tick whose slot was looked at, guarded by this
+    private long currentTick;
+
+    @Autowired
+    public SessionExpiry(@Qualifier("userRepository") UserRepository userRepository,
+                         @Value("${soprafs21.session.idle-timeout-ms:300000}") long idleTimeoutMillis,
+                         @Value("${soprafs21.session.tick-ms:1000}") long tickMillis,
+                         ObjectProvider<UserService> userService) {
+        this(userRepository, idleTimeoutMillis, tickMillis, now(), userService);
+    }
+
+    SessionExpiry(UserRepository userRepository, long idleTimeoutMillis, long tickMillis, long now,
+                  ObjectProvider<UserService> userService) {
+        this.userRepository = userRepository;
+        this.userService = userService;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.tickMillis = tickMillis;
+        int slots = (int) ((idleTimeoutMillis + tickMillis - 1) / tickMillis) + 2;
+        this.wheel = new ArrayList<>(slots);
+        for (int i = 0; i < slots; i++) {
+            wheel.add(ConcurrentHashMap.newKeySet());
+        }
+        this.currentTick = Math.floorDiv(now, tickMillis);
+    }
+
+    // a login: the session starts (again) now
+    public void start(Long userId) {
+        start(userId, now());
+    }
+
+    void start(Long userId, long now) {
+        sessions.put(userId, new Session(now));
+        schedule(userId, now + idleTimeoutMillis);
+    }
+
+    /**
+     * A heartbeat: the user was seen now.
+     *
+     * @return false if the user has no session (not logged in or expired already)
+     */
+    public boolean touch(Long userId) {
+        return touch(userId, now());
+    }
+
+    boolean touch(Long userId, long now) {
+        Session session = sessions.get(userId);
+        if (session == null) {
+            return false;
+        }
+        session.lastSeen = now;
+        return true;
+    }
+
+    // a logout
+    public void stop(Long userId) {
+        sessions.remove(userId);
+    }
+
+    public boolean isActive(Long userId) {
+        return sessions.containsKey(userId);
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Looks at the slots of the ticks since the last call and ends the sessions that were idle for too long.
+     *
+     * @return the users whose sessions expired
+     */
+    public List<Long> expire() {
+        return expire(now());
+    }
+
+    synchronized List<Long> expire(long now) {
+        List<Long> expired = new ArrayList<>();
+        long nowTick = Math.floorDiv(now, tickMillis);
+        // after a pause longer than a round every slot is looked at once
+        long firstTick = Math.max(currentTick + 1, nowTick - wheel.size() + 1);
+        for (long tick = firstTick; tick <= nowTick; tick++) {
+            Iterator<Long> slot = wheel.get(slotIndex(tick)).iterator();
+            while (slot.hasNext()) {
+                Long userId = slot.next();
+                slot.remove();
+                Session session = sessions.get(userId);
+                if (session == null) {
+                    continue;
+                }
+                long deadline = session.lastSeen + idleTimeoutMillis;
+                if (deadline > now) {
+                    schedule(userId, deadline);
+                }
+                // a login in the meantime replaced the session, it is not expired
+                else if (sessions.remove(userId, session)) {
+                    expired.add(userId);
+                }
+            }
+        }
+        currentTick = Math.max(currentTick, nowTick);
+        return expired;
+    }
+
+    // logs out the users whose sessions expired since the last tick
+    @Scheduled(fixedDelayString = "${soprafs21.session.tick-ms:1000}")
+    public void tick() {
+        tick(now());
+    }
+
+    void tick(long now) {
+        List<Long> expired = expire(now);
+        if (!expired.isEmpty()) {
+            userService.getObject().expireSessions(expired);
+        }
+    }
+
+    // the users that were online before a restart get a new session, they expire unless they send a heartbeat
+    @EventListener(ApplicationReadyEvent.class)
+    public void startOnlineUsers() {
+        long now = now();
+        List<Long> onlineUsers = userRepository.findIdsByStatus(UserStatus.ONLINE);
+        for (Long userId : onlineUsers) {
+            if (sessions.putIfAbsent(userId, new Session(now)) == null) {
+                schedule(userId, now + idleTimeoutMillis);
+            }
+        }
+        log.info("Session expiry started for {} online users", onlineUsers.size());
+    }
+
+    // into the slot of the first tick at or after the deadline, that is always a tick still to come
+    private void schedule(Long userId, long deadline) {
+        long tick = Math.floorDiv(deadline + tickMillis - 1, tickMillis);
+        wheel.get(slotIndex(tick)).add(userId);
+    }
+
+    private int slotIndex(long tick) {
+        return (int) Math.floorMod(tick, (long) wheel.size());
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    private static final class Session {
+
+        private volatile long lastSeen;
+
+        private Session(long lastSeen) {
+            this.lastSeen = lastSeen;
+        }
+    }
+}
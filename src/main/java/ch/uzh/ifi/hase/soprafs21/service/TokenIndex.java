@@ -0,0 +1,84 @@
+package ch.uzh.ifi.hase.soprafs21.service;
+
+import ch.uzh.ifi.hase.soprafs21.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs21.repository.UserRepository;
+import ch.uzh.ifi.hase.soprafs21.repository.UserToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Token Index
+ * Keeps the tokens of all logged in users in memory, so a request can be authenticated without a database round trip.
+ * A token is added when a user is created or logs in and removed again when the user logs out.
+ * Both maps are only changed inside a compute on tokenByUserId, so they are changed atomically per user.
+ */
+@Component
+@Lazy(false)
+public class TokenIndex {
+
+    private final Logger log = LoggerFactory.getLogger(TokenIndex.class);
+
+    private final ConcurrentHashMap<Long, String> tokenByUserId = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<String, Long> userIdByToken = new ConcurrentHashMap<>();
+
+    private final UserRepository userRepository;
+
+    public TokenIndex(@Qualifier("userRepository") UserRepository userRepository) {
+        this.userRepository = userRepository;
+    }
+
+    public void register(Long userId, String token) {
+        tokenByUserId.compute(userId, (id, previousToken) -> {
+            if (previousToken != null && !previousToken.equals(token)) {
+                userIdByToken.remove(previousToken);
+            }
+            userIdByToken.put(token, id);
+            return token;
+        });
+    }
+
+    public void revoke(Long userId) {
+        tokenByUserId.computeIfPresent(userId, (id, token) -> {
+            userIdByToken.remove(token);
+            return null;
+        });
+    }
+
+    /**
+     * @return the id of the logged in user with this token, null if no logged in user has it
+     */
+    public Long lookup(String token) {
+        return userIdByToken.get(token);
+    }
+
+    public String tokenOf(Long userId) {
+        return tokenByUserId.get(userId);
+    }
+
+    public int size() {
+        return tokenByUserId.size();
+    }
+
+    // the index only lives in memory, after a restart it is filled again with the users that are still online
+    @EventListener(ApplicationReadyEvent.class)
+    public void rebuild() {
+        List<UserToken> onlineUsers = userRepository.findTokensByStatus(UserStatus.ONLINE);
+        for (UserToken user : onlineUsers) {
+            // a login or logout that happened since the query already knows better
+            tokenByUserId.computeIfAbsent(user.getId(), id -> {
+                userIdByToken.put(user.getToken(), id);
+                return user.getToken();
+            });
+        }
+        log.info("Token index filled with {} logged in users", onlineUsers.size());
+    }
+}
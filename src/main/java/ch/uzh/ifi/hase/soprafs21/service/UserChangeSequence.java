@@ -0,0 +1,76 @@
+package ch.uzh.ifi.hase.soprafs21.service;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.TreeSet;
+
+/**
+ * User Change Sequence
+ * Hands out the change sequence numbers written to USER.CHANGE_SEQ with every create, update, login and logout,
+ * so clients can ask for the users changed after the last number they have seen (GET /users/changes).
+ * Numbers are handed out in increasing order, but transactions can commit in a different order: a reader could see
+ * number 11 before number 10 is committed and then never ask for 10 again. Therefore the numbers are tracked until
+ * their transaction completed, and readers only get changes up to the stable number, below which nothing is pending.
+ * The sequence continues after the highest number in the table, it is read when the first number is needed
+ * (after the snapshot of the users was loaded).
+ */
+@Component
+public class UserChangeSequence {
+
+    static final String MAX_CHANGE_SEQ_SQL = "select coalesce(max(CHANGE_SEQ), 0) from USER";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final TreeSet<Long> pending = new TreeSet<>();
+
+    private long last = -1;
+
+    public UserChangeSequence(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Hands out the next number. In a transaction the number is pending until the transaction completed,
+     * otherwise until it is released.
+     */
+    public long next() {
+        long changeSeq;
+        synchronized (this) {
+            readLast();
+            changeSeq = ++last;
+            pending.add(changeSeq);
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    release(changeSeq);
+                }
+            });
+        }
+        return changeSeq;
+    }
+
+    // the number was written (or rolled back), releasing it twice does no harm
+    public synchronized void release(long changeSeq) {
+        pending.remove(changeSeq);
+    }
+
+    /**
+     * @return the highest number below which no number is pending, all changes up to it can be read
+     */
+    public synchronized long stable() {
+        readLast();
+        return pending.isEmpty() ? last : pending.first() - 1;
+    }
+
+    private void readLast() {
+        if (last < 0) {
+            Long max = jdbcTemplate.queryForObject(MAX_CHANGE_SEQ_SQL, Long.class);
+            last = max == null ? 0 : max;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package ch.uzh.ifi.hase.soprafs21.service;
+
+import ch.uzh.ifi.hase.soprafs21.constant.UserStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * User Change Tracker
+ * Counts the changes per user and over the whole USER table, so the controller can build ETags
+ * and answer conditional requests without reading the users.
+ * A change is only counted once its transaction committed: a tag read before the commit can then never
+ * be handed out together with the old data, which would make clients keep the old data.
+ * The ETag of a single user is its version (see User) and its status. It is remembered once the user was read
+ * and forgotten with the next change of the user, until then conditional requests are answered without a read.
+ * The counters live in memory, the epoch keeps tags of the user list of an earlier run of the application from matching.
+ * The tag of a whole user is strong, so it can be sent back with an edit (If-Match), and names the format the user
+ * is sent in (JSON, CBOR or Smile), every format is a representation of its own. A single user is far below
+ * server.compression.min-response-size, so it does not matter that the embedded server does not compress responses
+ * with strong tags. A user with only some fields and the user list are sent in many representations (only some
+ * fields, gzip compressed or not), their tags are weak.
+ */
+@Component
+public class UserChangeTracker {
+
+    private static final String WEAK_PREFIX = "W/";
+
+    private final String epoch = Long.toString(System.currentTimeMillis(), 36);
+
+    private final AtomicLong tableVersion = new AtomicLong();
+
+    private final ConcurrentHashMap<Long, Long> userVersions = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<Long, KnownTag> knownTags = new ConcurrentHashMap<>();
+
+    public void markChanged(Long userId) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    increment(userId);
+                }
+            });
+        }
+        else {
+            increment(userId);
+        }
+    }
+
+    /**
+     * @return the ETag of the user if it is known and the user did not change since, null if the user has to be read
+     */
+    public String knownUserTag(Long userId) {
+        KnownTag knownTag = knownTags.get(userId);
+        return knownTag != null && knownTag.stamp == userStamp(userId) ? knownTag.eTag : null;
+    }
+
+    // taken before the user is read, a change committed while reading makes the read tag unknown again
+    public long userStamp(Long userId) {
+        return userVersions.getOrDefault(userId, 0L);
+    }
+
+    public void rememberUserTag(Long userId, long stamp, String eTag) {
+        if (userStamp(userId) == stamp) {
+            knownTags.put(userId, new KnownTag(stamp, eTag));
+        }
+    }
+
+    // ETag of the user list, it changes with every change of any user
+    public String collectionTag() {
+        return WEAK_PREFIX + "\"" + epoch + "-" + tableVersion.get() + "\"";
+    }
+
+    // ETag of a single user sent as JSON, users stored before they had a version are at version 0
+    public static String userTag(Long version, UserStatus status) {
+        return "\"" + (version == null ? 0 : version) + "-" + status + "\"";
+    }
+
+    // the ETag of a single user sent in the format, e.g. "3-ONLINE-cbor", JSON (or no format) keeps the tag as it is
+    public static String userTag(String userTag, MediaType format) {
+        if (format == null || MediaType.APPLICATION_JSON.equalsTypeAndSubtype(format)) {
+            return userTag;
+        }
+        return userTag.substring(0, userTag.length() - 1) + "-" + format.getSubtype() + "\"";
+    }
+
+    // the same version of a user in another representation, e.g. with only some fields
+    public static String weak(String eTag) {
+        return WEAK_PREFIX + eTag;
+    }
+
+    /**
+     * Reads the versions of a user from an If-Match header, a list of ETags like "3-ONLINE", "4-OFFLINE-cbor".
+     * If-Match compares strongly: weak tags never match and are left out, as are tags that are no tag of a user.
+     *
+     * @return the versions of the strong tags of a user in the list, null if the header is no list of ETags
+     */
+    public static List<Long> versions(String ifMatch) {
+        List<Long> versions = new ArrayList<>();
+        int position = 0;
+        while (position < ifMatch.length()) {
+            char c = ifMatch.charAt(position);
+            if (c == ',' || c == ' ' || c == '\t') {
+                position++;
+                continue;
+            }
+            boolean weak = ifMatch.startsWith(WEAK_PREFIX, position);
+            int start = weak ? position + WEAK_PREFIX.length() : position;
+            int end = ifMatch.indexOf('"', start + 1);
+            if (start >= ifMatch.length() || ifMatch.charAt(start) != '"' || end < 0) {
+                return null;
+            }
+            Long version = weak ? null : version(ifMatch.substring(start + 1, end));
+            if (version != null) {
+                versions.add(version);
+            }
+            position = end + 1;
+        }
+        return versions;
+    }
+
+    // the version at the start of the opaque part of a tag of a user, e.g. 3 of 3-ONLINE
+    private static Long version(String opaqueTag) {
+        int separator = opaqueTag.indexOf('-');
+        if (separator <= 0) {
+            return null;
+        }
+        try {
+            return Long.parseLong(opaqueTag.substring(0, separator));
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private void increment(Long userId) {
+        userVersions.merge(userId, 1L, Long::sum);
+        tableVersion.incrementAndGet();
+    }
+
+    private static final class KnownTag {
+
+        private final long stamp;
+        private final String eTag;
+
+        private KnownTag(long stamp, String eTag) {
+            this.stamp = stamp;
+            this.eTag = eTag;
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package ch.uzh.ifi.hase.soprafs21.service;
+
+import ch.uzh.ifi.hase.soprafs21.repository.UserNames;
+import ch.uzh.ifi.hase.soprafs21.repository.UserRepository;
+import ch.uzh.ifi.hase.soprafs21.rest.dto.UserSearchResultDTO;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * User Search Index
+ * In-memory index over the usernames and names of all users for the search as you type.
+ * The lower case usernames and names are kept sorted, so a prefix query is a range scan (like walking down a trie),
+ * and every trigram (three letters in a row) points to the users containing it, so a substring query only checks
+ * the users of its rarest trigram instead of scanning the table.
+ * The sorted terms are bucketed by the length of the username, which the hits are ranked by: the username prefixes
+ * are walked in the order they rank, the name prefixes bucket by bucket, and the walk stops once the remaining ones
+ * cannot make it into the results, so a query of one or two letters does not visit all the users starting with them.
+ * Changes are applied when their transaction committed, the index is filled again at startup.
+ */
+@Component
+@Lazy(false)
+public class UserSearchIndex {
+
+    // shorter queries only match prefixes, they have no trigram
+    static final int TRIGRAM_LENGTH = 3;
+
+    // exact matches first, then prefixes of the username, prefixes of the name and other substrings
+    private static final int EXACT = 0;
+    private static final int USERNAME_PREFIX = 1;
+    private static final int NAME_PREFIX = 2;
+    private static final int SUBSTRING = 3;
+
+    private final Logger log = LoggerFactory.getLogger(UserSearchIndex.class);
+
+    private final UserRepository userRepository;
+
+    private final ConcurrentHashMap<Long, Names> names = new ConcurrentHashMap<>();
+
+    // username length -> usernames
+    private final ConcurrentSkipListMap<Integer, ConcurrentSkipListMap<String, Set<Long>>> usernameTerms = new ConcurrentSkipListMap<>();
+
+    // username length -> names, the name prefixes are ranked by the username as well
+    private final ConcurrentSkipListMap<Integer, ConcurrentSkipListMap<String, Set<Long>>> nameTerms = new ConcurrentSkipListMap<>();
+
+    private final ConcurrentHashMap<String, Set<Long>> trigrams = new ConcurrentHashMap<>();
+
+    public UserSearchIndex(@Qualifier("userRepository") UserRepository userRepository) {
+        this.userRepository = userRepository;
+    }
+
+    /**
+     * Indexes the user once the current transaction committed. A null username or name keeps the indexed one.
+     */
+    public void put(Long id, String username, String name) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    index(id, username, name);
+                }
+            });
+        }
+        else {
+            index(id, username, name);
+        }
+    }
+
+    /**
+     * @return at most limit users whose username or name contains the query (ignoring case), best matches first
+     */
+    public List<UserSearchResultDTO> search(String query, int limit) {
+        String term = normalize(query);
+        if (term.isEmpty()) {
+            return List.of();
+        }
+
+        // the worst of the best hits so far is at the head
+        PriorityQueue<Hit> best = new PriorityQueue<>(limit + 1, Hit.ORDER.reversed());
+        Set<Long> seen = new HashSet<>();
+
+        // exact matches: the username of the length of the term, the names of any username length
+        ConcurrentSkipListMap<String, Set<Long>> sameLength = usernameTerms.get(term.length());
+        if (sameLength != null) {
+            offerAll(best, seen, sameLength.get(term), term, limit);
+        }
+        for (ConcurrentSkipListMap<String, Set<Long>> bucket : nameTerms.values()) {
+            offerAll(best, seen, bucket.get(term), term, limit);
+        }
+
+        // username prefixes in the order they rank, shorter usernames first and alphabetically within a length
+        usernamePrefixes:
+        for (Map.Entry<Integer, ConcurrentSkipListMap<String, Set<Long>>> bucket : usernameTerms.tailMap(term.length()).entrySet()) {
+            for (Map.Entry<String, Set<Long>> usernames : prefixRange(bucket.getValue(), term).entrySet()) {
+                if (best.size() == limit && ranksAfter(best.peek(), USERNAME_PREFIX, bucket.getKey(), usernames.getKey())) {
+                    break usernamePrefixes;
+                }
+                offerAll(best, seen, usernames.getValue(), term, limit);
+            }
+        }
+
+        // the name prefixes of a bucket are sorted by the name, not by the username, so only whole buckets are skipped
+        for (Map.Entry<Integer, ConcurrentSkipListMap<String, Set<Long>>> bucket : nameTerms.entrySet()) {
+            if (best.size() == limit && ranksAfter(best.peek(), NAME_PREFIX, bucket.getKey(), null)) {
+                break;
+            }
+            for (Set<Long> ids : prefixRange(bucket.getValue(), term).values()) {
+                offerAll(best, seen, ids, term, limit);
+            }
+        }
+
+        // substrings rank below all prefixes, they are only needed if there are not enough prefix matches
+        if (best.size() < limit && term.length() >= TRIGRAM_LENGTH) {
+            Set<Long> rarest = null;
+            for (int i = 0; i + TRIGRAM_LENGTH <= term.length(); i++) {
+                Set<Long> ids = trigrams.get(term.substring(i, i + TRIGRAM_LENGTH));
+                if (ids == null) {
+                    rarest = Set.of();
+                    break;
+                }
+                if (rarest == null || ids.size() < rarest.size()) {
+                    rarest = ids;
+                }
+            }
+            for (Long id : rarest) {
+                offer(best, seen, id, term, limit);
+            }
+        }
+
+        List<Hit> hits = new ArrayList<>(best);
+        hits.sort(Hit.ORDER);
+        List<UserSearchResultDTO> results = new ArrayList<>(hits.size());
+        for (Hit hit : hits) {
+            results.add(new UserSearchResultDTO(hit.id, hit.names.username, hit.names.name));
+        }
+        return results;
+    }
+
+    public int size() {
+        return names.size();
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    @Transactional(readOnly = true)
+    public void rebuild() {
+        AtomicInteger count = new AtomicInteger();
+        try (Stream<UserNames> users = userRepository.streamAllNames()) {
+            users.forEach(user -> {
+                index(user.getId(), user.getUsername(), user.getName());
+                count.incrementAndGet();
+            });
+        }
+        log.info("Search index built with {} users", count.get());
+    }
+
+    private static ConcurrentNavigableMap<String, Set<Long>> prefixRange(ConcurrentSkipListMap<String, Set<Long>> terms, String prefix) {
+        return terms.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+    }
+
+    /**
+     * @return true if the hits of the category and username length (and username, if not null) all rank after the hit
+     */
+    private static boolean ranksAfter(Hit hit, int category, int usernameLength, String usernameTerm) {
+        if (hit.category != category) {
+            return hit.category < category;
+        }
+        int hitLength = hit.names.usernameTerm.length();
+        if (hitLength != usernameLength) {
+            return hitLength < usernameLength;
+        }
+        return usernameTerm != null && hit.names.usernameTerm.compareTo(usernameTerm) < 0;
+    }
+
+    private void offerAll(PriorityQueue<Hit> best, Set<Long> seen, Set<Long> ids, String term, int limit) {
+        if (ids == null) {
+            return;
+        }
+        for (Long id : ids) {
+            offer(best, seen, id, term, limit);
+        }
+    }
+
+    private void offer(PriorityQueue<Hit> best, Set<Long> seen, Long id, String term, int limit) {
+        if (!seen.add(id)) {
+            return;
+        }
+        Names userNames = names.get(id);
+        if (userNames == null) {
+            return;
+        }
+        int category = category(userNames, term);
+        if (category < 0) {
+            return;
+        }
+        best.offer(new Hit(id, userNames, category));
+        if (best.size() > limit) {
+            best.poll();
+        }
+    }
+
+    // -1 if the user does not match at all (trigrams can match without the whole term)
+    private static int category(Names userNames, String term) {
+        if (term.equals(userNames.usernameTerm) || term.equals(userNames.nameTerm)) {
+            return EXACT;
+        }
+        if (userNames.usernameTerm.startsWith(term)) {
+            return USERNAME_PREFIX;
+        }
+        if (userNames.nameTerm.startsWith(term)) {
+            return NAME_PREFIX;
+        }
+        if (userNames.usernameTerm.contains(term) || userNames.nameTerm.contains(term)) {
+            return SUBSTRING;
+        }
+        return -1;
+    }
+
+    // writers are rare (create and update), readers never lock
+    private synchronized void index(Long id, String username, String name) {
+        Names old = names.get(id);
+        if (old != null) {
+            unindex(id, old);
+        }
+        Names now = new Names(username != null ? username : (old == null ? "" : old.username),
+                name != null ? name : (old == null ? "" : old.name));
+        names.put(id, now);
+        int usernameLength = now.usernameTerm.length();
+        addTerm(usernameTerms, usernameLength, now.usernameTerm, id);
+        addTerm(nameTerms, usernameLength, now.nameTerm, id);
+        for (String trigram : now.trigrams()) {
+            trigrams.computeIfAbsent(trigram, key -> ConcurrentHashMap.newKeySet()).add(id);
+        }
+    }
+
+    private void unindex(Long id, Names old) {
+        int usernameLength = old.usernameTerm.length();
+        removeTerm(usernameTerms, usernameLength, old.usernameTerm, id);
+        removeTerm(nameTerms, usernameLength, old.nameTerm, id);
+        for (String trigram : old.trigrams()) {
+            trigrams.computeIfPresent(trigram, (key, ids) -> ids.remove(id) && ids.isEmpty() ? null : ids);
+        }
+    }
+
+    private static void addTerm(ConcurrentSkipListMap<Integer, ConcurrentSkipListMap<String, Set<Long>>> buckets,
+                                int usernameLength, String term, Long id) {
+        if (term.isEmpty()) {
+            return;
+        }
+        buckets.computeIfAbsent(usernameLength, key -> new ConcurrentSkipListMap<>())
+                .computeIfAbsent(term, key -> ConcurrentHashMap.newKeySet()).add(id);
+    }
+
+    // an emptied bucket is kept, there are only as many as there are username lengths
+    private static void removeTerm(ConcurrentSkipListMap<Integer, ConcurrentSkipListMap<String, Set<Long>>> buckets,
+                                   int usernameLength, String term, Long id) {
+        ConcurrentSkipListMap<String, Set<Long>> bucket = buckets.get(usernameLength);
+        if (bucket != null && !term.isEmpty()) {
+            bucket.computeIfPresent(term, (key, ids) -> ids.remove(id) && ids.isEmpty() ? null : ids);
+        }
+    }
+
+    private static String normalize(String text) {
+        return text == null ? "" : text.trim().toLowerCase(Locale.ROOT);
+    }
+
+    private static final class Names {
+
+        private final String username;
+        private final String name;
+        private final String usernameTerm;
+        private final String nameTerm;
+
+        private Names(String username, String name) {
+            this.username = username;
+            this.name = name;
+            this.usernameTerm = normalize(username);
+            this.nameTerm = normalize(name);
+        }
+
+        private Set<String> trigrams() {
+            Set<String> result = new HashSet<>();
+            for (String term : new String[]{usernameTerm, nameTerm}) {
+                for (int i = 0; i + TRIGRAM_LENGTH <= term.length(); i++) {
+                    result.add(term.substring(i, i + TRIGRAM_LENGTH));
+                }
+            }
+            return result;
+        }
+    }
+
+    private static final class Hit {
+
+        // better category first, then shorter usernames (closer matches), then alphabetically (ignoring case)
+        private static final Comparator<Hit> ORDER = Comparator.<Hit>comparingInt(hit -> hit.category)
+                .thenComparingInt(hit -> hit.names.usernameTerm.length())
+                .thenComparing(hit -> hit.names.usernameTerm)
+                .thenComparing(hit -> hit.names.username)
+                .thenComparing(hit -> hit.id);
+
+        private final Long id;
+        private final Names names;
+        private final int category;
+
+        private Hit(Long id, Names names, int category) {
+            this.id = id;
+            this.names = names;
+            this.category = category;
+        }
+    }
+}
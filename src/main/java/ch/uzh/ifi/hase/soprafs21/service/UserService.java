@@ -1,29 +1,54 @@
 package ch.uzh.ifi.hase.soprafs21.service;
 
+import ch.uzh.ifi.hase.soprafs21.constant.UserImportStatus;
 import ch.uzh.ifi.hase.soprafs21.constant.UserStatus;
 import ch.uzh.ifi.hase.soprafs21.entity.User;
+import ch.uzh.ifi.hase.soprafs21.repository.UserField;
+import ch.uzh.ifi.hase.soprafs21.repository.UserPageQuery;
 import ch.uzh.ifi.hase.soprafs21.repository.UserRepository;
+import ch.uzh.ifi.hase.soprafs21.rest.dto.UserImportResultDTO;
 import ch.uzh.ifi.hase.soprafs21.rest.dto.UserPostDTO;
+import io.micrometer.core.annotation.Timed;
 import javassist.NotFoundException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.web.server.ResponseStatusException;
 
 import javax.management.openmbean.InvalidKeyException;
+import javax.persistence.Tuple;
+import java.sql.SQLException;
 import java.nio.file.attribute.UserPrincipalNotFoundException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 /**
  * User Service
@@ -34,52 +59,313 @@ import java.util.UUID;
 @Transactional
 public class UserService {
 
+    // rows per JDBC batch (hibernate.jdbc.batch_size) and per IN list of the uniqueness check
+    static final int IMPORT_CHUNK_SIZE = 500;
+
+    // SQL state of a unique constraint violation
+    private static final String UNIQUE_VIOLATION_SQL_STATE = "23505";
+
+    // attempts of a status update that loses a lock conflict with a concurrent write of the same row
+    static final int STATUS_UPDATE_ATTEMPTS = 3;
+
+    // locks the status transitions of a user are serialized with, a user always gets the same one
+    private static final int STATUS_LOCK_STRIPES = 64;
+
+    // one timer per method (tags class and method), exported as user_service_seconds
+    static final String SERVICE_TIMER = "user.service";
+
+    private static final String NOT_UNIQUE_MESSAGE = "The %s provided %s not unique. Therefore, the user could not be %s!";
+
     private final Logger log = LoggerFactory.getLogger(UserService.class);
 
     private final UserRepository userRepository;
 
+    private final TokenIndex tokenIndex;
+
+    private final UserStatusWriteBehind statusWriteBehind;
+
+    private final PresenceBroadcaster presenceBroadcaster;
+
+    private final UserChangeTracker changeTracker;
+
+    private final UsernameFilter usernameFilter;
+
+    private final CredentialVerifier credentialVerifier;
+
+    private final UserSearchIndex searchIndex;
+
+    private final UserChangeSequence changeSequence;
+
+    private final OnlineUserCounter onlineCounter;
+
+    private final SessionExpiry sessionExpiry;
+
+    // the chunks of an import are committed one by one
+    private final TransactionTemplate transactionTemplate;
+
+    // runs the database work of a login once the credentials were checked, the verifier threads are for the check only
+    private final Executor taskExecutor;
+
+    private final Object[] statusLocks = new Object[STATUS_LOCK_STRIPES];
+
     @Autowired
-    public UserService(@Qualifier("userRepository") UserRepository userRepository) {
+    public UserService(@Qualifier("userRepository") UserRepository userRepository, TokenIndex tokenIndex,
+                       UserStatusWriteBehind statusWriteBehind, PresenceBroadcaster presenceBroadcaster,
+                       UserChangeTracker changeTracker, UsernameFilter usernameFilter, CredentialVerifier credentialVerifier,
+                       UserSearchIndex searchIndex, UserChangeSequence changeSequence, OnlineUserCounter onlineCounter,
+                       SessionExpiry sessionExpiry, PlatformTransactionManager transactionManager,
+                       @Qualifier("applicationTaskExecutor") Executor taskExecutor) {
         this.userRepository = userRepository;
+        this.tokenIndex = tokenIndex;
+        this.statusWriteBehind = statusWriteBehind;
+        this.presenceBroadcaster = presenceBroadcaster;
+        this.changeTracker = changeTracker;
+        this.usernameFilter = usernameFilter;
+        this.credentialVerifier = credentialVerifier;
+        this.searchIndex = searchIndex;
+        this.changeSequence = changeSequence;
+        this.onlineCounter = onlineCounter;
+        this.sessionExpiry = sessionExpiry;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.taskExecutor = taskExecutor;
+        for (int i = 0; i < statusLocks.length; i++) {
+            statusLocks[i] = new Object();
+        }
     }
 
+    @Transactional(readOnly = true)
+    @Timed(value = SERVICE_TIMER, histogram = true)
     public List<User> getUsers() {
-        return this.userRepository.findAll();
+        return overlayStatus(this.userRepository.findAll());
     }
 
+    // one page of users (keyset on the id), see UserPageQuery for the filters
+    @Transactional(readOnly = true)
+    @Timed(value = SERVICE_TIMER, histogram = true)
+    public List<User> getUsers(UserPageQuery query) {
+        List<User> users = overlayStatus(this.userRepository.findPage(withPendingStatus(query)));
+        if (query.getStatus() != null) {
+            // a status change that came in after the query was built
+            users.removeIf(user -> user.getStatus() != query.getStatus());
+        }
+        return users;
+    }
 
-    public User getUser(Long id){
-        //find user by his ID
-        List<User> allUsers = this.userRepository.findAll();
-        User userToReturn = null;
-        for (User user: allUsers){
-            if (user.getId().equals(id)){
-                userToReturn = user;
-            }
+    // only the given fields of the users (all of them if the query is null), one map per user in the order of the fields
+    @Transactional(readOnly = true)
+    @Timed(value = SERVICE_TIMER, histogram = true)
+    public List<Map<String, Object>> getUsers(UserPageQuery query, Set<UserField> fields) {
+        List<Map<String, Object>> users = new ArrayList<>();
+        for (Tuple tuple : this.userRepository.findPageFields(withPendingStatus(query), fields)) {
+            users.add(toFieldMap(tuple, fields));
         }
-        if(userToReturn == null){
-            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,"User not found");
+        return users;
+    }
+    // the users changed after since and up to until (see getStableChangeSeq), in the order of their changes
+    @Transactional(readOnly = true)
+    @Timed(value = SERVICE_TIMER, histogram = true)
+    public List<User> getChanges(long since, long until, int limit) {
+        return overlayStatus(this.userRepository.findChanges(since, until, PageRequest.of(0, limit)));
+    }
+
+    // changes up to this number can be read, none of them is still being written
+    @Transactional(readOnly = true)
+    public long getStableChangeSeq() {
+        return changeSequence.stable();
+    }
+
+    // counted in memory (see OnlineUserCounter), no transaction and no connection needed
+    @Transactional(propagation = Propagation.SUPPORTS)
+    public long getOnlineCount() {
+        return onlineCounter.count();
+    }
+
+    // hands every user to the consumer one after the other, a user is detached again once it has been consumed
+    @Transactional(readOnly = true)
+    @Timed(value = SERVICE_TIMER, histogram = true)
+    public void exportUsers(Consumer<User> consumer) {
+        try (Stream<User> users = this.userRepository.streamAll()) {
+            users.forEach(user -> {
+                consumer.accept(statusWriteBehind.overlay(user));
+                this.userRepository.detach(user);
+            });
         }
+    }
 
-        return userToReturn;
+    @Transactional(readOnly = true)
+    @Timed(value = SERVICE_TIMER, histogram = true)
+    public User getUser(Long id){
+        //find user by his ID
+        return this.userRepository.findById(id)
+                .map(statusWriteBehind::overlay)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "User not found"));
+    }
+
+    @Transactional(readOnly = true)
+    @Timed(value = SERVICE_TIMER, histogram = true)
+    public Map<String, Object> getUser(Long id, Set<UserField> fields) {
+        return this.userRepository.findFieldsById(id, fields)
+                .map(tuple -> toFieldMap(tuple, fields))
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "User not found"));
     }
 
 
+    @Timed(value = SERVICE_TIMER, histogram = true)
     public User createUser(User newUser) {
         newUser.setToken(UUID.randomUUID().toString());
         newUser.setStatus(UserStatus.ONLINE);
         newUser.setCreationDate(getDate());
+        newUser.setCreatedAt(LocalDateTime.now());
 
         checkIfUserExists(newUser);
+        newUser.setChangeSeq(changeSequence.next());
 
         // saves the given entity but data is only persisted in the database once flush() is called
         newUser = userRepository.save(newUser);
-        userRepository.flush();
+        try {
+            userRepository.flush();
+        }
+        catch (DataIntegrityViolationException e) {
+            throw translateUniqueViolation(e, "created");
+        }
+        usernameFilter.add(newUser.getUsername());
+        searchIndex.put(newUser.getId(), newUser.getUsername(), newUser.getName());
+        onlineCounter.markOnline(newUser.getId());
+        changeTracker.markChanged(newUser.getId());
+
+        // a user whose insert is rolled back is never seen online, its token never authenticates
+        // and the expiry tick never updates its id
+        User createdUser = newUser;
+        afterCommit(() -> {
+            tokenIndex.register(createdUser.getId(), createdUser.getToken());
+            sessionExpiry.start(createdUser.getId());
+            presenceBroadcaster.publish(createdUser.getId(), createdUser.getStatus());
+        });
 
         log.debug("Created Information for User: {}", newUser);
         return newUser;
     }
 
+    /**
+     * Creates many users at once, e.g. a whole cohort. All usernames are checked with one query per chunk
+     * and the users are inserted in JDBC batches. A row that cannot be created (null, missing fields, username taken
+     * or twice in the import) is reported in its result and does not stop the other rows.
+     * Every chunk is committed in a transaction of its own. If a username of the chunk was taken by someone else
+     * since the check, the chunk is rolled back and its rows are created one by one, the taken one is reported as CONFLICT.
+     * The users are created OFFLINE, they are not logged in like after a registration.
+     *
+     * @param newUsers the users to create, null for a row that could not be read
+     * @return one result per row, in the order of the rows
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    @Timed(value = SERVICE_TIMER, histogram = true)
+    public List<UserImportResultDTO> importUsers(List<User> newUsers) {
+        List<UserImportResultDTO> results = new ArrayList<>(newUsers.size());
+
+        for (int start = 0; start < newUsers.size(); start += IMPORT_CHUNK_SIZE) {
+            List<User> chunk = newUsers.subList(start, Math.min(start + IMPORT_CHUNK_SIZE, newUsers.size()));
+            int chunkStart = start;
+
+            List<UserImportResultDTO> chunkResults = new ArrayList<>(chunk.size());
+            List<User> created;
+            try {
+                created = transactionTemplate.execute(status -> importChunk(chunk, chunkStart, chunkResults));
+            }
+            catch (DataIntegrityViolationException e) {
+                chunkResults.clear();
+                created = importRowByRow(chunk, chunkStart, chunkResults);
+            }
+
+            // only what was committed is known to the filter and the index
+            for (User user : created) {
+                usernameFilter.add(user.getUsername());
+                searchIndex.put(user.getId(), user.getUsername(), user.getName());
+                changeTracker.markChanged(user.getId());
+            }
+            results.addAll(chunkResults);
+        }
+
+        log.debug("Imported {} users", newUsers.size());
+        return results;
+    }
+
+    // creates the rows of a chunk that pass the checks, adds one result per row and returns the created users
+    private List<User> importChunk(List<User> chunk, int start, List<UserImportResultDTO> results) {
+        // only the usernames the filter cannot rule out have to be looked up
+        Set<String> usernames = new HashSet<>();
+        for (User user : chunk) {
+            if (user != null && user.getUsername() != null && usernameFilter.mightContain(user.getUsername())) {
+                usernames.add(user.getUsername());
+            }
+        }
+        Set<String> takenUsernames = usernames.isEmpty() ? new HashSet<>() : new HashSet<>(userRepository.findExistingUsernames(usernames));
+
+        List<User> accepted = new ArrayList<>();
+        List<UserImportResultDTO> acceptedResults = new ArrayList<>();
+        for (int i = 0; i < chunk.size(); i++) {
+            User user = chunk.get(i);
+            int index = start + i;
+
+            if (user == null) {
+                results.add(new UserImportResultDTO(index, null, UserImportStatus.INVALID, "The row could not be read"));
+            }
+            else if (isBlank(user.getUsername()) || isBlank(user.getName())) {
+                results.add(new UserImportResultDTO(index, user.getUsername(), UserImportStatus.INVALID, "name and username are required"));
+            }
+            else if (!takenUsernames.add(user.getUsername())) {
+                results.add(new UserImportResultDTO(index, user.getUsername(), UserImportStatus.CONFLICT, "The username provided is not unique"));
+            }
+            else {
+                // a row retried after a rolled back chunk is new again
+                user.setId(null);
+                user.setVersion(null);
+                user.setToken(UUID.randomUUID().toString());
+                user.setStatus(UserStatus.OFFLINE);
+                user.setCreationDate(getDate());
+                user.setCreatedAt(LocalDateTime.now());
+                user.setChangeSeq(changeSequence.next());
+
+                UserImportResultDTO result = new UserImportResultDTO(index, user.getUsername(), UserImportStatus.CREATED, null);
+                accepted.add(user);
+                acceptedResults.add(result);
+                results.add(result);
+            }
+        }
+
+        userRepository.saveAll(accepted);
+        userRepository.flush();
+        for (int i = 0; i < accepted.size(); i++) {
+            acceptedResults.get(i).setId(accepted.get(i).getId());
+        }
+        return accepted;
+    }
+
+    // the rows of a chunk that hit the unique constraint, each in a transaction of its own
+    private List<User> importRowByRow(List<User> chunk, int start, List<UserImportResultDTO> results) {
+        List<User> created = new ArrayList<>();
+        for (int i = 0; i < chunk.size(); i++) {
+            List<User> row = Collections.singletonList(chunk.get(i));
+            int index = start + i;
+
+            List<UserImportResultDTO> rowResults = new ArrayList<>(1);
+            try {
+                created.addAll(transactionTemplate.execute(status -> importChunk(row, index, rowResults)));
+                results.addAll(rowResults);
+            }
+            catch (DataIntegrityViolationException e) {
+                if (!isUniqueViolation(e)) {
+                    throw e;
+                }
+                results.add(new UserImportResultDTO(index, row.get(0).getUsername(), UserImportStatus.CONFLICT, "The username provided is not unique"));
+            }
+        }
+        return created;
+    }
+
+    private static boolean isBlank(String value) {
+        return value == null || value.isBlank();
+    }
+
     /**
      * This is a helper method that will check the uniqueness criteria of the username and the name
      * defined in the User entity. The method will do nothing if the input is unique and throw an error otherwise.
@@ -88,18 +374,44 @@ public class UserService {
      * @see User
      */
     private void checkIfUserExists(User userToBeCreated) {
+        // most usernames are new, the filter rules them out without a query
+        if (!usernameFilter.mightContain(userToBeCreated.getUsername())) {
+            return;
+        }
+
         User userByUsername = userRepository.findByUsername(userToBeCreated.getUsername());
 
-        String baseErrorMessage = "The %s provided %s not unique. Therefore, the user could not be created!";
         if (userByUsername != null) {
-            throw new ResponseStatusException(HttpStatus.CONFLICT, String.format(baseErrorMessage, "username", "is"));
+            throw new ResponseStatusException(HttpStatus.CONFLICT, String.format(NOT_UNIQUE_MESSAGE, "username", "is", "created"));
         }
     }
 
-    // we check here if the credentials are correct to login
-    public User handleLoginRequest(User userToBeChecked) {
-        userToBeChecked.setToken(UUID.randomUUID().toString());
+    /**
+     * The unique constraint of the database has the last word on the uniqueness of the username,
+     * a violation of it is answered like a username found by checkIfUserExists.
+     */
+    private RuntimeException translateUniqueViolation(DataIntegrityViolationException exception, String action) {
+        if (isUniqueViolation(exception)) {
+            return new ResponseStatusException(HttpStatus.CONFLICT, String.format(NOT_UNIQUE_MESSAGE, "username", "is", action), exception);
+        }
+        return exception;
+    }
+
+    private static boolean isUniqueViolation(DataIntegrityViolationException exception) {
+        for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLException && UNIQUE_VIOLATION_SQL_STATE.equals(((SQLException) cause).getSQLState())) {
+                return true;
+            }
+        }
+        return false;
+    }
 
+    // we check here if the credentials are correct to login
+    // the check runs on the CredentialVerifier, the returned future completes with the logged in user
+    // there is no transaction around it, the status change afterwards runs in its own
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    @Timed(value = SERVICE_TIMER, histogram = true)
+    public CompletableFuture<User> handleLoginRequest(User userToBeChecked) {
         User userByUsername = userRepository.findByUsername(userToBeChecked.getUsername());
 
         //check if user exists or not
@@ -111,17 +423,43 @@ public class UserService {
         String userUsername = userByUsername.getUsername();
 
         //check if username and password are correct
-        if (!userToBeChecked.getUsername().equals(userUsername) || !userToBeChecked.getName().equals(userPassword)){
+        if (!userToBeChecked.getUsername().equals(userUsername)){
             throw new ResponseStatusException(HttpStatus.UNAUTHORIZED,"your credentials are not correct");
         }
 
-        //set the logged in user to online
-        userByUsername.setStatus(UserStatus.ONLINE);
+        // only the comparison runs on the verifier, the status is written on the task executor of the application
+        return credentialVerifier.verify(userToBeChecked.getName(), userPassword).thenApplyAsync(matches -> {
+            if (!matches){
+                throw new ResponseStatusException(HttpStatus.UNAUTHORIZED,"your credentials are not correct");
+            }
+            return setOnline(userByUsername);
+        }, taskExecutor);
+    }
 
-        //safe the changes
-        User returnedUser = userRepository.save(userByUsername);
-        userRepository.flush();
-        return returnedUser;
+    //set the logged in user to online
+    // the session starts before the status is written, so an expiry of the previous session does not log the user out again
+    // every login gets a new token, the token of an ended session is never valid again
+    private User setOnline(User user) {
+        String token = UUID.randomUUID().toString();
+        synchronized (statusLock(user.getId())) {
+            sessionExpiry.start(user.getId());
+            if (statusWriteBehind.isEnabled()) {
+                // the status and the token are written later together with other status changes
+                statusWriteBehind.enqueue(user.getId(), UserStatus.ONLINE, token);
+            }
+            else {
+                //safe the changes
+                updateStatus(user.getId(), UserStatus.ONLINE, token);
+            }
+            user.setStatus(UserStatus.ONLINE);
+            user.setToken(token);
+
+            tokenIndex.register(user.getId(), token);
+            onlineCounter.markOnline(user.getId());
+            changeTracker.markChanged(user.getId());
+            presenceBroadcaster.publish(user.getId(), UserStatus.ONLINE);
+        }
+        return user;
     }
 
     // get the creation Date
@@ -133,46 +471,225 @@ public class UserService {
 
 
     // function to update the user if he is logged in with his userID we can check that
+    @Timed(value = SERVICE_TIMER, histogram = true)
     public void updateUser(Long userId, UserPostDTO userEditDTO){
-        List<User> users = this.userRepository.findAll();
+        updateUser(userId, userEditDTO, null);
+    }
 
-        User updatedUser = null;
+    /**
+     * Updates the profile if the user still has the expected version (the one the client read), null updates any version.
+     * A user that changed in the meantime is not overwritten, the client has to read it again (412 Precondition Failed).
+     */
+    @Timed(value = SERVICE_TIMER, histogram = true)
+    public void updateUser(Long userId, UserPostDTO userEditDTO, Long expectedVersion){
+        // a username that is taken already is caught by the unique constraint
+        int updatedRows;
+        try {
+            updatedRows = userRepository.updateProfile(userId, userEditDTO.getUsername(), userEditDTO.getBirthday(),
+                    changeSequence.next(), expectedVersion);
+        }
+        catch (DataIntegrityViolationException e) {
+            throw translateUniqueViolation(e, "updated");
+        }
+        catch (ConcurrencyFailureException e) {
+            // a concurrent edit of the same user holds the row, it changes the version in any case
+            if (expectedVersion != null) {
+                throw new ResponseStatusException(HttpStatus.PRECONDITION_FAILED, "The user was changed in the meantime, read it again", e);
+            }
+            throw e;
+        }
 
-        for (User user: users){
-            if (userId.equals(user.getId())){
-                updatedUser = user;
+        if (updatedRows == 0){
+            if (expectedVersion != null && userRepository.existsById(userId)) {
+                throw new ResponseStatusException(HttpStatus.PRECONDITION_FAILED, "The user was changed in the meantime, read it again");
             }
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "User not found");
+        }
+        if (userEditDTO.getUsername() != null){
+            usernameFilter.add(userEditDTO.getUsername());
+            searchIndex.put(userId, userEditDTO.getUsername(), null);
         }
+        changeTracker.markChanged(userId);
+    }
 
-        if (updatedUser == null){
-            throw new ResponseStatusException(HttpStatus.NO_CONTENT);
+    // same as fot the login I set all the users that are not Online to offline
+    // without a transaction around, so a status update that lost a lock conflict can be tried again
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    @Timed(value = SERVICE_TIMER, histogram = true)
+    public void logout(Long userId){
+        synchronized (statusLock(userId)) {
+            if (statusWriteBehind.isEnabled()) {
+                if (!userRepository.existsById(userId)){
+                    throw new ResponseStatusException(HttpStatus.NOT_FOUND, "User not found");
+                }
+                statusWriteBehind.enqueue(userId, UserStatus.OFFLINE);
+            }
+            else if (updateStatus(userId, UserStatus.OFFLINE) == 0){
+                throw new ResponseStatusException(HttpStatus.NOT_FOUND, "User not found");
+            }
+            sessionExpiry.stop(userId);
+            tokenIndex.revoke(userId);
+            onlineCounter.markOffline(userId);
+            changeTracker.markChanged(userId);
+            presenceBroadcaster.publish(userId, UserStatus.OFFLINE);
         }
+    }
 
-        if (userEditDTO.getBirthday() != null){
-            updatedUser.setBirthday(userEditDTO.getBirthday());}
+    // the heartbeat of a logged in user only sets the last-seen time of its session in memory, nothing is read or written
+    @Transactional(propagation = Propagation.SUPPORTS)
+    public void heartbeat(Long userId) {
+        if (!sessionExpiry.touch(userId)) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "User not logged in");
+        }
+    }
 
-        if (userEditDTO.getUsername() != null){
-            //TODO I don't now what the error is but it should be here to work properly --> checkIfUserExists(updatedUser);
-            updatedUser.setUsername(userEditDTO.getUsername());}
+    /**
+     * Logs out the users whose sessions expired, called by the tick of SessionExpiry.
+     * The expired users of a tick are set OFFLINE with one update statement (or buffered with the write-behind), then
+     * they are logged out in memory like with a logout. A user that logged in again while the statement ran keeps its
+     * new session and is set ONLINE again.
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void expireSessions(List<Long> expired) {
+        if (expired.isEmpty()) {
+            return;
+        }
 
-        userRepository.save(updatedUser);
-        userRepository.flush();
+        if (statusWriteBehind.isEnabled()) {
+            for (Long userId : expired) {
+                statusWriteBehind.enqueue(userId, UserStatus.OFFLINE);
+            }
+        }
+        else {
+            Map<Long, Long> changeSeqByUserId = new LinkedHashMap<>();
+            for (Long userId : expired) {
+                changeSeqByUserId.put(userId, changeSequence.next());
+            }
+            try {
+                userRepository.updateStatuses(changeSeqByUserId, UserStatus.OFFLINE);
+            }
+            catch (RuntimeException e) {
+                // the users stay ONLINE in the table, the reconciliation of the online count and the next login fix them
+                log.error("Expiring {} idle sessions failed", expired.size(), e);
+                return;
+            }
+            finally {
+                for (long changeSeq : changeSeqByUserId.values()) {
+                    changeSequence.release(changeSeq);
+                }
+            }
+        }
+
+        for (Long userId : expired) {
+            synchronized (statusLock(userId)) {
+                if (sessionExpiry.isActive(userId)) {
+                    if (statusWriteBehind.isEnabled()) {
+                        statusWriteBehind.enqueue(userId, UserStatus.ONLINE);
+                    }
+                    else {
+                        updateStatus(userId, UserStatus.ONLINE);
+                    }
+                    continue;
+                }
+                tokenIndex.revoke(userId);
+                onlineCounter.markOffline(userId);
+                changeTracker.markChanged(userId);
+                presenceBroadcaster.publish(userId, UserStatus.OFFLINE);
+            }
+        }
+        log.info("Expired {} idle sessions", expired.size());
     }
 
-    // same as fot the login I set all the users that are not Online to offline
-    public void logout(Long userId){
-        List<User> allUsers = this.userRepository.findAll();
+    /**
+     * A login and a logout of the same user at the same time would otherwise interleave the status write with the
+     * changes in memory, e.g. leave the token of the login registered while the table says OFFLINE.
+     */
+    private Object statusLock(Long userId) {
+        return statusLocks[Math.floorMod(userId.hashCode(), statusLocks.length)];
+    }
 
-        User loggedOutUser = null;
+    /**
+     * Status changes are internal single row updates without a version, there is nothing to be refused.
+     * A lock conflict with a concurrent write of the row (reported as deadlock by H2) is therefore retried
+     * instead of failing the login or logout. Each attempt runs in its own transaction, so the caller must not have one.
+     */
+    private int updateStatus(Long userId, UserStatus status) {
+        return updateStatus(userId, status, null);
+    }
 
-        for (User user: allUsers){
-            if (userId.equals(user.getId())){
-                loggedOutUser = user;
+    // a token (login) is written together with the status, null keeps the written one
+    private int updateStatus(Long userId, UserStatus status, String token) {
+        for (int attempt = 1; ; attempt++) {
+            long changeSeq = changeSequence.next();
+            try {
+                return token == null ? userRepository.updateStatus(userId, status, changeSeq)
+                        : userRepository.updateStatusAndToken(userId, status, token, changeSeq);
+            }
+            catch (ConcurrencyFailureException e) {
+                if (attempt == STATUS_UPDATE_ATTEMPTS) {
+                    throw e;
+                }
+                log.debug("Status update of user {} lost a lock conflict, attempt {}", userId, attempt);
+            }
+            finally {
+                changeSequence.release(changeSeq);
             }
         }
-        loggedOutUser.setStatus(UserStatus.OFFLINE);
-        userRepository.save(loggedOutUser);
-        userRepository.flush();
+    }
+
+    // runs the change once the current transaction committed, right away without one
+    private static void afterCommit(Runnable change) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    change.run();
+                }
+            });
+        }
+        else {
+            change.run();
+        }
+    }
+
+    // lays the status changes that are not written yet over the users read from the database
+    // the status that has not been written yet wins, as for the whole users
+    private Map<String, Object> toFieldMap(Tuple tuple, Set<UserField> fields) {
+        Map<String, Object> user = new LinkedHashMap<>();
+        for (UserField field : fields) {
+            user.put(field.getAttribute(), tuple.get(field.getAttribute()));
+        }
+        if (fields.contains(UserField.STATUS)) {
+            UserStatus pending = statusWriteBehind.pendingStatus((Long) user.get(UserField.ID.getAttribute()));
+            if (pending != null) {
+                user.put(UserField.STATUS.getAttribute(), pending);
+            }
+        }
+        return user;
+    }
+
+    // the status filter has to see the status the users are shown with, i.e. the one that has not been written yet
+    private UserPageQuery withPendingStatus(UserPageQuery query) {
+        if (query == null || query.getStatus() == null) {
+            return query;
+        }
+        Map<Long, UserStatus> pending = statusWriteBehind.pendingStatuses();
+        if (pending.isEmpty()) {
+            return query;
+        }
+        List<Long> withStatus = new ArrayList<>();
+        List<Long> withOtherStatus = new ArrayList<>();
+        for (Map.Entry<Long, UserStatus> entry : pending.entrySet()) {
+            (entry.getValue() == query.getStatus() ? withStatus : withOtherStatus).add(entry.getKey());
+        }
+        return query.withPendingStatus(withStatus, withOtherStatus);
+    }
+
+    private List<User> overlayStatus(List<User> users) {
+        for (User user : users) {
+            statusWriteBehind.overlay(user);
+        }
+        return users;
     }
 
 }
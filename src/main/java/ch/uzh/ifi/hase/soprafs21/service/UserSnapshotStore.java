@@ -0,0 +1,297 @@
+package ch.uzh.ifi.hase.soprafs21.service;
+
+import ch.uzh.ifi.hase.soprafs21.entity.User;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.persistence.EntityManagerFactory;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.StringJoiner;
+
+/**
+ * User Snapshot Store
+ * When enabled (soprafs21.snapshot.enabled), the USER table is written to a compact binary file when the application
+ * shuts down and loaded back with JDBC batches when it starts with an empty table, which is much faster than
+ * inserting the users through Hibernate. Restarts of the in-memory database then keep the users.
+ *
+ * The file starts with the column names and types, so columns added to the entity later are just left empty
+ * when an older snapshot is loaded.
+ */
+@Component
+@Lazy(false)
+@ConditionalOnProperty("soprafs21.snapshot.enabled")
+public class UserSnapshotStore {
+
+    private static final int MAGIC = 0x55534e50;
+
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int LOAD_BATCH_SIZE = 5_000;
+
+    private final Logger log = LoggerFactory.getLogger(UserSnapshotStore.class);
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final UserStatusWriteBehind statusWriteBehind;
+
+    private final Path path;
+
+    // the EntityManagerFactory is only needed so that the schema exists before the snapshot is loaded
+    public UserSnapshotStore(JdbcTemplate jdbcTemplate, UserStatusWriteBehind statusWriteBehind,
+                             EntityManagerFactory entityManagerFactory,
+                             @Value("${soprafs21.snapshot.path:data/users.snapshot}") String path) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.statusWriteBehind = statusWriteBehind;
+        this.path = Paths.get(path);
+    }
+
+    @PostConstruct
+    public void load() {
+        if (!Files.exists(path)) {
+            return;
+        }
+        Long existing = jdbcTemplate.queryForObject("select count(*) from USER", Long.class);
+        if (existing != null && existing > 0) {
+            log.info("USER table is not empty, snapshot {} is not loaded", path);
+            return;
+        }
+        long start = System.nanoTime();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            long rows = read(in);
+            log.info("Loaded {} users from snapshot {} in {} ms", rows, path, (System.nanoTime() - start) / 1_000_000);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException("Could not load the snapshot " + path, e);
+        }
+    }
+
+    @PreDestroy
+    public void save() {
+        // status changes that are still buffered belong into the snapshot
+        statusWriteBehind.flush();
+        long start = System.nanoTime();
+        try {
+            if (path.toAbsolutePath().getParent() != null) {
+                Files.createDirectories(path.toAbsolutePath().getParent());
+            }
+            Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+            long rows;
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16))) {
+                rows = write(out);
+            }
+            // a crash while writing leaves the previous snapshot intact
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log.info("Saved {} users to snapshot {} in {} ms", rows, path, (System.nanoTime() - start) / 1_000_000);
+        }
+        catch (IOException e) {
+            log.error("Could not save the snapshot {}", path, e);
+        }
+    }
+
+    private long write(DataOutputStream out) throws IOException {
+        return jdbcTemplate.query("select * from USER order by ID", resultSet -> {
+            try {
+                ResultSetMetaData metaData = resultSet.getMetaData();
+                int columns = metaData.getColumnCount();
+                int[] types = new int[columns];
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(columns);
+                for (int i = 0; i < columns; i++) {
+                    types[i] = storedType(metaData.getColumnType(i + 1), metaData.getColumnName(i + 1));
+                    out.writeUTF(metaData.getColumnName(i + 1));
+                    out.writeInt(types[i]);
+                }
+                long rows = 0;
+                while (resultSet.next()) {
+                    out.writeBoolean(true);
+                    for (int i = 0; i < columns; i++) {
+                        writeValue(out, resultSet, i + 1, types[i]);
+                    }
+                    rows++;
+                }
+                out.writeBoolean(false);
+                return rows;
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private long read(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+            throw new IOException("Not a user snapshot or an unknown format version");
+        }
+        int columns = in.readInt();
+        String[] names = new String[columns];
+        int[] types = new int[columns];
+        for (int i = 0; i < columns; i++) {
+            names[i] = in.readUTF();
+            types[i] = in.readInt();
+        }
+
+        // only the columns the table still has are inserted
+        Set<String> tableColumns = new HashSet<>(jdbcTemplate.query("select * from USER where 1 = 0",
+                resultSet -> {
+                    List<String> result = new ArrayList<>();
+                    ResultSetMetaData metaData = resultSet.getMetaData();
+                    for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                        result.add(metaData.getColumnName(i));
+                    }
+                    return result;
+                }));
+        boolean[] kept = new boolean[columns];
+        StringJoiner columnList = new StringJoiner(", ");
+        StringJoiner parameters = new StringJoiner(", ");
+        int keptCount = 0;
+        for (int i = 0; i < columns; i++) {
+            kept[i] = tableColumns.contains(names[i]);
+            if (kept[i]) {
+                columnList.add(names[i]);
+                parameters.add("?");
+                keptCount++;
+            }
+        }
+        String insert = "insert into USER (" + columnList + ") values (" + parameters + ")";
+
+        long rows = 0;
+        long maxId = 0;
+        int idColumn = Arrays.asList(names).indexOf("ID");
+        List<Object[]> batch = new ArrayList<>(LOAD_BATCH_SIZE);
+        while (in.readBoolean()) {
+            Object[] row = new Object[keptCount];
+            int index = 0;
+            for (int i = 0; i < columns; i++) {
+                Object value = readValue(in, types[i]);
+                if (i == idColumn && value != null) {
+                    maxId = Math.max(maxId, (Long) value);
+                }
+                if (kept[i]) {
+                    row[index++] = value;
+                }
+            }
+            batch.add(row);
+            rows++;
+            if (batch.size() == LOAD_BATCH_SIZE) {
+                jdbcTemplate.batchUpdate(insert, batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            jdbcTemplate.batchUpdate(insert, batch);
+        }
+        // above the highest loaded id by one block of the pooled optimizer of the User
+        jdbcTemplate.execute("alter sequence " + User.ID_SEQUENCE + " restart with " + (maxId + 1 + User.ID_ALLOCATION_SIZE));
+        return rows;
+    }
+
+    // the columns of the USER table are integers, strings and timestamps
+    private static int storedType(int sqlType, String column) {
+        switch (sqlType) {
+            case Types.BIGINT:
+            case Types.INTEGER:
+            case Types.SMALLINT:
+            case Types.TINYINT:
+                return Types.BIGINT;
+            case Types.VARCHAR:
+            case Types.CHAR:
+            case Types.LONGVARCHAR:
+                return Types.VARCHAR;
+            case Types.TIMESTAMP:
+                return Types.TIMESTAMP;
+            case Types.BOOLEAN:
+            case Types.BIT:
+                return Types.BOOLEAN;
+            default:
+                throw new IllegalStateException("Column " + column + " has a type the snapshot does not support: " + sqlType);
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, ResultSet resultSet, int column, int type) throws IOException {
+        try {
+            switch (type) {
+                case Types.BIGINT:
+                    long number = resultSet.getLong(column);
+                    writePresence(out, !resultSet.wasNull());
+                    if (!resultSet.wasNull()) {
+                        out.writeLong(number);
+                    }
+                    break;
+                case Types.BOOLEAN:
+                    boolean flag = resultSet.getBoolean(column);
+                    writePresence(out, !resultSet.wasNull());
+                    if (!resultSet.wasNull()) {
+                        out.writeBoolean(flag);
+                    }
+                    break;
+                case Types.TIMESTAMP:
+                    Timestamp timestamp = resultSet.getTimestamp(column);
+                    writePresence(out, timestamp != null);
+                    if (timestamp != null) {
+                        out.writeLong(timestamp.getTime());
+                        out.writeInt(timestamp.getNanos());
+                    }
+                    break;
+                default:
+                    String text = resultSet.getString(column);
+                    writePresence(out, text != null);
+                    if (text != null) {
+                        out.writeUTF(text);
+                    }
+            }
+        }
+        catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    // every value starts with a flag, false stands for null
+    private static void writePresence(DataOutputStream out, boolean present) throws IOException {
+        out.writeBoolean(present);
+    }
+
+    private static Object readValue(DataInputStream in, int type) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        switch (type) {
+            case Types.BIGINT:
+                return in.readLong();
+            case Types.BOOLEAN:
+                return in.readBoolean();
+            case Types.TIMESTAMP:
+                Timestamp timestamp = new Timestamp(in.readLong());
+                timestamp.setNanos(in.readInt());
+                return timestamp;
+            default:
+                return in.readUTF();
+        }
+    }
+}
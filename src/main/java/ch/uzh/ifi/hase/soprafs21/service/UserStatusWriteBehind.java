@@ -0,0 +1,170 @@
+package ch.uzh.ifi.hase.soprafs21.service;
+
+import ch.uzh.ifi.hase.soprafs21.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs21.entity.User;
+import ch.uzh.ifi.hase.soprafs21.repository.UserRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * User Status Write Behind
+ * When enabled (soprafs21.write-behind.enabled), status changes of login and logout are not written right away.
+ * They are buffered per user, where a newer status replaces an older one that has not been written yet,
+ * and written periodically in one JDBC batch. Until then the buffered status is laid over the users read from the database.
+ * The token of a login is buffered as well and written together with the status, the newest token of a user wins.
+ * Whatever is still buffered is written when the application shuts down.
+ * The change sequence numbers are handed out when the changes are written, so the change feed shows them from then on.
+ * The batches are written past Hibernate, so the written users are evicted from the second-level cache afterwards.
+ */
+@Component
+@Lazy(false)
+public class UserStatusWriteBehind {
+
+    // a change without a new token keeps the token of the row
+    static final String UPDATE_STATUS_SQL = "update USER set STATUS = ?, TOKEN = coalesce(?, TOKEN), CHANGE_SEQ = ? where ID = ?";
+
+    private final Logger log = LoggerFactory.getLogger(UserStatusWriteBehind.class);
+
+    private final ConcurrentHashMap<Long, UserStatus> pendingStatus = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<Long, String> pendingToken = new ConcurrentHashMap<>();
+
+    private final JdbcTemplate jdbcTemplate;
+
+    private final UserRepository userRepository;
+
+    private final UserChangeSequence changeSequence;
+
+    private final boolean enabled;
+
+    private final int batchSize;
+
+    public UserStatusWriteBehind(JdbcTemplate jdbcTemplate, @Qualifier("userRepository") UserRepository userRepository,
+                                 UserChangeSequence changeSequence,
+                                 @Value("${soprafs21.write-behind.enabled:false}") boolean enabled,
+                                 @Value("${soprafs21.write-behind.batch-size:500}") int batchSize) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.userRepository = userRepository;
+        this.changeSequence = changeSequence;
+        this.enabled = enabled;
+        this.batchSize = batchSize;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void enqueue(Long userId, UserStatus status) {
+        pendingStatus.put(userId, status);
+    }
+
+    // a login, the token before the status, so a flush that sees the status also sees the token
+    public void enqueue(Long userId, UserStatus status, String token) {
+        pendingToken.put(userId, token);
+        pendingStatus.put(userId, status);
+    }
+
+    /**
+     * @return the status that has not been written yet, null if there is none
+     */
+    public UserStatus pendingStatus(Long userId) {
+        return pendingStatus.get(userId);
+    }
+
+    // the user must not be flushed afterwards (read only transaction or detached), otherwise the status is written twice
+    public User overlay(User user) {
+        UserStatus status = pendingStatus.get(user.getId());
+        if (status != null) {
+            user.setStatus(status);
+        }
+        return user;
+    }
+
+    // a copy, the buffer keeps changing
+    public Map<Long, UserStatus> pendingStatuses() {
+        return new HashMap<>(pendingStatus);
+    }
+
+    public int pendingCount() {
+        return pendingStatus.size();
+    }
+
+    @Scheduled(fixedDelayString = "${soprafs21.write-behind.flush-interval-ms:200}")
+    public synchronized void flush() {
+        if (pendingStatus.isEmpty()) {
+            return;
+        }
+
+        List<StatusChange> batch = new ArrayList<>(pendingStatus.size());
+        for (Map.Entry<Long, UserStatus> entry : pendingStatus.entrySet()) {
+            batch.add(new StatusChange(entry.getKey(), entry.getValue(), pendingToken.get(entry.getKey()), changeSequence.next()));
+        }
+
+        try {
+            jdbcTemplate.batchUpdate(UPDATE_STATUS_SQL, batch, batchSize, (statement, change) -> {
+                statement.setInt(1, change.getValue().ordinal());
+                statement.setString(2, change.token);
+                statement.setLong(3, change.changeSeq);
+                statement.setLong(4, change.getKey());
+            });
+        }
+        catch (RuntimeException e) {
+            // the changes stay buffered and are tried again with the next flush
+            log.error("Writing {} buffered status changes failed", batch.size(), e);
+            return;
+        }
+        finally {
+            for (StatusChange change : batch) {
+                changeSequence.release(change.changeSeq);
+            }
+        }
+
+        List<Long> userIds = new ArrayList<>(batch.size());
+        for (StatusChange change : batch) {
+            userIds.add(change.getKey());
+        }
+        userRepository.evict(userIds);
+
+        // a change that came in while writing replaced the written one and stays buffered
+        for (StatusChange change : batch) {
+            pendingStatus.remove(change.getKey(), change.getValue());
+            if (change.token != null) {
+                pendingToken.remove(change.getKey(), change.token);
+            }
+        }
+        log.debug("Wrote {} buffered status changes", batch.size());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flush();
+    }
+
+    // the status of a user (key and value) with the token (null keeps the written one) and change sequence number it is written with
+    private static final class StatusChange extends AbstractMap.SimpleImmutableEntry<Long, UserStatus> {
+
+        private final String token;
+
+        private final long changeSeq;
+
+        private StatusChange(Long userId, UserStatus status, String token, long changeSeq) {
+            super(userId, status);
+            this.token = token;
+            this.changeSeq = changeSeq;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package ch.uzh.ifi.hase.soprafs21.service;
+
+import ch.uzh.ifi.hase.soprafs21.repository.UserRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.Stream;
+
+/**
+ * Username Filter
+ * Bloom filter over all usernames in the USER table. If it says a username is not there, it really is not there
+ * and createUser can skip the uniqueness query. If it says a username might be there, the database is asked.
+ * Usernames that are given up (renamed users) stay in the filter, which only costs an occasional query.
+ * The filter is filled again at startup, until then the unique constraint of the database catches duplicates.
+ */
+@Component
+@Lazy(false)
+public class UsernameFilter {
+
+    private final Logger log = LoggerFactory.getLogger(UsernameFilter.class);
+
+    private final UserRepository userRepository;
+
+    private final AtomicLongArray bits;
+
+    private final int bitCount;
+
+    private final int hashCount;
+
+    @Autowired
+    public UsernameFilter(@Qualifier("userRepository") UserRepository userRepository,
+                          @Value("${soprafs21.username-filter.expected-usernames:1000000}") int expectedUsernames,
+                          @Value("${soprafs21.username-filter.false-positive-rate:0.01}") double falsePositiveRate) {
+        this.userRepository = userRepository;
+        // optimal size and number of hash functions for the expected number of usernames and false positive rate
+        long optimalBits = (long) Math.ceil(-expectedUsernames * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        this.bitCount = (int) Math.max(64, Math.min(optimalBits, Integer.MAX_VALUE - 63));
+        this.hashCount = Math.max(1, (int) Math.round((double) bitCount / expectedUsernames * Math.log(2)));
+        this.bits = new AtomicLongArray((bitCount + 63) / 64);
+    }
+
+    public void add(String username) {
+        long hash = hash(username);
+        int first = (int) hash;
+        int second = (int) (hash >>> 32);
+        for (int i = 0; i < hashCount; i++) {
+            int bit = Math.floorMod(first + i * second, bitCount);
+            setBit(bit);
+        }
+    }
+
+    public boolean mightContain(String username) {
+        long hash = hash(username);
+        int first = (int) hash;
+        int second = (int) (hash >>> 32);
+        for (int i = 0; i < hashCount; i++) {
+            int bit = Math.floorMod(first + i * second, bitCount);
+            if ((bits.get(bit >>> 6) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    @Transactional(readOnly = true)
+    public void rebuild() {
+        AtomicInteger count = new AtomicInteger();
+        try (Stream<String> usernames = userRepository.streamAllUsernames()) {
+            usernames.forEach(username -> {
+                add(username);
+                count.incrementAndGet();
+            });
+        }
+        log.info("Username filter filled with {} usernames ({} bits, {} hashes)", count.get(), bitCount, hashCount);
+    }
+
+    private void setBit(int bit) {
+        int index = bit >>> 6;
+        long mask = 1L << bit;
+        long word;
+        do {
+            word = bits.get(index);
+            if ((word & mask) != 0) {
+                return;
+            }
+        } while (!bits.compareAndSet(index, word, word | mask));
+    }
+
+    // 64 bit FNV-1a over the characters, finished with the murmur3 mix so both halves are usable hashes
+    private static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,123 @@
+package ch.uzh.ifi.hase.soprafs21.config;
+
+import ch.uzh.ifi.hase.soprafs21.repository.UserRepository;
+import ch.uzh.ifi.hase.soprafs21.rest.dto.UserGetDTO;
+import ch.uzh.ifi.hase.soprafs21.rest.dto.UserPostDTO;
+import ch.uzh.ifi.hase.soprafs21.rest.dto.UserTokenDTO;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.http.HttpHeaders;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.UUID;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The user list in the binary formats, compressed by the embedded server when the client accepts gzip.
+ *
+ * @see BinaryFormatConfig
+ */
+// without the rate limits, the test registers its users as fast as it can from the same address
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = "soprafs21.rate-limit.enabled=false")
+public class BinaryFormatIntegrationTest {
+
+    private static final String APPLICATION_CBOR = "application/cbor";
+
+    private static final String APPLICATION_SMILE = "application/x-jackson-smile";
+
+    private final HttpClient client = HttpClient.newHttpClient();
+
+    private final ObjectMapper cborMapper = new ObjectMapper(new CBORFactory());
+
+    private final ObjectMapper smileMapper = new ObjectMapper(new SmileFactory());
+
+    @LocalServerPort
+    private int port;
+
+    @Qualifier("userRepository")
+    @Autowired
+    private UserRepository userRepository;
+
+    @BeforeEach
+    public void setup() {
+        userRepository.deleteAll();
+    }
+
+    @Test
+    public void createUser_cbor_readBackSmile() throws Exception {
+        UserPostDTO userPostDTO = new UserPostDTO();
+        userPostDTO.setName("Binary");
+        userPostDTO.setUsername("binary-" + UUID.randomUUID());
+
+        HttpResponse<byte[]> created = client.send(HttpRequest.newBuilder(uri("/users"))
+                .header(HttpHeaders.CONTENT_TYPE, APPLICATION_CBOR)
+                .header(HttpHeaders.ACCEPT, APPLICATION_CBOR)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(cborMapper.writeValueAsBytes(userPostDTO)))
+                .build(), HttpResponse.BodyHandlers.ofByteArray());
+
+        assertEquals(201, created.statusCode());
+        assertEquals(APPLICATION_CBOR, created.headers().firstValue(HttpHeaders.CONTENT_TYPE).orElseThrow());
+        UserTokenDTO createdUser = cborMapper.readValue(created.body(), UserTokenDTO.class);
+        assertEquals(userPostDTO.getUsername(), createdUser.getUsername());
+
+        HttpResponse<byte[]> read = client.send(HttpRequest.newBuilder(uri("/users/" + createdUser.getId()))
+                .header(HttpHeaders.ACCEPT, APPLICATION_SMILE)
+                .build(), HttpResponse.BodyHandlers.ofByteArray());
+
+        assertEquals(200, read.statusCode());
+        assertEquals(APPLICATION_SMILE, read.headers().firstValue(HttpHeaders.CONTENT_TYPE).orElseThrow());
+        assertEquals(createdUser.getId(), smileMapper.readValue(read.body(), UserGetDTO.class).getId());
+    }
+
+    @Test
+    public void getUsers_largeResponse_gzipCompressed() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            UserPostDTO userPostDTO = new UserPostDTO();
+            userPostDTO.setName("Compressed");
+            userPostDTO.setUsername("compressed-" + i + "-" + UUID.randomUUID());
+            client.send(HttpRequest.newBuilder(uri("/users"))
+                    .header(HttpHeaders.CONTENT_TYPE, APPLICATION_CBOR)
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(cborMapper.writeValueAsBytes(userPostDTO)))
+                    .build(), HttpResponse.BodyHandlers.discarding());
+        }
+
+        HttpResponse<byte[]> compressed = client.send(HttpRequest.newBuilder(uri("/users"))
+                .header(HttpHeaders.ACCEPT, APPLICATION_CBOR)
+                .header(HttpHeaders.ACCEPT_ENCODING, "gzip")
+                .build(), HttpResponse.BodyHandlers.ofByteArray());
+        HttpResponse<byte[]> plain = client.send(HttpRequest.newBuilder(uri("/users"))
+                .header(HttpHeaders.ACCEPT, APPLICATION_CBOR)
+                .build(), HttpResponse.BodyHandlers.ofByteArray());
+
+        assertEquals("gzip", compressed.headers().firstValue(HttpHeaders.CONTENT_ENCODING).orElseThrow());
+        assertTrue(plain.headers().firstValue(HttpHeaders.CONTENT_ENCODING).isEmpty());
+        assertTrue(compressed.body().length < plain.body().length);
+        assertArrayEquals(plain.body(), gunzip(compressed.body()));
+        assertEquals(100, cborMapper.readValue(plain.body(), UserGetDTO[].class).length);
+    }
+
+    private URI uri(String path) {
+        return URI.create("http://localhost:" + port + path);
+    }
+
+    private byte[] gunzip(byte[] body) throws IOException {
+        try (InputStream inputStream = new GZIPInputStream(new ByteArrayInputStream(body))) {
+            return inputStream.readAllBytes();
+        }
+    }
+}
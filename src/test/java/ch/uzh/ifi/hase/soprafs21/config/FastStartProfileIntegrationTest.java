@@ -0,0 +1,45 @@
+package ch.uzh.ifi.hase.soprafs21.config;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.context.ActiveProfiles;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The faststart profile creates most beans on first use, the ones with startup or background work still start eagerly.
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@ActiveProfiles("faststart")
+public class FastStartProfileIntegrationTest {
+
+    @Autowired
+    private TestRestTemplate restTemplate;
+
+    @Autowired
+    private ConfigurableListableBeanFactory beanFactory;
+
+    @Test
+    public void eagerBeansStarted_restOnFirstUse() {
+        assertTrue(beanFactory.containsSingleton("tokenIndex"));
+        assertTrue(beanFactory.containsSingleton("userStatusWriteBehind"));
+        assertFalse(beanFactory.containsSingleton("userService"));
+
+        assertEquals(HttpStatus.OK, restTemplate.getForEntity("/", String.class).getStatusCode());
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        ResponseEntity<String> created = restTemplate.postForEntity("/users",
+                new HttpEntity<>("{\"name\": \"fast\", \"username\": \"faststart\"}", headers), String.class);
+        assertEquals(HttpStatus.CREATED, created.getStatusCode());
+        assertTrue(beanFactory.containsSingleton("userService"));
+    }
+}
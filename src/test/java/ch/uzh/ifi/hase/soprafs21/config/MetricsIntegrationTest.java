@@ -0,0 +1,50 @@
+package ch.uzh.ifi.hase.soprafs21.config;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.actuate.metrics.AutoConfigureMetrics;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.not;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Checks that the scrape endpoint exposes the endpoint, service, Hibernate, cache, pool and JVM metrics
+ * and that the endpoint metrics are tagged with the uri template, not the actual path.
+ */
+@SpringBootTest
+@AutoConfigureMockMvc
+@AutoConfigureMetrics
+public class MetricsIntegrationTest {
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Test
+    public void prometheus_exposesMetrics() throws Exception {
+        mockMvc.perform(post("/users").contentType(MediaType.APPLICATION_JSON)
+                .content("{\"name\": \"metrics\", \"username\": \"metricsUser\"}"))
+                .andExpect(status().isCreated());
+        mockMvc.perform(get("/users/-1")).andExpect(status().isNotFound());
+
+        mockMvc.perform(get("/actuator/prometheus"))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("http_server_requests_seconds_bucket")))
+                .andExpect(content().string(containsString("uri=\"/users/{userId}\"")))
+                .andExpect(content().string(not(containsString("uri=\"/users/-1\""))))
+                .andExpect(content().string(containsString("user_service_seconds_count{application=\"soprafs21\",class=\"ch.uzh.ifi.hase.soprafs21.service.UserService\"")))
+                .andExpect(content().string(containsString("hibernate_query_executions_total")))
+                .andExpect(content().string(containsString("hibernate_second_level_cache_requests_total{application=\"soprafs21\",entityManagerFactory=\"entityManagerFactory\",region=\"user\",result=\"miss\"")))
+                .andExpect(content().string(containsString("cache_gets_total{application=\"soprafs21\",cache=\"user\"")))
+                .andExpect(content().string(containsString("hikaricp_connections_pending")))
+                .andExpect(content().string(containsString("jvm_gc_memory_allocated_bytes_total")))
+                .andExpect(content().string(containsString("user_tokens_active")));
+    }
+}
@@ -0,0 +1,29 @@
+package ch.uzh.ifi.hase.soprafs21.controller;
+
+import ch.uzh.ifi.hase.soprafs21.filter.QueryCountFilter;
+import org.springframework.test.web.servlet.ResultMatcher;
+
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Query Budget
+ * Result matcher for MockMvc tests that fails when a request executed more SQL statements than declared, e.g.
+ * mockMvc.perform(get("/users/1")).andExpect(QueryBudget.atMost(1));
+ * Needs soprafs21.query-count.enabled=true, the statements are read from the X-Query-Count header.
+ */
+public final class QueryBudget {
+
+    private QueryBudget() {
+    }
+
+    public static ResultMatcher atMost(long statements) {
+        return result -> {
+            String header = result.getResponse().getHeader(QueryCountFilter.QUERY_COUNT_HEADER);
+            assertNotNull(header, "No " + QueryCountFilter.QUERY_COUNT_HEADER + " header, is soprafs21.query-count.enabled set?");
+            long executed = Long.parseLong(header);
+            assertTrue(executed <= statements, () -> String.format("%s %s executed %d statements, the budget is %d",
+                    result.getRequest().getMethod(), result.getRequest().getRequestURI(), executed, statements));
+        };
+    }
+}
@@ -0,0 +1,132 @@
+package ch.uzh.ifi.hase.soprafs21.controller;
+
+import ch.uzh.ifi.hase.soprafs21.repository.UserRepository;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+
+import java.util.UUID;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Locks in the number of SQL statements of every user endpoint, independent of the number of users.
+ *
+ * @see QueryBudget
+ */
+// without the rate limits, every test registers users as fast as it can from the same address
+@SpringBootTest(properties = {"soprafs21.query-count.enabled=true", "soprafs21.rate-limit.enabled=false"})
+@AutoConfigureMockMvc
+public class UserControllerQueryBudgetIntegrationTest {
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Qualifier("userRepository")
+    @Autowired
+    private UserRepository userRepository;
+
+    private long userId;
+
+    private String username;
+
+    @BeforeEach
+    public void setup() throws Exception {
+        userRepository.deleteAll();
+        for (int i = 0; i < 20; i++) {
+            create("other-" + UUID.randomUUID());
+        }
+        username = "budget-" + UUID.randomUUID();
+        userId = create(username);
+    }
+
+    @Test
+    public void createUser_budget() throws Exception {
+        // the insert, plus the next block of ids from the sequence every 50 users
+        mockMvc.perform(post("/users").contentType(MediaType.APPLICATION_JSON).content(body(UUID.randomUUID().toString(), null)))
+                .andExpect(status().isCreated())
+                .andExpect(QueryBudget.atMost(2));
+    }
+
+    @Test
+    public void login_budget() throws Exception {
+        // only the lookup runs on the request thread, the status change follows the credential check
+        mockMvc.perform(put("/login").contentType(MediaType.APPLICATION_JSON).content(body(username, null)))
+                .andExpect(QueryBudget.atMost(1));
+    }
+
+    @Test
+    public void getUsers_budget() throws Exception {
+        mockMvc.perform(get("/users")).andExpect(status().isOk()).andExpect(QueryBudget.atMost(1));
+        mockMvc.perform(get("/users").param("limit", "5")).andExpect(status().isOk()).andExpect(QueryBudget.atMost(1));
+        mockMvc.perform(get("/users").param("fields", "username,status")).andExpect(status().isOk()).andExpect(QueryBudget.atMost(1));
+        mockMvc.perform(get("/users").param("status", "ONLINE")).andExpect(status().isOk()).andExpect(QueryBudget.atMost(1));
+    }
+
+    @Test
+    public void getOnlineCount_budget() throws Exception {
+        mockMvc.perform(get("/users/online/count")).andExpect(status().isOk()).andExpect(QueryBudget.atMost(0));
+    }
+
+    @Test
+    public void heartbeat_budget() throws Exception {
+        // the created user is logged in, the heartbeat only touches its session in memory
+        mockMvc.perform(put("/users/" + userId + "/heartbeat")).andExpect(status().isNoContent()).andExpect(QueryBudget.atMost(0));
+    }
+
+    @Test
+    public void getUserChanges_budget() throws Exception {
+        mockMvc.perform(get("/users/changes").param("since", "0")).andExpect(status().isOk()).andExpect(QueryBudget.atMost(1));
+    }
+
+    @Test
+    public void getUser_budget() throws Exception {
+        String eTag = mockMvc.perform(get("/users/" + userId)).andExpect(status().isOk()).andExpect(QueryBudget.atMost(1))
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+        mockMvc.perform(get("/users/" + userId).param("fields", "username")).andExpect(status().isOk()).andExpect(QueryBudget.atMost(1));
+
+        // the tag of the unchanged user is known, no statement at all
+        mockMvc.perform(get("/users/" + userId).header(HttpHeaders.IF_NONE_MATCH, eTag))
+                .andExpect(status().isNotModified())
+                .andExpect(QueryBudget.atMost(0));
+    }
+
+    @Test
+    public void editUser_budget() throws Exception {
+        String eTag = mockMvc.perform(get("/users/" + userId)).andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+
+        // the version is checked by the update itself
+        mockMvc.perform(put("/users/" + userId).header(HttpHeaders.IF_MATCH, eTag)
+                .contentType(MediaType.APPLICATION_JSON).content(body(null, "01.01.2000")))
+                .andExpect(status().isNoContent())
+                .andExpect(QueryBudget.atMost(1));
+    }
+
+    @Test
+    public void logout_budget() throws Exception {
+        mockMvc.perform(put("/logout/" + userId)).andExpect(status().isNoContent()).andExpect(QueryBudget.atMost(1));
+    }
+
+    private long create(String username) throws Exception {
+        String response = mockMvc.perform(post("/users").contentType(MediaType.APPLICATION_JSON).content(body(username, null)))
+                .andExpect(status().isCreated())
+                .andReturn().getResponse().getContentAsString();
+        return objectMapper.readTree(response).get("id").asLong();
+    }
+
+    private String body(String username, String birthday) {
+        return String.format("{\"username\": %s, \"name\": \"name\", \"birthday\": %s}",
+                username == null ? "null" : "\"" + username + "\"", birthday == null ? "null" : "\"" + birthday + "\"");
+    }
+}
@@ -1,31 +1,57 @@
 package ch.uzh.ifi.hase.soprafs21.controller;
 
+import ch.uzh.ifi.hase.soprafs21.constant.UserImportStatus;
 import ch.uzh.ifi.hase.soprafs21.constant.UserStatus;
 import ch.uzh.ifi.hase.soprafs21.entity.User;
+import ch.uzh.ifi.hase.soprafs21.repository.UserField;
+import ch.uzh.ifi.hase.soprafs21.repository.UserPageQuery;
+import ch.uzh.ifi.hase.soprafs21.rest.dto.UserImportResultDTO;
 import ch.uzh.ifi.hase.soprafs21.rest.dto.UserPostDTO;
+import ch.uzh.ifi.hase.soprafs21.rest.dto.UserSearchResultDTO;
+import ch.uzh.ifi.hase.soprafs21.service.PresenceBroadcaster;
+import ch.uzh.ifi.hase.soprafs21.service.TokenIndex;
+import ch.uzh.ifi.hase.soprafs21.service.UserChangeTracker;
+import ch.uzh.ifi.hase.soprafs21.service.UserSearchIndex;
 import ch.uzh.ifi.hase.soprafs21.service.UserService;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Import;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
 import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.mockito.BDDMockito.given;
 import static org.mockito.Mockito.doNothing;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 /**
@@ -33,7 +59,9 @@ import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.
  * This is a WebMvcTest which allows to test the UserController i.e. GET/POST request without actually sending them over the network.
  * This tests if the UserController works.
  */
-@WebMvcTest(UserController.class)
+// the rate limits are tested with the RateLimitFilter, here they would count the requests of all tests
+@WebMvcTest(value = UserController.class, properties = "soprafs21.rate-limit.enabled=false")
+@Import(UserChangeTracker.class)
 public class UserControllerTest {
 
     @Autowired
@@ -42,6 +70,18 @@ public class UserControllerTest {
     @MockBean
     private UserService userService;
 
+    @MockBean
+    private TokenIndex tokenIndex;
+
+    @MockBean
+    private PresenceBroadcaster presenceBroadcaster;
+
+    @MockBean
+    private UserSearchIndex searchIndex;
+
+    @Autowired
+    private UserChangeTracker changeTracker;
+
     @Test
     public void givenUsers_whenGetUsers_thenReturnJsonArray() throws Exception {
         // given
@@ -66,6 +106,175 @@ public class UserControllerTest {
                 .andExpect(jsonPath("$[0].status", is(user.getStatus().toString())));
     }
 
+    @Test
+    public void givenLimit_whenGetUsers_thenReturnPageWithNextLink() throws Exception {
+        // given -> the service returns one user more than the page size
+        List<User> users = new ArrayList<>();
+        for (long id = 1; id <= 3; id++) {
+            User user = new User();
+            user.setId(id);
+            user.setName("name" + id);
+            user.setUsername("username" + id);
+            user.setStatus(UserStatus.ONLINE);
+            users.add(user);
+        }
+
+        given(userService.getUsers(Mockito.any(UserPageQuery.class))).willReturn(users);
+
+        // when
+        MockHttpServletRequestBuilder getRequest = get("/users?limit=2&status=ONLINE").contentType(MediaType.APPLICATION_JSON);
+
+        // then
+        mockMvc.perform(getRequest).andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(2)))
+                .andExpect(jsonPath("$[1].id", is(2)))
+                .andExpect(header().string(HttpHeaders.LINK, containsString("after=2")))
+                .andExpect(header().string(HttpHeaders.LINK, containsString("status=ONLINE")));
+
+        ArgumentCaptor<UserPageQuery> query = ArgumentCaptor.forClass(UserPageQuery.class);
+        Mockito.verify(userService).getUsers(query.capture());
+        assertEquals(3, query.getValue().getLimit());
+        assertEquals(UserStatus.ONLINE, query.getValue().getStatus());
+    }
+
+    @Test
+    public void givenFields_whenGetUsers_thenReturnOnlyThoseFields() throws Exception {
+        // given -> the service returns the selected columns only
+        Map<String, Object> user = new LinkedHashMap<>();
+        user.put("id", 1L);
+        user.put("username", "firstname@lastname");
+        user.put("status", UserStatus.ONLINE);
+        given(userService.getUsers(Mockito.isNull(), Mockito.any())).willReturn(List.of(user));
+
+        // when
+        MockHttpServletRequestBuilder getRequest = get("/users?fields=username,status").contentType(MediaType.APPLICATION_JSON);
+
+        // then
+        mockMvc.perform(getRequest).andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(1)))
+                .andExpect(jsonPath("$[0].username", is("firstname@lastname")))
+                .andExpect(jsonPath("$[0].status", is("ONLINE")))
+                .andExpect(jsonPath("$[0].name").doesNotExist());
+
+        Mockito.verify(userService).getUsers(null, EnumSet.of(UserField.ID, UserField.USERNAME, UserField.STATUS));
+        Mockito.verify(userService, Mockito.never()).getUsers();
+    }
+
+    @Test
+    public void givenFields_whenGetUser_thenReturnOnlyThoseFields() throws Exception {
+        Map<String, Object> user = new LinkedHashMap<>();
+        user.put("id", 1L);
+        user.put("birthday", null);
+        given(userService.getUser(Mockito.eq(1L), Mockito.any())).willReturn(user);
+
+        mockMvc.perform(get("/users/1?fields=birthday")).andExpect(status().isOk())
+                .andExpect(jsonPath("$.id", is(1)))
+                .andExpect(jsonPath("$.birthday").value((Object) null))
+                .andExpect(jsonPath("$.username").doesNotExist());
+    }
+
+    @Test
+    public void givenUnknownField_whenGetUsers_thenBadRequest() throws Exception {
+        mockMvc.perform(get("/users?fields=username,token")).andExpect(status().isBadRequest());
+        mockMvc.perform(get("/users/1?fields=password")).andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void givenChanges_whenGetUserChanges_thenPageAndCursorOfLastChange() throws Exception {
+        // given -> the service returns one change more than the page size
+        List<User> changes = new ArrayList<>();
+        for (long id = 1; id <= 3; id++) {
+            User user = new User();
+            user.setId(id);
+            user.setUsername("username" + id);
+            user.setChangeSeq(10 + id);
+            changes.add(user);
+        }
+        given(userService.getStableChangeSeq()).willReturn(20L);
+        given(userService.getChanges(5L, 20L, 3)).willReturn(changes);
+
+        mockMvc.perform(get("/users/changes?since=5&limit=2")).andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(2)))
+                .andExpect(jsonPath("$[1].id", is(2)))
+                .andExpect(header().string(HttpHeaders.LINK, containsString("since=12")));
+    }
+
+    @Test
+    public void givenNoChanges_whenGetUserChanges_thenCursorMovesToStable() throws Exception {
+        given(userService.getStableChangeSeq()).willReturn(20L);
+        given(userService.getChanges(5L, 20L, UserController.DEFAULT_PAGE_SIZE + 1)).willReturn(Collections.emptyList());
+
+        mockMvc.perform(get("/users/changes?since=5")).andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(0)))
+                .andExpect(header().string(HttpHeaders.LINK, containsString("since=20")));
+
+        // a cursor at the stable number does not read at all
+        mockMvc.perform(get("/users/changes?since=20")).andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(0)))
+                .andExpect(header().string(HttpHeaders.LINK, containsString("since=20")));
+        Mockito.verify(userService, Mockito.times(1)).getChanges(Mockito.anyLong(), Mockito.anyLong(), Mockito.anyInt());
+    }
+
+    @Test
+    public void givenLastPage_whenGetUsers_thenNoNextLink() throws Exception {
+        given(userService.getUsers(Mockito.any(UserPageQuery.class))).willReturn(Collections.emptyList());
+
+        MockHttpServletRequestBuilder getRequest = get("/users?after=10").contentType(MediaType.APPLICATION_JSON);
+
+        mockMvc.perform(getRequest).andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(0)))
+                .andExpect(header().doesNotExist(HttpHeaders.LINK));
+    }
+
+    @Test
+    public void givenInvalidLimit_whenGetUsers_thenBadRequest() throws Exception {
+        MockHttpServletRequestBuilder getRequest = get("/users?limit=0").contentType(MediaType.APPLICATION_JSON);
+
+        mockMvc.perform(getRequest).andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void givenUsers_whenExportUsers_thenReturnOneJsonObjectPerLine() throws Exception {
+        // given
+        User first = new User();
+        first.setId(1L);
+        first.setUsername("first");
+        first.setStatus(UserStatus.ONLINE);
+
+        User second = new User();
+        second.setId(2L);
+        second.setUsername("second");
+        second.setStatus(UserStatus.OFFLINE);
+
+        Mockito.doAnswer(invocation -> {
+            Consumer<User> consumer = invocation.getArgument(0);
+            consumer.accept(first);
+            consumer.accept(second);
+            return null;
+        }).when(userService).exportUsers(Mockito.any());
+
+        // when
+        MvcResult result = mockMvc.perform(get("/users/export"))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType("application/x-ndjson;charset=UTF-8"))
+                .andReturn();
+
+        // then
+        String[] lines = result.getResponse().getContentAsString().split("\n");
+        assertEquals(2, lines.length);
+        assertEquals("first", new ObjectMapper().readTree(lines[0]).get("username").asText());
+        assertEquals("OFFLINE", new ObjectMapper().readTree(lines[1]).get("status").asText());
+    }
+
+    @Test
+    public void subscribePresence_startsEventStream() throws Exception {
+        given(presenceBroadcaster.subscribe()).willReturn(new SseEmitter());
+
+        mockMvc.perform(get("/users/presence/stream").accept(MediaType.TEXT_EVENT_STREAM))
+                .andExpect(status().isOk())
+                .andExpect(request().asyncStarted());
+    }
+
     // code 201
     @Test
     public void login_validInput() throws Exception{
@@ -80,18 +289,23 @@ public class UserControllerTest {
         userPostDTO.setName("Test User");
         userPostDTO.setUsername("testUsername");
 
-        given(userService.handleLoginRequest(Mockito.any())).willReturn(user);
+        given(userService.handleLoginRequest(Mockito.any())).willReturn(CompletableFuture.completedFuture(user));
 
         MockHttpServletRequestBuilder putRequest = put("/login")
                 .contentType(MediaType.APPLICATION_JSON)
                 .content(asJsonString(userPostDTO));
 
-        mockMvc.perform(putRequest)
+        MvcResult result = mockMvc.perform(putRequest)
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        mockMvc.perform(asyncDispatch(result))
                 .andExpect(status().isOk())
                 .andExpect(jsonPath("$.id", is(user.getId().intValue())))
                 .andExpect(jsonPath("$.name", is(user.getName())))
                 .andExpect(jsonPath("$.username", is(user.getUsername())))
-                .andExpect(jsonPath("$.status", is(user.getStatus().toString())));
+                .andExpect(jsonPath("$.status", is(user.getStatus().toString())))
+                .andExpect(jsonPath("$.token", is(user.getToken())));
 
     }
     // code 200 put /login
@@ -117,6 +331,200 @@ public class UserControllerTest {
                 .andExpect(jsonPath("$.birthday", is(user.getBirthday())))
                 .andExpect(jsonPath("$.status", is(user.getStatus().toString())));
     }
+    @Test
+    public void getUser_notModified_skipsService() throws Exception {
+        User user = new User();
+        user.setId(1L);
+        user.setUsername("testUsername");
+        user.setStatus(UserStatus.ONLINE);
+
+        given(userService.getUser(1L)).willReturn(user);
+
+        String eTag = mockMvc.perform(get("/users/1"))
+                .andExpect(status().isOk())
+                .andExpect(header().exists(HttpHeaders.ETAG))
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+
+        mockMvc.perform(get("/users/1").header(HttpHeaders.IF_NONE_MATCH, eTag))
+                .andExpect(status().isNotModified());
+
+        Mockito.verify(userService, Mockito.times(1)).getUser(1L);
+
+        // after a change of the user the old tag does not match anymore
+        user.setVersion(1L);
+        changeTracker.markChanged(1L);
+        mockMvc.perform(get("/users/1").header(HttpHeaders.IF_NONE_MATCH, eTag))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.ETAG, UserChangeTracker.userTag(1L, UserStatus.ONLINE)));
+    }
+
+    @Test
+    public void getUser_strongTagPerFormat() throws Exception {
+        // a user no other test has read, the tracker remembers the tags of all
+        User user = new User();
+        user.setId(41L);
+        user.setUsername("testUsername");
+        user.setStatus(UserStatus.ONLINE);
+        user.setVersion(2L);
+
+        given(userService.getUser(41L)).willReturn(user);
+
+        String jsonTag = UserChangeTracker.userTag(2L, UserStatus.ONLINE);
+        assertEquals("\"2-ONLINE\"", jsonTag);
+        mockMvc.perform(get("/users/41"))
+                .andExpect(status().isOk())
+                .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON))
+                .andExpect(header().string(HttpHeaders.ETAG, jsonTag));
+
+        // the CBOR representation has a tag of its own, the tag of the JSON one does not match it
+        mockMvc.perform(get("/users/41").accept(MediaType.APPLICATION_CBOR).header(HttpHeaders.IF_NONE_MATCH, jsonTag))
+                .andExpect(status().isOk())
+                .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_CBOR))
+                .andExpect(header().string(HttpHeaders.ETAG, "\"2-ONLINE-cbor\""));
+        mockMvc.perform(get("/users/41").accept(MediaType.APPLICATION_CBOR).header(HttpHeaders.IF_NONE_MATCH, "\"2-ONLINE-cbor\""))
+                .andExpect(status().isNotModified());
+    }
+
+    @Test
+    public void getUserFields_weakTag() throws Exception {
+        given(userService.getUser(Mockito.eq(42L), Mockito.any()))
+                .willReturn(new LinkedHashMap<>(Map.of("id", 42L, "version", 2L, "status", UserStatus.ONLINE)));
+
+        mockMvc.perform(get("/users/42").param("fields", "id"))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.ETAG, "W/\"2-ONLINE\""));
+    }
+
+    @Test
+    public void editUser_ifMatch_versionPassedToService() throws Exception {
+        UserPostDTO userEditDTO = new UserPostDTO();
+        userEditDTO.setBirthday("01.01.2000");
+
+        mockMvc.perform(put("/users/1").header(HttpHeaders.IF_MATCH, UserChangeTracker.userTag(7L, UserStatus.ONLINE))
+                .contentType(MediaType.APPLICATION_JSON).content(asJsonString(userEditDTO)))
+                .andExpect(status().isNoContent());
+        mockMvc.perform(put("/users/1").header(HttpHeaders.IF_MATCH, "*")
+                .contentType(MediaType.APPLICATION_JSON).content(asJsonString(userEditDTO)))
+                .andExpect(status().isNoContent());
+
+        Mockito.verify(userService).updateUser(Mockito.eq(1L), Mockito.any(), Mockito.eq(7L));
+        Mockito.verify(userService).updateUser(Mockito.eq(1L), Mockito.any(), Mockito.isNull());
+    }
+
+    @Test
+    public void editUser_ifMatch_strongComparison() throws Exception {
+        String birthday = "{\"birthday\": \"01.01.2000\"}";
+
+        // a weak tag never matches, e.g. the one of a user with only some fields
+        mockMvc.perform(put("/users/1").header(HttpHeaders.IF_MATCH, "W/\"7-ONLINE\"")
+                .contentType(MediaType.APPLICATION_JSON).content(birthday))
+                .andExpect(status().isPreconditionFailed());
+        Mockito.verifyNoInteractions(userService);
+
+        // the strong tags of a list are compared, in any format
+        mockMvc.perform(put("/users/1").header(HttpHeaders.IF_MATCH, "W/\"6-ONLINE\", \"7-ONLINE-cbor\"")
+                .contentType(MediaType.APPLICATION_JSON).content(birthday))
+                .andExpect(status().isNoContent());
+        Mockito.verify(userService).updateUser(Mockito.eq(1L), Mockito.any(), Mockito.eq(7L));
+
+        // of several versions only the current one can match
+        User user = new User();
+        user.setId(2L);
+        user.setVersion(9L);
+        given(userService.getUser(2L)).willReturn(user);
+        mockMvc.perform(put("/users/2").header(HttpHeaders.IF_MATCH, "\"8-ONLINE\",\"9-OFFLINE\"")
+                .contentType(MediaType.APPLICATION_JSON).content(birthday))
+                .andExpect(status().isNoContent());
+        Mockito.verify(userService).updateUser(Mockito.eq(2L), Mockito.any(), Mockito.eq(9L));
+        mockMvc.perform(put("/users/2").header(HttpHeaders.IF_MATCH, "\"7-ONLINE\", \"8-ONLINE\"")
+                .contentType(MediaType.APPLICATION_JSON).content(birthday))
+                .andExpect(status().isPreconditionFailed());
+
+        mockMvc.perform(put("/users/1").header(HttpHeaders.IF_MATCH, "\"7-ONLINE")
+                .contentType(MediaType.APPLICATION_JSON).content(birthday))
+                .andExpect(status().isPreconditionFailed());
+    }
+
+    @Test
+    public void editUser_withoutIfMatch_preconditionRequired() throws Exception {
+        mockMvc.perform(put("/users/1").contentType(MediaType.APPLICATION_JSON).content("{\"birthday\": \"01.01.2000\"}"))
+                .andExpect(status().isPreconditionRequired());
+        mockMvc.perform(put("/users/1").header(HttpHeaders.IF_MATCH, "\"not-a-version\"")
+                .contentType(MediaType.APPLICATION_JSON).content("{\"birthday\": \"01.01.2000\"}"))
+                .andExpect(status().isPreconditionFailed());
+
+        Mockito.verifyNoInteractions(userService);
+    }
+
+    @Test
+    public void editUser_changedInMeantime_preconditionFailed() throws Exception {
+        Mockito.doThrow(new ResponseStatusException(HttpStatus.PRECONDITION_FAILED))
+                .when(userService).updateUser(Mockito.eq(1L), Mockito.any(), Mockito.eq(3L));
+
+        mockMvc.perform(put("/users/1").header(HttpHeaders.IF_MATCH, UserChangeTracker.userTag(3L, UserStatus.OFFLINE))
+                .contentType(MediaType.APPLICATION_JSON).content("{\"birthday\": \"01.01.2000\"}"))
+                .andExpect(status().isPreconditionFailed());
+    }
+
+    @Test
+    public void getUsers_notModified_skipsService() throws Exception {
+        given(userService.getUsers()).willReturn(Collections.emptyList());
+
+        String eTag = mockMvc.perform(get("/users"))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+
+        mockMvc.perform(get("/users").header(HttpHeaders.IF_NONE_MATCH, eTag))
+                .andExpect(status().isNotModified());
+
+        Mockito.verify(userService, Mockito.times(1)).getUsers();
+    }
+
+    @Test
+    public void searchUsers_returnsIndexResults() throws Exception {
+        given(searchIndex.search("ann", UserController.DEFAULT_SEARCH_LIMIT))
+                .willReturn(List.of(new UserSearchResultDTO(1L, "anna", "Anna Muster")));
+
+        mockMvc.perform(get("/users/search").param("q", "ann"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(1)))
+                .andExpect(jsonPath("$[0].id", is(1)))
+                .andExpect(jsonPath("$[0].username", is("anna")))
+                .andExpect(jsonPath("$[0].name", is("Anna Muster")));
+    }
+
+    @Test
+    public void searchUsers_invalidParameters_badRequest() throws Exception {
+        mockMvc.perform(get("/users/search").param("q", " ")).andExpect(status().isBadRequest());
+        mockMvc.perform(get("/users/search").param("q", "ann").param("limit", "0")).andExpect(status().isBadRequest());
+        mockMvc.perform(get("/users/search")).andExpect(status().isBadRequest());
+
+        Mockito.verifyNoInteractions(searchIndex);
+    }
+
+    @Test
+    public void getOnlineCount_fromService() throws Exception {
+        given(userService.getOnlineCount()).willReturn(42L);
+
+        mockMvc.perform(get("/users/online/count"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.count", is(42)));
+    }
+
+    @Test
+    public void heartbeat_loggedIn_noContent() throws Exception {
+        mockMvc.perform(put("/users/1/heartbeat")).andExpect(status().isNoContent());
+
+        Mockito.verify(userService).heartbeat(1L);
+    }
+
+    @Test
+    public void heartbeat_notLoggedIn_notFound() throws Exception {
+        Mockito.doThrow(new ResponseStatusException(HttpStatus.NOT_FOUND)).when(userService).heartbeat(1L);
+
+        mockMvc.perform(put("/users/1/heartbeat")).andExpect(status().isNotFound());
+    }
+
     // 404 code put/login
     @Test
     public void loginUser_invalidCredentials() throws Exception{
@@ -135,6 +543,42 @@ public class UserControllerTest {
 
     }
 
+    // the credentials are checked asynchronously, a failed check arrives with the future
+    @Test
+    public void loginUser_invalidCredentials_async() throws Exception{
+        UserPostDTO userPostDTO = new UserPostDTO();
+        userPostDTO.setName("Test User");
+        userPostDTO.setUsername("testUsername");
+
+        CompletableFuture<User> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new ResponseStatusException(HttpStatus.UNAUTHORIZED));
+        given(userService.handleLoginRequest(Mockito.any())).willReturn(failed);
+
+        MvcResult result = mockMvc.perform(put("/login")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(asJsonString(userPostDTO)))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        mockMvc.perform(asyncDispatch(result))
+                .andExpect(status().isUnauthorized());
+    }
+
+    // 503 code put/login when the credential checks are saturated
+    @Test
+    public void loginUser_verifierSaturated() throws Exception{
+        UserPostDTO userPostDTO = new UserPostDTO();
+        userPostDTO.setName("Test User");
+        userPostDTO.setUsername("testUsername");
+
+        given(userService.handleLoginRequest(Mockito.any())).willThrow(new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE));
+
+        mockMvc.perform(put("/login")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(asJsonString(userPostDTO)))
+                .andExpect(status().isServiceUnavailable());
+    }
+
     // 201 code Post / users
     @Test
     public void createUser_validInput() throws Exception {
@@ -163,7 +607,51 @@ public class UserControllerTest {
                 .andExpect(jsonPath("$.id", is(user.getId().intValue())))
                 .andExpect(jsonPath("$.name", is(user.getName())))
                 .andExpect(jsonPath("$.username", is(user.getUsername())))
-                .andExpect(jsonPath("$.status", is(user.getStatus().toString())));
+                .andExpect(jsonPath("$.status", is(user.getStatus().toString())))
+                .andExpect(jsonPath("$.token", is(user.getToken())));
+    }
+
+    @Test
+    public void importUsers_jsonArray_returnsResultPerRow() throws Exception {
+        UserPostDTO first = new UserPostDTO();
+        first.setName("First");
+        first.setUsername("first");
+        UserPostDTO second = new UserPostDTO();
+        second.setName("Second");
+        second.setUsername("second");
+
+        UserImportResultDTO created = new UserImportResultDTO(0, "first", UserImportStatus.CREATED, null);
+        created.setId(1L);
+        UserImportResultDTO conflict = new UserImportResultDTO(1, "second", UserImportStatus.CONFLICT, "taken");
+        given(userService.importUsers(Mockito.any())).willReturn(List.of(created, conflict));
+
+        mockMvc.perform(post("/users/batch").contentType(MediaType.APPLICATION_JSON).content(asJsonString(List.of(first, second))))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(2)))
+                .andExpect(jsonPath("$[0].status", is("CREATED")))
+                .andExpect(jsonPath("$[0].id", is(1)))
+                .andExpect(jsonPath("$[1].status", is("CONFLICT")));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void importUsers_ndjson_unreadableLineIsPassedOn() throws Exception {
+        given(userService.importUsers(Mockito.any())).willReturn(Collections.emptyList());
+
+        String body = "{\"name\":\"First\",\"username\":\"first\"}\n" +
+                "not json\n" +
+                "\n" +
+                "{\"name\":\"Second\",\"username\":\"second\"}\n";
+
+        mockMvc.perform(post("/users/batch").contentType("application/x-ndjson").content(body))
+                .andExpect(status().isOk());
+
+        ArgumentCaptor<List<User>> users = ArgumentCaptor.forClass(List.class);
+        Mockito.verify(userService).importUsers(users.capture());
+        assertEquals(3, users.getValue().size());
+        assertEquals("first", users.getValue().get(0).getUsername());
+        assertNull(users.getValue().get(1));
+        assertEquals("second", users.getValue().get(2).getUsername());
     }
 
     // 409 code post/users
@@ -0,0 +1,131 @@
+package ch.uzh.ifi.hase.soprafs21.filter;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RateLimitFilterTest {
+
+    private RateLimitFilter filter;
+
+    @BeforeEach
+    public void setup() {
+        // 2 requests per IP, 1 per username, then one token per second
+        filter = new RateLimitFilter(new ObjectMapper(), 1, 2, 1, 1, 100);
+    }
+
+    @Test
+    public void usernameLimit_retryAfter() throws Exception {
+        assertEquals(200, login("10.0.0.1", "alice").getStatus());
+
+        MockHttpServletResponse rejected = login("10.0.0.2", "alice");
+        assertEquals(429, rejected.getStatus());
+        assertEquals("1", rejected.getHeader(HttpHeaders.RETRY_AFTER));
+    }
+
+    @Test
+    public void ipLimit_acrossUsernames() throws Exception {
+        assertEquals(200, login("10.0.0.1", "alice").getStatus());
+        assertEquals(200, login("10.0.0.1", "bob").getStatus());
+
+        assertEquals(429, login("10.0.0.1", "carol").getStatus());
+        assertEquals(200, login("10.0.0.2", "carol").getStatus());
+    }
+
+    @Test
+    public void body_passedOnToController() throws Exception {
+        MockHttpServletRequest request = request("POST", "/users", "10.0.0.1", "{\"username\":\"alice\",\"name\":\"a\"}");
+        MockFilterChain chain = new MockFilterChain();
+
+        filter.doFilter(request, new MockHttpServletResponse(), chain);
+
+        String body = new String(chain.getRequest().getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        assertEquals("{\"username\":\"alice\",\"name\":\"a\"}", body);
+    }
+
+    @Test
+    public void body_readWithReadListener() throws Exception {
+        MockHttpServletRequest request = request("PUT", "/login", "10.0.0.1", "{\"username\":\"alice\",\"name\":\"a\"}");
+        MockFilterChain chain = new MockFilterChain();
+        filter.doFilter(request, new MockHttpServletResponse(), chain);
+
+        ServletInputStream input = chain.getRequest().getInputStream();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        AtomicBoolean allDataRead = new AtomicBoolean();
+        input.setReadListener(new ReadListener() {
+            @Override
+            public void onDataAvailable() throws IOException {
+                byte[] buffer = new byte[8];
+                while (input.isReady() && !input.isFinished()) {
+                    int read = input.read(buffer, 0, buffer.length);
+                    body.write(buffer, 0, read);
+                }
+            }
+
+            @Override
+            public void onAllDataRead() {
+                allDataRead.set(true);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                fail(throwable);
+            }
+        });
+
+        assertTrue(allDataRead.get());
+        assertEquals("{\"username\":\"alice\",\"name\":\"a\"}", body.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void otherEndpoints_notLimited() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            MockHttpServletResponse response = new MockHttpServletResponse();
+            MockFilterChain chain = new MockFilterChain();
+            filter.doFilter(request("PUT", "/logout/1", "10.0.0.1", ""), response, chain);
+            assertEquals(200, response.getStatus());
+            assertNotNull(chain.getRequest());
+        }
+    }
+
+    @Test
+    public void largeBody_rejected() throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        MockFilterChain chain = new MockFilterChain();
+
+        filter.doFilter(request("PUT", "/login", "10.0.0.1", "x".repeat(RateLimitFilter.MAX_BODY_SIZE + 1)), response, chain);
+
+        assertEquals(413, response.getStatus());
+        assertNull(chain.getRequest());
+    }
+
+    private MockHttpServletResponse login(String ip, String username) throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        filter.doFilter(request("PUT", "/login", ip, "{\"username\":\"" + username + "\",\"name\":\"secret\"}"),
+                response, new MockFilterChain());
+        return response;
+    }
+
+    private static MockHttpServletRequest request(String method, String path, String ip, String body) {
+        MockHttpServletRequest request = new MockHttpServletRequest(method, path);
+        request.setServletPath(path);
+        request.setRemoteAddr(ip);
+        request.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        request.setContent(body.getBytes(StandardCharsets.UTF_8));
+        return request;
+    }
+}
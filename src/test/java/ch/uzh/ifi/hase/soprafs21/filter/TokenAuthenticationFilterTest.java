@@ -0,0 +1,120 @@
+package ch.uzh.ifi.hase.soprafs21.filter;
+
+import ch.uzh.ifi.hase.soprafs21.repository.UserRepository;
+import ch.uzh.ifi.hase.soprafs21.service.TokenIndex;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TokenAuthenticationFilterTest {
+
+    @Mock
+    private TokenIndex tokenIndex;
+
+    @BeforeEach
+    public void setup() {
+        MockitoAnnotations.openMocks(this);
+        Mockito.when(tokenIndex.lookup(Mockito.anyString())).thenReturn(null);
+        Mockito.when(tokenIndex.lookup("valid")).thenReturn(1L);
+    }
+
+    @Test
+    public void validToken_setsUserId() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("PUT", "/users/1");
+        request.addHeader(HttpHeaders.AUTHORIZATION, "Bearer valid");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        MockFilterChain chain = new MockFilterChain();
+
+        new TokenAuthenticationFilter(tokenIndex, true).doFilter(request, response, chain);
+
+        assertEquals(200, response.getStatus());
+        assertNotNull(chain.getRequest());
+        assertEquals(1L, request.getAttribute(TokenAuthenticationFilter.AUTHENTICATED_USER_ID));
+    }
+
+    @Test
+    public void unknownToken_onlyRejectedWhenRequired() throws Exception {
+        MockHttpServletRequest required = new MockHttpServletRequest("GET", "/users");
+        required.addHeader(HttpHeaders.AUTHORIZATION, "invalid");
+        MockHttpServletResponse requiredResponse = new MockHttpServletResponse();
+        MockFilterChain requiredChain = new MockFilterChain();
+        new TokenAuthenticationFilter(tokenIndex, true).doFilter(required, requiredResponse, requiredChain);
+        assertEquals(401, requiredResponse.getStatus());
+        assertNull(requiredChain.getRequest());
+
+        // anonymous without the required token
+        MockHttpServletRequest optional = new MockHttpServletRequest("GET", "/users");
+        optional.addHeader(HttpHeaders.AUTHORIZATION, "invalid");
+        MockHttpServletResponse optionalResponse = new MockHttpServletResponse();
+        MockFilterChain optionalChain = new MockFilterChain();
+        new TokenAuthenticationFilter(tokenIndex, false).doFilter(optional, optionalResponse, optionalChain);
+        assertEquals(200, optionalResponse.getStatus());
+        assertNotNull(optionalChain.getRequest());
+        assertNull(optional.getAttribute(TokenAuthenticationFilter.AUTHENTICATED_USER_ID));
+    }
+
+    @Test
+    public void tokenOfEndedSession_canLogInAndRegisterAgain() throws Exception {
+        TokenIndex realIndex = new TokenIndex(Mockito.mock(UserRepository.class));
+        realIndex.register(1L, "old");
+        realIndex.revoke(1L);
+
+        for (boolean tokenRequired : new boolean[]{true, false}) {
+            TokenAuthenticationFilter filter = new TokenAuthenticationFilter(realIndex, tokenRequired);
+            for (String[] route : new String[][]{{"PUT", "/login"}, {"POST", "/users"}}) {
+                MockHttpServletRequest request = new MockHttpServletRequest(route[0], route[1]);
+                request.setServletPath(route[1]);
+                request.addHeader(HttpHeaders.AUTHORIZATION, "Bearer old");
+                MockHttpServletResponse response = new MockHttpServletResponse();
+                MockFilterChain chain = new MockFilterChain();
+
+                filter.doFilter(request, response, chain);
+
+                assertEquals(200, response.getStatus(), route[0] + " " + route[1]);
+                assertNotNull(chain.getRequest());
+            }
+        }
+    }
+
+    @Test
+    public void missingToken_onlyRejectedWhenRequired() throws Exception {
+        MockHttpServletResponse optionalResponse = new MockHttpServletResponse();
+        new TokenAuthenticationFilter(tokenIndex, false).doFilter(new MockHttpServletRequest("GET", "/users"), optionalResponse, new MockFilterChain());
+        assertEquals(200, optionalResponse.getStatus());
+
+        MockHttpServletResponse requiredResponse = new MockHttpServletResponse();
+        new TokenAuthenticationFilter(tokenIndex, true).doFilter(new MockHttpServletRequest("GET", "/users"), requiredResponse, new MockFilterChain());
+        assertEquals(401, requiredResponse.getStatus());
+
+        MockHttpServletRequest login = new MockHttpServletRequest("PUT", "/login");
+        login.setServletPath("/login");
+        MockHttpServletResponse loginResponse = new MockHttpServletResponse();
+        new TokenAuthenticationFilter(tokenIndex, true).doFilter(login, loginResponse, new MockFilterChain());
+        assertEquals(200, loginResponse.getStatus());
+
+        MockHttpServletRequest scrape = new MockHttpServletRequest("GET", "/actuator/prometheus");
+        scrape.setServletPath("/actuator/prometheus");
+        MockHttpServletResponse scrapeResponse = new MockHttpServletResponse();
+        new TokenAuthenticationFilter(tokenIndex, true).doFilter(scrape, scrapeResponse, new MockFilterChain());
+        assertEquals(200, scrapeResponse.getStatus());
+    }
+
+    @Test
+    public void validToken_onlyConsultsTokenIndex() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/users/1");
+        request.addHeader(HttpHeaders.AUTHORIZATION, "Bearer valid");
+
+        new TokenAuthenticationFilter(tokenIndex, true).doFilter(request, new MockHttpServletResponse(), new MockFilterChain());
+
+        Mockito.verify(tokenIndex).lookup("valid");
+        Mockito.verifyNoMoreInteractions(tokenIndex);
+    }
+}
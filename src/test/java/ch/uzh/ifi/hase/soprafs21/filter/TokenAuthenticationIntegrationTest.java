@@ -0,0 +1,87 @@
+package ch.uzh.ifi.hase.soprafs21.filter;
+
+import ch.uzh.ifi.hase.soprafs21.rest.dto.UserPostDTO;
+import ch.uzh.ifi.hase.soprafs21.rest.dto.UserTokenDTO;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * A client that only knows the tokens returned by registering and logging in, with tokens required on all other routes.
+ *
+ * @see TokenAuthenticationFilter
+ */
+// without the rate limits, the logins of the test are not slowed down
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+        properties = {"soprafs21.auth.token-required=true", "soprafs21.rate-limit.enabled=false"})
+public class TokenAuthenticationIntegrationTest {
+
+    private final HttpClient client = HttpClient.newHttpClient();
+
+    @LocalServerPort
+    private int port;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Test
+    public void createUser_returnedToken_authenticatesRequests() throws Exception {
+        UserPostDTO userPostDTO = new UserPostDTO();
+        userPostDTO.setName("secret");
+        userPostDTO.setUsername("token-" + UUID.randomUUID());
+
+        HttpResponse<String> created = send(HttpRequest.newBuilder(uri("/users"))
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                .POST(HttpRequest.BodyPublishers.ofString(objectMapper.writeValueAsString(userPostDTO))));
+        assertEquals(201, created.statusCode());
+        UserTokenDTO createdUser = objectMapper.readValue(created.body(), UserTokenDTO.class);
+        assertNotNull(createdUser.getToken());
+
+        assertEquals(401, getUser(createdUser.getId(), null).statusCode());
+        assertEquals(200, getUser(createdUser.getId(), createdUser.getToken()).statusCode());
+
+        // the token of the session ends with the logout, a login returns the token of the new one
+        HttpResponse<String> loggedOut = send(HttpRequest.newBuilder(uri("/logout/" + createdUser.getId()))
+                .header(HttpHeaders.AUTHORIZATION, "Bearer " + createdUser.getToken())
+                .PUT(HttpRequest.BodyPublishers.noBody()));
+        assertEquals(204, loggedOut.statusCode());
+        assertEquals(401, getUser(createdUser.getId(), createdUser.getToken()).statusCode());
+
+        HttpResponse<String> loggedIn = send(HttpRequest.newBuilder(uri("/login"))
+                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                .PUT(HttpRequest.BodyPublishers.ofString(objectMapper.writeValueAsString(userPostDTO))));
+        assertEquals(200, loggedIn.statusCode());
+        UserTokenDTO loggedInUser = objectMapper.readValue(loggedIn.body(), UserTokenDTO.class);
+        assertNotEquals(createdUser.getToken(), loggedInUser.getToken());
+        assertEquals(200, getUser(createdUser.getId(), loggedInUser.getToken()).statusCode());
+        assertEquals(401, getUser(createdUser.getId(), createdUser.getToken()).statusCode());
+    }
+
+    private HttpResponse<String> getUser(Long id, String token) throws Exception {
+        HttpRequest.Builder request = HttpRequest.newBuilder(uri("/users/" + id));
+        if (token != null) {
+            request.header(HttpHeaders.AUTHORIZATION, "Bearer " + token);
+        }
+        return send(request);
+    }
+
+    private HttpResponse<String> send(HttpRequest.Builder request) throws Exception {
+        return client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private URI uri(String path) {
+        return URI.create("http://localhost:" + port + path);
+    }
+}
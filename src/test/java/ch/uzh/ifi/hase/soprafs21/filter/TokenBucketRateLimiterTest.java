@@ -0,0 +1,78 @@
+package ch.uzh.ifi.hase.soprafs21.filter;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TokenBucketRateLimiterTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void burstThenRate() {
+        TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(2, 3, 100);
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, limiter.tryAcquire("a", 0));
+        }
+        // the next token is there after half a second
+        assertEquals(SECOND / 2, limiter.tryAcquire("a", 0));
+        assertEquals(SECOND / 4, limiter.tryAcquire("a", SECOND / 4));
+        assertEquals(0, limiter.tryAcquire("a", SECOND / 2));
+        assertTrue(limiter.tryAcquire("a", SECOND / 2) > 0);
+
+        // the other keys have buckets of their own
+        assertEquals(0, limiter.tryAcquire("b", 0));
+    }
+
+    @Test
+    public void idleBucket_doesNotSaveUpTokens() {
+        TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(1, 2, 100);
+        limiter.tryAcquire("a", 0);
+
+        long later = 100 * SECOND;
+        assertEquals(0, limiter.tryAcquire("a", later));
+        assertEquals(0, limiter.tryAcquire("a", later));
+        assertTrue(limiter.tryAcquire("a", later) > 0);
+    }
+
+    @Test
+    public void evictIdle_dropsFullBucketsOnly() {
+        TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(1, 1, 100);
+        limiter.tryAcquire("idle", 0);
+        limiter.tryAcquire("busy", 5 * SECOND);
+
+        assertEquals(1, limiter.evictIdle(5 * SECOND));
+
+        assertEquals(1, limiter.size());
+        assertTrue(limiter.tryAcquire("busy", 5 * SECOND) > 0);
+    }
+
+    @Test
+    public void maxKeys_newKeysStillLimited() {
+        TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(1, 1, 2);
+        limiter.tryAcquire("a", 0);
+        limiter.tryAcquire("b", 0);
+
+        assertEquals(0, limiter.tryAcquire("c", 0));
+        assertTrue(limiter.tryAcquire("c", 0) > 0);
+        assertEquals(2, limiter.size());
+
+        // a flood of new keys gets at most the tokens of all shared buckets
+        int granted = 0;
+        for (int i = 0; i < 4 * TokenBucketRateLimiter.OVERFLOW_BUCKETS; i++) {
+            if (limiter.tryAcquire("key" + i, 0) == 0) {
+                granted++;
+            }
+        }
+        assertTrue(granted <= TokenBucketRateLimiter.OVERFLOW_BUCKETS);
+        assertEquals(2, limiter.size());
+
+        // once there is room again the key gets a bucket of its own
+        limiter.evictIdle(5 * SECOND);
+        assertEquals(0, limiter.tryAcquire("c", 5 * SECOND));
+        assertEquals(1, limiter.size());
+    }
+}
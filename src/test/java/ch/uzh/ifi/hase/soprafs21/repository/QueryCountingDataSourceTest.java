@@ -0,0 +1,45 @@
+package ch.uzh.ifi.hase.soprafs21.repository;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class QueryCountingDataSourceTest {
+
+    private final JdbcTemplate jdbcTemplate = new JdbcTemplate(new QueryCountingDataSource(
+            new DriverManagerDataSource("jdbc:h2:mem:query-count;DB_CLOSE_DELAY=-1", "sa", "")));
+
+    @AfterEach
+    public void tearDown() {
+        QueryCount.stop();
+        jdbcTemplate.execute("drop table if exists T");
+    }
+
+    @Test
+    public void countsStatementsAndRows() {
+        jdbcTemplate.execute("create table T (ID int)");
+
+        QueryCount queryCount = QueryCount.start();
+        jdbcTemplate.batchUpdate("insert into T values (?)", List.of(new Object[]{1}, new Object[]{2}, new Object[]{3}));
+        jdbcTemplate.update("update T set ID = ID + 1 where ID > 1");
+        jdbcTemplate.queryForList("select ID from T", Integer.class);
+
+        // the batch is one round trip
+        assertEquals(3, queryCount.getStatements());
+        // 3 inserted + 2 updated + 3 read
+        assertEquals(8, queryCount.getRows());
+    }
+
+    @Test
+    public void withoutQueryCount_passesThrough() {
+        jdbcTemplate.execute("create table T (ID int)");
+
+        assertEquals(0, jdbcTemplate.queryForList("select ID from T", Integer.class).size());
+        assertNull(QueryCount.current());
+    }
+}
@@ -1,16 +1,31 @@
 package ch.uzh.ifi.hase.soprafs21.repository;
 
+import ch.uzh.ifi.hase.soprafs21.config.SecondLevelCacheConfig;
 import ch.uzh.ifi.hase.soprafs21.constant.UserStatus;
 import ch.uzh.ifi.hase.soprafs21.entity.User;
+import org.hibernate.resource.jdbc.spi.StatementInspector;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
 import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.context.annotation.Import;
+
+import javax.persistence.Tuple;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
-@DataJpaTest
+@DataJpaTest(properties = "spring.jpa.properties.hibernate.session_factory.statement_inspector="
+        + "ch.uzh.ifi.hase.soprafs21.repository.UserRepositoryIntegrationTest$SelectRecorder")
+@Import(SecondLevelCacheConfig.class)
 public class UserRepositoryIntegrationTest {
 
     @Autowired
@@ -41,4 +56,144 @@ public class UserRepositoryIntegrationTest {
         assertEquals(found.getToken(), user.getToken());
         assertEquals(found.getStatus(), user.getStatus());
     }
+
+    @Test
+    public void findPage_keysetAndFilters() {
+        // given
+        User first = persistUser("first", UserStatus.ONLINE, LocalDateTime.of(2021, 1, 1, 10, 0));
+        User second = persistUser("second", UserStatus.OFFLINE, LocalDateTime.of(2021, 2, 1, 10, 0));
+        User third = persistUser("third", UserStatus.ONLINE, LocalDateTime.of(2021, 3, 1, 10, 0));
+
+        // when
+        List<User> firstPage = userRepository.findPage(new UserPageQuery(null, 2, null, null, null));
+        List<User> secondPage = userRepository.findPage(new UserPageQuery(firstPage.get(1).getId(), 2, null, null, null));
+        List<User> online = userRepository.findPage(new UserPageQuery(null, 10, UserStatus.ONLINE, null, null));
+        List<User> february = userRepository.findPage(new UserPageQuery(null, 10, null,
+                LocalDateTime.of(2021, 2, 1, 0, 0), LocalDateTime.of(2021, 3, 1, 0, 0)));
+
+        // then
+        assertEquals(List.of(first.getId(), second.getId()), ids(firstPage));
+        assertEquals(List.of(third.getId()), ids(secondPage));
+        assertEquals(List.of(first.getId(), third.getId()), ids(online));
+        assertEquals(List.of(second.getId()), ids(february));
+    }
+
+    @Test
+    public void findPageFields_selectsOnlyRequestedColumns() {
+        // given
+        User first = persistUser("first", UserStatus.ONLINE, LocalDateTime.of(2021, 1, 1, 10, 0));
+        persistUser("second", UserStatus.OFFLINE, LocalDateTime.of(2021, 2, 1, 10, 0));
+        entityManager.clear();
+        SelectRecorder.SELECTS.clear();
+
+        // when
+        List<Tuple> users = userRepository.findPageFields(null, UserField.parse("username,status"));
+
+        // then
+        assertEquals(2, users.size());
+        assertEquals(first.getId(), users.get(0).get("id"));
+        assertEquals("first", users.get(0).get("username"));
+        assertEquals(UserStatus.ONLINE, users.get(0).get("status"));
+        assertEquals(3, users.get(0).getElements().size());
+
+        // one statement, selecting the id, username and status columns only
+        assertEquals(1, SelectRecorder.SELECTS.size());
+        String selectList = selectList(SelectRecorder.SELECTS.get(0));
+        assertTrue(selectList.contains(".id"));
+        assertTrue(selectList.contains(".username"));
+        assertTrue(selectList.contains(".status"));
+        assertFalse(selectList.contains(".name"));
+        assertFalse(selectList.contains(".token"));
+        assertFalse(selectList.contains(".birthday"));
+        assertFalse(selectList.contains(".creation_date"));
+
+        // nothing is managed afterwards
+        assertFalse(entityManager.getEntityManager().contains(first));
+    }
+
+    @Test
+    public void findFieldsById_selectsOnlyRequestedColumns() {
+        User user = persistUser("single", UserStatus.OFFLINE, LocalDateTime.of(2021, 1, 1, 10, 0));
+        SelectRecorder.SELECTS.clear();
+
+        Tuple found = userRepository.findFieldsById(user.getId(), UserField.parse("name")).orElseThrow();
+
+        assertEquals(user.getId(), found.get("id"));
+        assertEquals("name", found.get("name"));
+        String selectList = selectList(SelectRecorder.SELECTS.get(0));
+        assertFalse(selectList.contains(".username"));
+        assertFalse(selectList.contains(".token"));
+    }
+
+    @Test
+    public void statusQueries_useStatusIndex() {
+        User online = persistUser("online", UserStatus.ONLINE, LocalDateTime.of(2021, 1, 1, 10, 0));
+        persistUser("offline", UserStatus.OFFLINE, LocalDateTime.of(2021, 1, 1, 10, 0));
+        SelectRecorder.SELECTS.clear();
+
+        assertEquals(List.of(online.getId()), userRepository.findIdsByStatus(UserStatus.ONLINE));
+        assertEquals(List.of(online.getId()), ids(userRepository.findPage(new UserPageQuery(null, 10, UserStatus.ONLINE, null, null))));
+
+        // the plans of both statements (with the status and the limit filled in) read the index, not the whole table
+        assertEquals(2, SelectRecorder.SELECTS.size());
+        for (String sql : SelectRecorder.SELECTS) {
+            String statement = sql.replaceFirst("\\?", Integer.toString(UserStatus.ONLINE.ordinal())).replaceFirst("\\?", "10");
+            String plan = (String) entityManager.getEntityManager().createNativeQuery("explain " + statement).getSingleResult();
+            assertTrue(plan.contains("IDX_USER_STATUS_ID"), plan);
+        }
+    }
+
+    @Test
+    public void updateStatuses_oneStatement() {
+        User first = persistUser("first", UserStatus.ONLINE, LocalDateTime.of(2021, 1, 1, 10, 0));
+        User second = persistUser("second", UserStatus.ONLINE, LocalDateTime.of(2021, 1, 1, 10, 0));
+        User untouched = persistUser("untouched", UserStatus.ONLINE, LocalDateTime.of(2021, 1, 1, 10, 0));
+
+        int updatedRows = userRepository.updateStatuses(Map.of(first.getId(), 7L, second.getId(), 8L), UserStatus.OFFLINE);
+
+        assertEquals(2, updatedRows);
+        // the persistence context was cleared, the users are read again
+        assertEquals(UserStatus.OFFLINE, userRepository.findById(first.getId()).orElseThrow().getStatus());
+        assertEquals(8L, (long) userRepository.findById(second.getId()).orElseThrow().getChangeSeq());
+        assertEquals(List.of(untouched.getId()), userRepository.findIdsByStatus(UserStatus.ONLINE));
+    }
+
+    private String selectList(String sql) {
+        String lowerCase = sql.toLowerCase(Locale.ROOT);
+        return lowerCase.substring(lowerCase.indexOf("select"), lowerCase.indexOf(" from "));
+    }
+
+    private User persistUser(String username, UserStatus status, LocalDateTime createdAt) {
+        User user = new User();
+        user.setName("name");
+        user.setUsername(username);
+        user.setStatus(status);
+        user.setToken(username);
+        user.setCreationDate("01/01/2021 00:00:00");
+        user.setCreatedAt(createdAt);
+
+        entityManager.persist(user);
+        entityManager.flush();
+        return user;
+    }
+
+    private List<Long> ids(List<User> users) {
+        return users.stream().map(User::getId).collect(Collectors.toList());
+    }
+
+    /**
+     * Records the SQL of every select Hibernate prepares, so the tests can check the select list.
+     */
+    public static class SelectRecorder implements StatementInspector {
+
+        static final List<String> SELECTS = new CopyOnWriteArrayList<>();
+
+        @Override
+        public String inspect(String sql) {
+            if (sql.toLowerCase(Locale.ROOT).startsWith("select")) {
+                SELECTS.add(sql);
+            }
+            return sql;
+        }
+    }
 }
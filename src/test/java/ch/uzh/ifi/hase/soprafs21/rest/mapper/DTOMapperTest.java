@@ -4,6 +4,7 @@ import ch.uzh.ifi.hase.soprafs21.constant.UserStatus;
 import ch.uzh.ifi.hase.soprafs21.entity.User;
 import ch.uzh.ifi.hase.soprafs21.rest.dto.UserGetDTO;
 import ch.uzh.ifi.hase.soprafs21.rest.dto.UserPostDTO;
+import ch.uzh.ifi.hase.soprafs21.rest.dto.UserTokenDTO;
 import org.junit.jupiter.api.Test;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
@@ -46,4 +47,19 @@ public class DTOMapperTest {
         assertEquals(user.getUsername(), userGetDTO.getUsername());
         assertEquals(user.getStatus(), userGetDTO.getStatus());
     }
+
+    @Test
+    public void testLoginUser_fromUser_toUserTokenDTO_withToken() {
+        User user = new User();
+        user.setName("Firstname Lastname");
+        user.setUsername("firstname@lastname");
+        user.setStatus(UserStatus.ONLINE);
+        user.setToken("1");
+
+        UserTokenDTO userTokenDTO = DTOMapper.INSTANCE.convertEntityToUserTokenDTO(user);
+
+        assertEquals(user.getUsername(), userTokenDTO.getUsername());
+        assertEquals(user.getStatus(), userTokenDTO.getStatus());
+        assertEquals(user.getToken(), userTokenDTO.getToken());
+    }
 }
@@ -0,0 +1,51 @@
+package ch.uzh.ifi.hase.soprafs21.service;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CredentialVerifierTest {
+
+    @Test
+    public void verify_matchingAndWrongPassword() {
+        CredentialVerifier credentialVerifier = new CredentialVerifier(1, 4);
+
+        assertTrue(credentialVerifier.verify("secret", "secret").join());
+        assertFalse(credentialVerifier.verify("secreT", "secret").join());
+        assertFalse(credentialVerifier.verify(null, "secret").join());
+
+        credentialVerifier.shutdown();
+    }
+
+    @Test
+    public void verify_fullQueue_serviceUnavailable() throws InterruptedException {
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CredentialVerifier credentialVerifier = new CredentialVerifier(1, 1, (presented, stored) -> {
+            running.countDown();
+            try {
+                release.await();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return true;
+        });
+
+        // one check is running, one is waiting in the queue
+        credentialVerifier.verify("a", "a");
+        running.await();
+        credentialVerifier.verify("b", "b");
+        assertEquals(1, credentialVerifier.queuedCount());
+
+        ResponseStatusException exception = assertThrows(ResponseStatusException.class, () -> credentialVerifier.verify("c", "c"));
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, exception.getStatus());
+
+        release.countDown();
+        credentialVerifier.shutdown();
+    }
+}
@@ -0,0 +1,82 @@
+package ch.uzh.ifi.hase.soprafs21.service;
+
+import ch.uzh.ifi.hase.soprafs21.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs21.repository.UserRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class OnlineUserCounterTest {
+
+    @Mock
+    private UserRepository userRepository;
+
+    @Mock
+    private UserStatusWriteBehind statusWriteBehind;
+
+    private OnlineUserCounter onlineCounter;
+
+    @BeforeEach
+    public void setup() {
+        MockitoAnnotations.openMocks(this);
+        onlineCounter = new OnlineUserCounter(userRepository, statusWriteBehind);
+    }
+
+    @Test
+    public void transitions_countEveryUserOnce() {
+        onlineCounter.markOnline(1L);
+        onlineCounter.markOnline(2L);
+        // logged in again without a logout in between
+        onlineCounter.markOnline(1L);
+        assertEquals(2, onlineCounter.count());
+
+        onlineCounter.markOffline(1L);
+        onlineCounter.markOffline(1L);
+        // never counted
+        onlineCounter.markOffline(3L);
+        assertEquals(1, onlineCounter.count());
+    }
+
+    @Test
+    public void reconcile_takesStatusOfTable() {
+        onlineCounter.markOnline(1L);
+        onlineCounter.markOnline(2L);
+        Mockito.when(userRepository.findIdsByStatus(UserStatus.ONLINE)).thenReturn(List.of(2L, 3L, 4L));
+
+        // 1 went offline and 3 and 4 online past the service
+        assertEquals(3, onlineCounter.reconcile());
+
+        assertEquals(3, onlineCounter.count());
+        assertEquals(0, onlineCounter.reconcile());
+    }
+
+    @Test
+    public void reconcile_pendingStatusWins() {
+        Mockito.when(userRepository.findIdsByStatus(UserStatus.ONLINE)).thenReturn(List.of(1L, 2L));
+        Mockito.when(statusWriteBehind.pendingStatus(2L)).thenReturn(UserStatus.OFFLINE);
+
+        onlineCounter.reconcile();
+
+        assertEquals(1, onlineCounter.count());
+    }
+
+    @Test
+    public void reconcile_keepsTransitionsWhileReadingTable() {
+        // the user logs out while the table is read, the table still has it online
+        Mockito.when(userRepository.findIdsByStatus(UserStatus.ONLINE)).thenAnswer(invocation -> {
+            onlineCounter.markOffline(1L);
+            return List.of(1L);
+        });
+        onlineCounter.markOnline(1L);
+
+        onlineCounter.reconcile();
+
+        assertEquals(0, onlineCounter.count());
+    }
+}
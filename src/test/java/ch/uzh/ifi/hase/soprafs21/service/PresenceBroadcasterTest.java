@@ -0,0 +1,113 @@
+package ch.uzh.ifi.hase.soprafs21.service;
+
+import ch.uzh.ifi.hase.soprafs21.constant.UserStatus;
+import org.junit.jupiter.api.Test;
+
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PresenceBroadcasterTest {
+
+    @Test
+    public void publish_sendsToSubscribers() {
+        AtomicInteger sends = new AtomicInteger();
+        PresenceBroadcaster broadcaster = new PresenceBroadcaster(task -> {
+            sends.incrementAndGet();
+            task.run();
+        }, 4, 1000, 1000);
+
+        broadcaster.subscribe();
+        broadcaster.subscribe();
+        broadcaster.publish(1L, UserStatus.ONLINE);
+
+        assertEquals(2, sends.get());
+        assertEquals(2, broadcaster.subscriberCount());
+    }
+
+    @Test
+    public void publish_fullBuffer_dropsSlowSubscriberOnly() {
+        // the senders never run, so the buffer of the first subscriber is never emptied
+        PresenceBroadcaster broadcaster = new PresenceBroadcaster(task -> { }, 4, 1000, 1000);
+        broadcaster.subscribe();
+
+        for (int i = 0; i < 4; i++) {
+            broadcaster.publish((long) i, UserStatus.ONLINE);
+        }
+        broadcaster.subscribe();
+        assertEquals(2, broadcaster.subscriberCount());
+
+        broadcaster.publish(5L, UserStatus.OFFLINE);
+
+        assertEquals(1, broadcaster.subscriberCount());
+    }
+
+    @Test
+    public void clientNotReading_droppedWithoutStallingOthers() throws Exception {
+        ThreadPoolExecutor senders = (ThreadPoolExecutor) Executors.newFixedThreadPool(1);
+        PresenceBroadcaster broadcaster = new PresenceBroadcaster(senders, 4, 60_000, 100);
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch reading = new CountDownLatch(1);
+        AtomicReference<Throwable> completedWith = new AtomicReference<>();
+        // the write to a client that never reads blocks until the container gives up on the connection
+        broadcaster.subscribe(new SseEmitter() {
+            @Override
+            public void send(SseEventBuilder builder) throws IOException {
+                writing.countDown();
+                try {
+                    reading.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new IOException("Broken pipe");
+            }
+
+            @Override
+            public synchronized void completeWithError(Throwable ex) {
+                completedWith.set(ex);
+            }
+        });
+        // the only sender is stuck on the first subscriber
+        broadcaster.publish(1L, UserStatus.ONLINE);
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+
+        BlockingQueue<SseEmitter.SseEventBuilder> delivered = new LinkedBlockingQueue<>();
+        broadcaster.subscribe(new SseEmitter() {
+            @Override
+            public void send(SseEventBuilder builder) {
+                delivered.add(builder);
+            }
+        });
+        broadcaster.publish(2L, UserStatus.ONLINE);
+        assertNull(delivered.poll(200, TimeUnit.MILLISECONDS));
+
+        assertEquals(1, broadcaster.dropBlockedSubscribers(System.nanoTime() + TimeUnit.SECONDS.toNanos(1)));
+        assertEquals(1, broadcaster.subscriberCount());
+        assertNotNull(delivered.poll(5, TimeUnit.SECONDS));
+        broadcaster.publish(3L, UserStatus.OFFLINE);
+        assertNotNull(delivered.poll(5, TimeUnit.SECONDS));
+        assertEquals(2, senders.getCorePoolSize());
+        assertNull(completedWith.get());
+
+        // the write returns, the emitter is completed by its sender and the extra thread goes away
+        reading.countDown();
+        for (int i = 0; i < 50 && completedWith.get() == null; i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(completedWith.get() instanceof TimeoutException);
+        assertEquals(1, senders.getCorePoolSize());
+        senders.shutdownNow();
+    }
+}
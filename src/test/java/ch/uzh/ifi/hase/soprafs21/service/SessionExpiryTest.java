@@ -0,0 +1,127 @@
+package ch.uzh.ifi.hase.soprafs21.service;
+
+import ch.uzh.ifi.hase.soprafs21.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs21.repository.UserRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+import org.springframework.beans.factory.ObjectProvider;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SessionExpiryTest {
+
+    private static final long IDLE_TIMEOUT = 10_000;
+
+    private static final long TICK = 1000;
+
+    @Mock
+    private UserRepository userRepository;
+
+    @Mock
+    private UserService userService;
+
+    @Mock
+    private ObjectProvider<UserService> userServiceProvider;
+
+    private SessionExpiry sessionExpiry;
+
+    @BeforeEach
+    public void setup() {
+        MockitoAnnotations.openMocks(this);
+        Mockito.when(userServiceProvider.getObject()).thenReturn(userService);
+        sessionExpiry = new SessionExpiry(userRepository, IDLE_TIMEOUT, TICK, 0, userServiceProvider);
+    }
+
+    @Test
+    public void idleSession_expiresAfterTimeout() {
+        sessionExpiry.start(1L, 500);
+
+        assertEquals(List.of(), sessionExpiry.expire(10_499));
+        assertEquals(List.of(1L), sessionExpiry.expire(11_000));
+
+        assertFalse(sessionExpiry.isActive(1L));
+        assertFalse(sessionExpiry.touch(1L, 11_000));
+        // expired only once
+        assertEquals(List.of(), sessionExpiry.expire(30_000));
+    }
+
+    @Test
+    public void tick_expiredUsersLoggedOut() {
+        sessionExpiry.start(1L, 0);
+        sessionExpiry.start(2L, 5000);
+
+        sessionExpiry.tick(11_000);
+
+        Mockito.verify(userService).expireSessions(List.of(1L));
+    }
+
+    @Test
+    public void tick_nothingExpired_userServiceNotCreated() {
+        sessionExpiry.start(1L, 0);
+
+        sessionExpiry.tick(5000);
+
+        Mockito.verifyNoInteractions(userServiceProvider);
+    }
+
+    @Test
+    public void heartbeat_keepsSessionAlive() {
+        sessionExpiry.start(1L, 0);
+        sessionExpiry.start(2L, 0);
+
+        for (long now = 5000; now <= 30_000; now += 5000) {
+            assertTrue(sessionExpiry.touch(1L, now));
+            List<Long> expired = sessionExpiry.expire(now);
+            assertFalse(expired.contains(1L));
+        }
+
+        assertFalse(sessionExpiry.isActive(2L));
+        assertEquals(List.of(1L), sessionExpiry.expire(41_000));
+    }
+
+    @Test
+    public void stoppedSession_notExpired() {
+        sessionExpiry.start(1L, 0);
+        sessionExpiry.stop(1L);
+
+        assertEquals(List.of(), sessionExpiry.expire(20_000));
+        assertEquals(0, sessionExpiry.size());
+    }
+
+    @Test
+    public void loginAgain_startsNewSession() {
+        sessionExpiry.start(1L, 0);
+        sessionExpiry.start(1L, 8000);
+
+        // the slot of the first session comes up, the second one is not due yet
+        assertEquals(List.of(), sessionExpiry.expire(10_000));
+        assertTrue(sessionExpiry.isActive(1L));
+        assertEquals(List.of(1L), sessionExpiry.expire(18_000));
+    }
+
+    @Test
+    public void longPause_everySlotLookedAt() {
+        for (long userId = 0; userId < 20; userId++) {
+            sessionExpiry.start(userId, userId * 700);
+        }
+
+        // several rounds of the wheel without a tick
+        assertEquals(20, sessionExpiry.expire(100_000).size());
+        assertEquals(0, sessionExpiry.size());
+    }
+
+    @Test
+    public void startOnlineUsers_fromTable() {
+        Mockito.when(userRepository.findIdsByStatus(UserStatus.ONLINE)).thenReturn(List.of(1L, 2L));
+
+        sessionExpiry.startOnlineUsers();
+
+        assertTrue(sessionExpiry.isActive(1L));
+        assertTrue(sessionExpiry.isActive(2L));
+    }
+}
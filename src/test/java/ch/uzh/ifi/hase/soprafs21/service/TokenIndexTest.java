@@ -0,0 +1,120 @@
+package ch.uzh.ifi.hase.soprafs21.service;
+
+import ch.uzh.ifi.hase.soprafs21.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs21.repository.UserRepository;
+import ch.uzh.ifi.hase.soprafs21.repository.UserToken;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TokenIndexTest {
+
+    private static final int THREADS = 8;
+    private static final int USERS = 16;
+    private static final int OPERATIONS = 20_000;
+
+    @Mock
+    private UserRepository userRepository;
+
+    private TokenIndex tokenIndex;
+
+    @BeforeEach
+    public void setup() {
+        MockitoAnnotations.openMocks(this);
+        tokenIndex = new TokenIndex(userRepository);
+    }
+
+    @Test
+    public void registerAndRevoke_success() {
+        tokenIndex.register(1L, "first");
+        assertEquals(1L, tokenIndex.lookup("first"));
+
+        // a new token replaces the old one
+        tokenIndex.register(1L, "second");
+        assertNull(tokenIndex.lookup("first"));
+        assertEquals(1L, tokenIndex.lookup("second"));
+
+        tokenIndex.revoke(1L);
+        assertNull(tokenIndex.lookup("second"));
+        assertEquals(0, tokenIndex.size());
+    }
+
+    @Test
+    public void rebuild_addsOnlineUsers() {
+        UserToken online = Mockito.mock(UserToken.class);
+        Mockito.when(online.getId()).thenReturn(7L);
+        Mockito.when(online.getToken()).thenReturn("token");
+        Mockito.when(userRepository.findTokensByStatus(UserStatus.ONLINE)).thenReturn(List.of(online));
+
+        tokenIndex.rebuild();
+
+        assertEquals(7L, tokenIndex.lookup("token"));
+    }
+
+    @Test
+    public void concurrentLoginAndLogout_indexStaysConsistent() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<List<String>>> results = new ArrayList<>();
+
+        try {
+            for (int thread = 0; thread < THREADS; thread++) {
+                int threadNumber = thread;
+                results.add(executor.submit(() -> {
+                    List<String> issuedTokens = new ArrayList<>();
+                    start.await();
+                    for (int i = 0; i < OPERATIONS; i++) {
+                        long userId = ThreadLocalRandom.current().nextInt(USERS);
+                        if (ThreadLocalRandom.current().nextBoolean()) {
+                            String token = threadNumber + "-" + i;
+                            issuedTokens.add(token);
+                            tokenIndex.register(userId, token);
+                        }
+                        else {
+                            tokenIndex.revoke(userId);
+                        }
+                    }
+                    return issuedTokens;
+                }));
+            }
+            start.countDown();
+
+            List<String> allTokens = new ArrayList<>();
+            for (Future<List<String>> result : results) {
+                allTokens.addAll(result.get());
+            }
+
+            // every token that still resolves belongs to the current token of its user and vice versa
+            int resolvingTokens = 0;
+            for (String token : allTokens) {
+                Long userId = tokenIndex.lookup(token);
+                if (userId != null) {
+                    resolvingTokens++;
+                    assertEquals(token, tokenIndex.tokenOf(userId));
+                }
+            }
+            for (long userId = 0; userId < USERS; userId++) {
+                String token = tokenIndex.tokenOf(userId);
+                if (token != null) {
+                    assertEquals(userId, tokenIndex.lookup(token));
+                }
+            }
+            assertEquals(tokenIndex.size(), resolvingTokens);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package ch.uzh.ifi.hase.soprafs21.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class UserChangeSequenceTest {
+
+    @Mock
+    private JdbcTemplate jdbcTemplate;
+
+    private UserChangeSequence changeSequence;
+
+    @BeforeEach
+    public void setup() {
+        MockitoAnnotations.openMocks(this);
+        Mockito.when(jdbcTemplate.queryForObject(UserChangeSequence.MAX_CHANGE_SEQ_SQL, Long.class)).thenReturn(41L);
+        changeSequence = new UserChangeSequence(jdbcTemplate);
+    }
+
+    @Test
+    public void next_continuesAfterHighestNumberInTable() {
+        assertEquals(41, changeSequence.stable());
+        assertEquals(42, changeSequence.next());
+        assertEquals(43, changeSequence.next());
+
+        Mockito.verify(jdbcTemplate, Mockito.times(1)).queryForObject(UserChangeSequence.MAX_CHANGE_SEQ_SQL, Long.class);
+    }
+
+    @Test
+    public void stable_staysBelowOldestPendingNumber() {
+        long first = changeSequence.next();
+        long second = changeSequence.next();
+
+        // the second change completed first, it must not be read before the first one
+        changeSequence.release(second);
+        assertEquals(first - 1, changeSequence.stable());
+
+        changeSequence.release(first);
+        assertEquals(second, changeSequence.stable());
+    }
+}
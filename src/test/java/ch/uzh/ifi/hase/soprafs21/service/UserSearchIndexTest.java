@@ -0,0 +1,86 @@
+package ch.uzh.ifi.hase.soprafs21.service;
+
+import ch.uzh.ifi.hase.soprafs21.repository.UserRepository;
+import ch.uzh.ifi.hase.soprafs21.rest.dto.UserSearchResultDTO;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class UserSearchIndexTest {
+
+    private UserSearchIndex searchIndex;
+
+    @BeforeEach
+    public void setup() {
+        searchIndex = new UserSearchIndex(Mockito.mock(UserRepository.class));
+        searchIndex.put(1L, "anna", "Anna Muster");
+        searchIndex.put(2L, "annabelle", "Belle Meier");
+        searchIndex.put(3L, "joanna", "Jo Anna");
+        searchIndex.put(4L, "peter", "Peter Pan");
+    }
+
+    @Test
+    public void search_prefixBeforeSubstring() {
+        assertEquals(List.of("anna", "annabelle", "joanna"), usernames(searchIndex.search("anna", 10)));
+    }
+
+    @Test
+    public void search_ignoresCase_matchesName() {
+        assertEquals(List.of("peter"), usernames(searchIndex.search("PAN", 10)));
+        assertEquals(List.of("annabelle"), usernames(searchIndex.search("meier", 10)));
+    }
+
+    @Test
+    public void search_shortQuery_onlyPrefixes() {
+        assertEquals(List.of("joanna"), usernames(searchIndex.search("jo", 10)));
+        assertTrue(searchIndex.search("xy", 10).isEmpty());
+    }
+
+    @Test
+    public void search_trigramsWithoutWholeTerm_noMatch() {
+        // "ann" and "nna" are both in "anna", but "annna" is not
+        assertTrue(searchIndex.search("annna", 10).isEmpty());
+    }
+
+    @Test
+    public void search_limit_keepsBestMatches() {
+        assertEquals(List.of("anna", "annabelle"), usernames(searchIndex.search("ann", 2)));
+    }
+
+    @Test
+    public void search_oneLetter_bestPrefixesOfAllLengths() {
+        searchIndex.put(5L, "Al", "Someone");
+        searchIndex.put(6L, "ab", "Someone");
+        searchIndex.put(7L, "zed", "Andreas");
+        searchIndex.put(8L, "a", "Someone");
+        searchIndex.put(9L, "bo", "Anton");
+
+        assertEquals(List.of("a", "ab", "Al", "anna", "annabelle", "bo", "zed"), usernames(searchIndex.search("a", 10)));
+        assertEquals(List.of("a", "ab", "Al"), usernames(searchIndex.search("a", 3)));
+        // the name prefixes rank by the username as well
+        assertEquals(List.of("anna", "annabelle", "bo"), usernames(searchIndex.search("an", 3)));
+    }
+
+    @Test
+    public void put_renamedUser_oldUsernameNotFound() {
+        searchIndex.put(5L, "oldname", "Someone");
+
+        searchIndex.put(5L, "newname", null);
+
+        assertTrue(searchIndex.search("oldname", 10).isEmpty());
+        List<UserSearchResultDTO> results = searchIndex.search("newname", 10);
+        assertEquals(List.of("newname"), usernames(results));
+        // the name is kept
+        assertEquals("Someone", results.get(0).getName());
+        assertEquals(5, searchIndex.size());
+    }
+
+    private static List<String> usernames(List<UserSearchResultDTO> results) {
+        return results.stream().map(UserSearchResultDTO::getUsername).collect(Collectors.toList());
+    }
+}
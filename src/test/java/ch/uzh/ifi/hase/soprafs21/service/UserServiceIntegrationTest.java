@@ -1,17 +1,30 @@
 package ch.uzh.ifi.hase.soprafs21.service;
 
+import ch.uzh.ifi.hase.soprafs21.constant.UserImportStatus;
 import ch.uzh.ifi.hase.soprafs21.constant.UserStatus;
 import ch.uzh.ifi.hase.soprafs21.entity.User;
 import ch.uzh.ifi.hase.soprafs21.repository.UserRepository;
+import ch.uzh.ifi.hase.soprafs21.rest.dto.UserImportResultDTO;
 import ch.uzh.ifi.hase.soprafs21.rest.dto.UserPostDTO;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpStatus;
 import org.springframework.test.context.web.WebAppConfiguration;
 import org.springframework.web.server.ResponseStatusException;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 /**
@@ -30,6 +43,15 @@ public class UserServiceIntegrationTest {
     @Autowired
     private UserService userService;
 
+    @Autowired
+    private OnlineUserCounter onlineCounter;
+
+    @Autowired
+    private TokenIndex tokenIndex;
+
+    @Autowired
+    private SessionExpiry sessionExpiry;
+
     @BeforeEach
     public void setup() {
         userRepository.deleteAll();
@@ -81,4 +103,247 @@ public class UserServiceIntegrationTest {
         // check that an error is thrown
         assertThrows(ResponseStatusException.class, () -> userService.createUser(testUser2));
     }
+
+    @Test
+    public void createUser_usernameOnlyInDatabase_conflictFromConstraint() {
+        // a user the username filter does not know about, like one inserted by another instance,
+        // unique per run because the filter outlives the deleted rows
+        String username = "testUsername-" + UUID.randomUUID();
+        User stored = newUser(username);
+        stored.setToken("1");
+        stored.setStatus(UserStatus.OFFLINE);
+        stored.setCreationDate("01/01/2021 00:00:00");
+        userRepository.saveAndFlush(stored);
+
+        ResponseStatusException exception = assertThrows(ResponseStatusException.class, () -> userService.createUser(newUser(username)));
+
+        assertEquals(HttpStatus.CONFLICT, exception.getStatus());
+        assertEquals(1, userRepository.count());
+    }
+
+    @Test
+    public void updateUser_usernameTaken_conflict() {
+        userService.createUser(newUser("first"));
+        User second = userService.createUser(newUser("second"));
+
+        UserPostDTO userEditDTO = new UserPostDTO();
+        userEditDTO.setUsername("first");
+
+        ResponseStatusException exception = assertThrows(ResponseStatusException.class, () -> userService.updateUser(second.getId(), userEditDTO));
+
+        assertEquals(HttpStatus.CONFLICT, exception.getStatus());
+    }
+
+    @Test
+    public void updateUser_staleVersion_preconditionFailed() {
+        User user = userService.createUser(newUser("versioned"));
+        Long readVersion = userService.getUser(user.getId()).getVersion();
+
+        UserPostDTO firstEdit = new UserPostDTO();
+        firstEdit.setBirthday("01.01.2000");
+        userService.updateUser(user.getId(), firstEdit, readVersion);
+
+        // a second edit based on the same read does not overwrite the first one
+        UserPostDTO secondEdit = new UserPostDTO();
+        secondEdit.setBirthday("02.02.2002");
+        ResponseStatusException exception = assertThrows(ResponseStatusException.class,
+                () -> userService.updateUser(user.getId(), secondEdit, readVersion));
+        assertEquals(HttpStatus.PRECONDITION_FAILED, exception.getStatus());
+
+        // a logout in between does not change the version
+        userService.logout(user.getId());
+        User updated = userService.getUser(user.getId());
+        assertEquals("01.01.2000", updated.getBirthday());
+        assertEquals(readVersion + 1, updated.getVersion());
+
+        ResponseStatusException missing = assertThrows(ResponseStatusException.class,
+                () -> userService.updateUser(-1L, secondEdit, 0L));
+        assertEquals(HttpStatus.NOT_FOUND, missing.getStatus());
+    }
+
+    @Test
+    public void exportUsers_streamsAllUsersInIdOrder() {
+        for (int i = 0; i < 3; i++) {
+            User user = new User();
+            user.setName("testName");
+            user.setUsername("testUsername" + i);
+            userService.createUser(user);
+        }
+
+        List<String> exported = new ArrayList<>();
+        userService.exportUsers(user -> exported.add(user.getUsername()));
+
+        assertEquals(List.of("testUsername0", "testUsername1", "testUsername2"), exported);
+    }
+
+    @Test
+    public void importUsers_reportsConflictsPerRow() {
+        User existing = new User();
+        existing.setName("testName");
+        existing.setUsername("taken");
+        userService.createUser(existing);
+
+        List<User> newUsers = new ArrayList<>();
+        newUsers.add(newUser("fresh"));
+        newUsers.add(newUser("taken"));
+        newUsers.add(newUser("fresh"));
+        newUsers.add(null);
+        newUsers.add(newUser(null));
+
+        List<UserImportResultDTO> results = userService.importUsers(newUsers);
+
+        assertEquals(UserImportStatus.CREATED, results.get(0).getStatus());
+        assertNotNull(results.get(0).getId());
+        assertEquals(UserImportStatus.CONFLICT, results.get(1).getStatus());
+        assertEquals(UserImportStatus.CONFLICT, results.get(2).getStatus());
+        assertEquals(UserImportStatus.INVALID, results.get(3).getStatus());
+        assertEquals(UserImportStatus.INVALID, results.get(4).getStatus());
+
+        User imported = userRepository.findByUsername("fresh");
+        assertEquals(UserStatus.OFFLINE, imported.getStatus());
+        assertNotNull(imported.getToken());
+        assertEquals(2, userRepository.count());
+    }
+
+    @Test
+    public void importUsers_usernameOnlyInDatabase_conflictWithoutAbortingOtherChunks() {
+        // a username the filter does not know about, like one taken by another instance since the check,
+        // unique per run because the filter outlives the deleted rows
+        String taken = "taken-" + UUID.randomUUID();
+        User stored = newUser(taken);
+        stored.setToken("1");
+        stored.setStatus(UserStatus.OFFLINE);
+        stored.setCreationDate("01/01/2021 00:00:00");
+        userRepository.saveAndFlush(stored);
+
+        List<User> newUsers = new ArrayList<>();
+        for (int i = 0; i < UserService.IMPORT_CHUNK_SIZE + 2; i++) {
+            newUsers.add(newUser("import-" + UUID.randomUUID()));
+        }
+        // in the second chunk
+        newUsers.set(UserService.IMPORT_CHUNK_SIZE, newUser(taken));
+
+        List<UserImportResultDTO> results = userService.importUsers(newUsers);
+
+        assertEquals(newUsers.size(), results.size());
+        for (int i = 0; i < results.size(); i++) {
+            assertEquals(i, results.get(i).getIndex());
+            UserImportStatus expected = i == UserService.IMPORT_CHUNK_SIZE ? UserImportStatus.CONFLICT : UserImportStatus.CREATED;
+            assertEquals(expected, results.get(i).getStatus());
+        }
+        assertNotNull(results.get(UserService.IMPORT_CHUNK_SIZE + 1).getId());
+        assertEquals(newUsers.size(), userRepository.count());
+    }
+
+    @Test
+    public void getOnlineCount_followsTransitions() {
+        // the users of the other tests were deleted past the service
+        onlineCounter.reconcile();
+        assertEquals(0, userService.getOnlineCount());
+
+        User first = new User();
+        first.setName("firstName");
+        first.setUsername("firstUsername");
+        Long firstId = userService.createUser(first).getId();
+        User second = new User();
+        second.setName("secondName");
+        second.setUsername("secondUsername");
+        userService.createUser(second);
+        User imported = new User();
+        imported.setName("importedName");
+        imported.setUsername("importedUsername");
+        userService.importUsers(List.of(imported));
+        assertEquals(2, userService.getOnlineCount());
+
+        userService.logout(firstId);
+        assertEquals(1, userService.getOnlineCount());
+
+        User credentials = new User();
+        credentials.setName("firstName");
+        credentials.setUsername("firstUsername");
+        userService.handleLoginRequest(credentials).join();
+        assertEquals(2, userService.getOnlineCount());
+        assertEquals(0, onlineCounter.reconcile());
+    }
+
+    @Test
+    public void concurrentLoginAndLogout_memoryMatchesTable() throws Exception {
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            ids.add(userService.createUser(newUser("racer" + i)).getId());
+        }
+        onlineCounter.reconcile();
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> results = new ArrayList<>();
+        try {
+            for (int thread = 0; thread < 8; thread++) {
+                results.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < 100; i++) {
+                        int user = ThreadLocalRandom.current().nextInt(ids.size());
+                        if (ThreadLocalRandom.current().nextBoolean()) {
+                            userService.handleLoginRequest(newUser("racer" + user)).join();
+                        }
+                        else {
+                            userService.logout(ids.get(user));
+                        }
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> result : results) {
+                result.get(60, TimeUnit.SECONDS);
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        // whichever transition of a user came last, the table and the in-memory state agree on it
+        int online = 0;
+        for (Long id : ids) {
+            boolean onlineInTable = userRepository.findById(id).orElseThrow().getStatus() == UserStatus.ONLINE;
+            assertEquals(onlineInTable, tokenIndex.tokenOf(id) != null, "token of user " + id);
+            assertEquals(onlineInTable, sessionExpiry.isActive(id), "session of user " + id);
+            online += onlineInTable ? 1 : 0;
+        }
+        assertEquals(online, userService.getOnlineCount());
+    }
+
+    @Test
+    public void getChanges_onlyUsersChangedAfterCursor() {
+        User first = userService.createUser(newUser("first"));
+        User second = userService.createUser(newUser("second"));
+        User third = userService.createUser(newUser("third"));
+        long cursor = userService.getStableChangeSeq();
+        assertEquals(3, userService.getChanges(0, cursor, 10).size());
+        assertTrue(userService.getChanges(cursor, cursor, 10).isEmpty());
+
+        // when -> an update and a logout, the first user is not touched
+        UserPostDTO userEditDTO = new UserPostDTO();
+        userEditDTO.setBirthday("01.01.2000");
+        userService.updateUser(third.getId(), userEditDTO);
+        userService.logout(second.getId());
+
+        // then -> in the order of the changes
+        long until = userService.getStableChangeSeq();
+        List<User> changes = userService.getChanges(cursor, until, 10);
+        assertEquals(2, changes.size());
+        assertEquals(third.getId(), changes.get(0).getId());
+        assertEquals("01.01.2000", changes.get(0).getBirthday());
+        assertEquals(second.getId(), changes.get(1).getId());
+        assertEquals(UserStatus.OFFLINE, changes.get(1).getStatus());
+        assertEquals(until, changes.get(1).getChangeSeq());
+        assertTrue(first.getChangeSeq() <= cursor);
+    }
+
+    private User newUser(String username) {
+        User user = new User();
+        user.setName("testName");
+        user.setUsername(username);
+        return user;
+    }
 }
@@ -0,0 +1,223 @@
+package ch.uzh.ifi.hase.soprafs21.service;
+
+import ch.uzh.ifi.hase.soprafs21.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs21.entity.User;
+import ch.uzh.ifi.hase.soprafs21.repository.UserRepository;
+import ch.uzh.ifi.hase.soprafs21.rest.dto.UserPostDTO;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.CacheRegionStatistics;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.server.ResponseStatusException;
+
+import javax.persistence.EntityManagerFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that the single user operations only touch the row they are about,
+ * i.e. the number of statements and loaded entities does not grow with the table.
+ *
+ * @see UserService
+ */
+@WebAppConfiguration
+@SpringBootTest(properties = "spring.jpa.properties.hibernate.generate_statistics=true")
+public class UserServiceQueryCountIntegrationTest {
+
+    @Qualifier("userRepository")
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private UserService userService;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private Statistics statistics;
+
+    @BeforeEach
+    public void setup() {
+        userRepository.deleteAll();
+        statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+    }
+
+    @Test
+    public void getUser_statementsDoNotGrowWithTable() {
+        Long id = addUsers(10).get(0).getId();
+        long[] small = measure(() -> userService.getUser(id));
+
+        addUsers(200);
+        long[] large = measure(() -> userService.getUser(id));
+
+        assertArrayEquals(small, large);
+        assertTrue(large[0] <= 1);
+        assertTrue(large[1] <= 1);
+    }
+
+    @Test
+    public void updateUser_statementsDoNotGrowWithTable() {
+        Long id = addUsers(10).get(0).getId();
+        UserPostDTO userEditDTO = new UserPostDTO();
+        userEditDTO.setBirthday("01.01.2000");
+        long[] small = measure(() -> userService.updateUser(id, userEditDTO));
+
+        addUsers(200);
+        long[] large = measure(() -> userService.updateUser(id, userEditDTO));
+
+        assertArrayEquals(small, large);
+        assertEquals(0, large[1]);
+        assertEquals("01.01.2000", userRepository.findById(id).orElseThrow().getBirthday());
+    }
+
+    @Test
+    public void logout_statementsDoNotGrowWithTable() {
+        Long id = addUsers(10).get(0).getId();
+        long[] small = measure(() -> userService.logout(id));
+
+        addUsers(200);
+        long[] large = measure(() -> userService.logout(id));
+
+        assertArrayEquals(small, large);
+        assertEquals(0, large[1]);
+        assertEquals(UserStatus.OFFLINE, userRepository.findById(id).orElseThrow().getStatus());
+    }
+
+    @Test
+    public void getUser_repeated_servedFromCache() {
+        Long id = addUsers(1).get(0).getId();
+        userService.getUser(id);
+
+        long[] cached = measure(() -> userService.getUser(id));
+
+        assertArrayEquals(new long[]{0, 0}, cached);
+        assertTrue(statistics.getDomainDataRegionStatistics("user").getHitCount() > 0);
+    }
+
+    @Test
+    public void logout_evictsOnlyThisUser() {
+        List<User> users = addUsers(2);
+        Long loggedOut = users.get(0).getId();
+        Long other = users.get(1).getId();
+        userService.getUser(loggedOut);
+        userService.getUser(other);
+
+        userService.logout(loggedOut);
+
+        assertArrayEquals(new long[]{0, 0}, measure(() -> userService.getUser(other)));
+        assertEquals(UserStatus.OFFLINE, userService.getUser(loggedOut).getStatus());
+    }
+
+    @Test
+    public void statusUpdate_readInBetween_doesNotCacheOldStatus() throws Exception {
+        Long id = addUsers(1).get(0).getId();
+        userRepository.findById(id);
+        CacheRegionStatistics userRegion = statistics.getDomainDataRegionStatistics("user");
+        ExecutorService reader = Executors.newSingleThreadExecutor();
+        try {
+            new TransactionTemplate(transactionManager).executeWithoutResult(status -> {
+                userRepository.updateStatus(id, UserStatus.OFFLINE, 1L);
+                long puts = userRegion.getPutCount();
+
+                // another transaction reads the old status before the update is committed, it must not cache it
+                UserStatus readInBetween = readStatus(reader, id);
+
+                assertEquals(UserStatus.ONLINE, readInBetween);
+                assertEquals(puts, userRegion.getPutCount());
+            });
+
+            assertEquals(UserStatus.OFFLINE, readStatus(reader, id));
+            // the user is cached again after the update
+            long hits = userRegion.getHitCount();
+            assertEquals(UserStatus.OFFLINE, readStatus(reader, id));
+            assertEquals(hits + 1, userRegion.getHitCount());
+        }
+        finally {
+            reader.shutdownNow();
+        }
+    }
+
+    @Test
+    public void findByUsername_repeated_servedFromCache_untilRenamed() {
+        User user = addUsers(1).get(0);
+        String oldUsername = user.getUsername();
+        String newUsername = oldUsername + "-renamed";
+        userRepository.findByUsername(oldUsername);
+        assertNull(userRepository.findByUsername(newUsername));
+
+        assertArrayEquals(new long[]{0, 0}, measure(() -> userRepository.findByUsername(oldUsername)));
+        assertTrue(statistics.getQueryCacheHitCount() > 0);
+
+        UserPostDTO userEditDTO = new UserPostDTO();
+        userEditDTO.setUsername(newUsername);
+        userService.updateUser(user.getId(), userEditDTO);
+
+        assertNull(userRepository.findByUsername(oldUsername));
+        assertEquals(user.getId(), userRepository.findByUsername(newUsername).getId());
+        assertEquals(newUsername, userService.getUser(user.getId()).getUsername());
+    }
+
+    @Test
+    public void missingUser_notFound() {
+        UserPostDTO userEditDTO = new UserPostDTO();
+
+        ResponseStatusException getException = assertThrows(ResponseStatusException.class, () -> userService.getUser(-1L));
+        ResponseStatusException updateException = assertThrows(ResponseStatusException.class, () -> userService.updateUser(-1L, userEditDTO));
+        ResponseStatusException logoutException = assertThrows(ResponseStatusException.class, () -> userService.logout(-1L));
+
+        assertEquals(HttpStatus.NOT_FOUND, getException.getStatus());
+        assertEquals(HttpStatus.NOT_FOUND, updateException.getStatus());
+        assertEquals(HttpStatus.NOT_FOUND, logoutException.getStatus());
+    }
+
+    /**
+     * Helper Method that runs the given call and returns the prepared statements and loaded entities it caused
+     * @param call
+     * @return {statements, entity loads}
+     */
+    private long[] measure(Runnable call) {
+        statistics.clear();
+        call.run();
+        return new long[]{statistics.getPrepareStatementCount(), statistics.getEntityLoadCount()};
+    }
+
+    private UserStatus readStatus(ExecutorService reader, Long id) {
+        try {
+            return reader.submit(() -> userRepository.findById(id).orElseThrow().getStatus()).get();
+        }
+        catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private List<User> addUsers(int count) {
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            User user = new User();
+            user.setName("name");
+            user.setUsername("username-" + System.nanoTime() + "-" + i);
+            user.setToken(UUID.randomUUID().toString());
+            user.setStatus(UserStatus.ONLINE);
+            user.setCreationDate("01/01/2021 00:00:00");
+            users.add(user);
+        }
+        return userRepository.saveAll(users);
+    }
+}
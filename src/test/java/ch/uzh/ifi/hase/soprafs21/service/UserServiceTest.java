@@ -5,12 +5,22 @@ import ch.uzh.ifi.hase.soprafs21.entity.User;
 import ch.uzh.ifi.hase.soprafs21.repository.UserRepository;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
+import org.springframework.dao.CannotAcquireLockException;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.web.server.ResponseStatusException;
 
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 public class UserServiceTest {
@@ -18,6 +28,42 @@ public class UserServiceTest {
     @Mock
     private UserRepository userRepository;
 
+    @Mock
+    private TokenIndex tokenIndex;
+
+    @Mock
+    private UserStatusWriteBehind statusWriteBehind;
+
+    @Mock
+    private PresenceBroadcaster presenceBroadcaster;
+
+    @Mock
+    private UserChangeTracker changeTracker;
+
+    @Mock
+    private UsernameFilter usernameFilter;
+
+    @Mock
+    private CredentialVerifier credentialVerifier;
+
+    @Mock
+    private UserSearchIndex searchIndex;
+
+    @Mock
+    private UserChangeSequence changeSequence;
+
+    @Mock
+    private OnlineUserCounter onlineCounter;
+
+    @Mock
+    private SessionExpiry sessionExpiry;
+
+    @Mock
+    private PlatformTransactionManager transactionManager;
+
+    @Mock
+    private Executor taskExecutor;
+
     @InjectMocks
     private UserService userService;
 
@@ -35,6 +81,9 @@ public class UserServiceTest {
 
         // when -> any object is being save in the userRepository -> return the dummy testUser
         Mockito.when(userRepository.save(Mockito.any())).thenReturn(testUser);
+
+        // the filter cannot rule out any username -> the repository is always asked
+        Mockito.when(usernameFilter.mightContain(Mockito.any())).thenReturn(true);
     }
 
     @Test
@@ -65,4 +114,121 @@ public class UserServiceTest {
         assertThrows(ResponseStatusException.class, () -> userService.createUser(testUser));
     }
 
+    @Test
+    public void createUser_inTransaction_tokenSessionAndPresenceAfterCommit() {
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            userService.createUser(testUser);
+
+            // nothing outside the database may see the user before its insert committed
+            Mockito.verifyNoInteractions(tokenIndex, sessionExpiry, presenceBroadcaster);
+
+            TransactionSynchronizationManager.getSynchronizations().forEach(TransactionSynchronization::afterCommit);
+
+            Mockito.verify(tokenIndex).register(1L, testUser.getToken());
+            Mockito.verify(sessionExpiry).start(1L);
+            Mockito.verify(presenceBroadcaster).publish(1L, UserStatus.ONLINE);
+        }
+        finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    @Test
+    public void login_statusWrittenOnTaskExecutor() {
+        Mockito.when(userRepository.findByUsername("testUsername")).thenReturn(testUser);
+        Mockito.when(credentialVerifier.verify("testName", "testName")).thenReturn(CompletableFuture.completedFuture(true));
+        Mockito.when(userRepository.updateStatusAndToken(Mockito.eq(1L), Mockito.eq(UserStatus.ONLINE), Mockito.any(), Mockito.anyLong())).thenReturn(1);
+        ArgumentCaptor<Runnable> task = ArgumentCaptor.forClass(Runnable.class);
+        String oldToken = testUser.getToken();
+
+        User credentials = new User();
+        credentials.setName("testName");
+        credentials.setUsername("testUsername");
+        CompletableFuture<User> login = userService.handleLoginRequest(credentials);
+
+        // the check is done, the status is written once the executor runs the rest
+        Mockito.verify(taskExecutor).execute(task.capture());
+        assertFalse(login.isDone());
+        Mockito.verify(userRepository, Mockito.never()).updateStatusAndToken(Mockito.anyLong(), Mockito.any(), Mockito.any(), Mockito.anyLong());
+
+        task.getValue().run();
+
+        // a new token, written with the status and registered instead of the old one
+        User loggedIn = login.join();
+        assertEquals(UserStatus.ONLINE, loggedIn.getStatus());
+        assertNotNull(loggedIn.getToken());
+        assertNotEquals(oldToken, loggedIn.getToken());
+        Mockito.verify(userRepository).updateStatusAndToken(Mockito.eq(1L), Mockito.eq(UserStatus.ONLINE), Mockito.eq(loggedIn.getToken()), Mockito.anyLong());
+        Mockito.verify(tokenIndex).register(1L, loggedIn.getToken());
+    }
+
+    @Test
+    public void logout_lockConflict_retried() {
+        Mockito.when(userRepository.updateStatus(Mockito.eq(1L), Mockito.eq(UserStatus.OFFLINE), Mockito.anyLong()))
+                .thenThrow(new CannotAcquireLockException("deadlock"))
+                .thenReturn(1);
+
+        userService.logout(1L);
+
+        Mockito.verify(userRepository, Mockito.times(2)).updateStatus(Mockito.eq(1L), Mockito.eq(UserStatus.OFFLINE), Mockito.anyLong());
+        Mockito.verify(tokenIndex).revoke(1L);
+        Mockito.verify(onlineCounter).markOffline(1L);
+    }
+
+    @Test
+    public void logout_lockConflictPersists_givesUp() {
+        Mockito.when(userRepository.updateStatus(Mockito.eq(1L), Mockito.eq(UserStatus.OFFLINE), Mockito.anyLong()))
+                .thenThrow(new CannotAcquireLockException("deadlock"));
+
+        assertThrows(CannotAcquireLockException.class, () -> userService.logout(1L));
+
+        Mockito.verify(userRepository, Mockito.times(UserService.STATUS_UPDATE_ATTEMPTS))
+                .updateStatus(Mockito.eq(1L), Mockito.eq(UserStatus.OFFLINE), Mockito.anyLong());
+        Mockito.verifyNoInteractions(tokenIndex);
+        Mockito.verifyNoInteractions(onlineCounter);
+    }
+
+    @Test
+    public void heartbeat_noSession_notFound() {
+        Mockito.when(sessionExpiry.touch(1L)).thenReturn(false);
+
+        assertThrows(ResponseStatusException.class, () -> userService.heartbeat(1L));
+        Mockito.verifyNoInteractions(userRepository);
+    }
+
+    @Test
+    public void expireSessions_oneStatement() {
+        Mockito.when(changeSequence.next()).thenReturn(7L, 8L);
+
+        userService.expireSessions(List.of(1L, 2L));
+
+        Mockito.verify(userRepository).updateStatuses(Map.of(1L, 7L, 2L, 8L), UserStatus.OFFLINE);
+        Mockito.verify(userRepository, Mockito.never()).updateStatus(Mockito.any(), Mockito.any(), Mockito.anyLong());
+        Mockito.verify(changeSequence).release(7L);
+        Mockito.verify(changeSequence).release(8L);
+        Mockito.verify(tokenIndex).revoke(1L);
+        Mockito.verify(tokenIndex).revoke(2L);
+        Mockito.verify(onlineCounter).markOffline(2L);
+        Mockito.verify(presenceBroadcaster).publish(1L, UserStatus.OFFLINE);
+    }
+
+    @Test
+    public void expireSessions_loggedInAgain_setOnlineAgain() {
+        Mockito.when(sessionExpiry.isActive(1L)).thenReturn(true);
+        Mockito.when(userRepository.updateStatus(Mockito.eq(1L), Mockito.eq(UserStatus.ONLINE), Mockito.anyLong())).thenReturn(1);
+
+        userService.expireSessions(List.of(1L));
+
+        Mockito.verify(userRepository).updateStatus(Mockito.eq(1L), Mockito.eq(UserStatus.ONLINE), Mockito.anyLong());
+        Mockito.verifyNoInteractions(tokenIndex, onlineCounter);
+    }
+
+    @Test
+    public void expireSessions_nothingExpired_noStatement() {
+        userService.expireSessions(List.of());
+
+        Mockito.verifyNoInteractions(userRepository);
+    }
+
 }
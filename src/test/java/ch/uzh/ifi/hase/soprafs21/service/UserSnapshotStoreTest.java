@@ -0,0 +1,96 @@
+package ch.uzh.ifi.hase.soprafs21.service;
+
+import ch.uzh.ifi.hase.soprafs21.entity.User;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import javax.persistence.EntityManagerFactory;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class UserSnapshotStoreTest {
+
+    private final JdbcTemplate jdbcTemplate = new JdbcTemplate(
+            new DriverManagerDataSource("jdbc:h2:mem:snapshot;DB_CLOSE_DELAY=-1", "sa", ""));
+
+    @TempDir
+    Path directory;
+
+    private UserStatusWriteBehind statusWriteBehind;
+
+    @BeforeEach
+    public void setup() {
+        jdbcTemplate.execute("create table USER (ID bigint primary key, NAME varchar(255) not null, " +
+                "USERNAME varchar(255) not null, STATUS integer not null, BIRTHDAY varchar(255), CREATED_AT timestamp)");
+        jdbcTemplate.execute("create sequence " + User.ID_SEQUENCE + " start with 1 increment by " + User.ID_ALLOCATION_SIZE);
+        statusWriteBehind = Mockito.mock(UserStatusWriteBehind.class);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        jdbcTemplate.execute("drop table USER");
+        jdbcTemplate.execute("drop sequence " + User.ID_SEQUENCE);
+    }
+
+    @Test
+    public void saveAndLoad_restoresRowsAndSequence() {
+        Timestamp createdAt = Timestamp.valueOf("2021-03-01 12:00:00.123456");
+        for (long id = 1; id <= 1_000; id++) {
+            jdbcTemplate.update("insert into USER values (?, ?, ?, ?, ?, ?)", id, "name" + id, "user" + id, (int) (id % 2),
+                    id == 1 ? null : "01.01.2000", createdAt);
+        }
+        UserSnapshotStore snapshotStore = snapshotStore();
+
+        snapshotStore.save();
+        Mockito.verify(statusWriteBehind).flush();
+        jdbcTemplate.execute("delete from USER");
+        snapshotStore.load();
+
+        assertEquals(1_000, jdbcTemplate.queryForObject("select count(*) from USER", Long.class));
+        Map<String, Object> first = jdbcTemplate.queryForMap("select * from USER where ID = 1");
+        assertEquals("user1", first.get("USERNAME"));
+        assertEquals(1, first.get("STATUS"));
+        assertNull(first.get("BIRTHDAY"));
+        assertEquals(createdAt, first.get("CREATED_AT"));
+        // new ids are above the loaded ones
+        assertTrue(jdbcTemplate.queryForObject("select next value for " + User.ID_SEQUENCE, Long.class) > 1_000 + User.ID_ALLOCATION_SIZE);
+    }
+
+    @Test
+    public void load_skippedWhenTableNotEmpty() {
+        jdbcTemplate.update("insert into USER values (1, 'name', 'user', 0, null, null)");
+        UserSnapshotStore snapshotStore = snapshotStore();
+        snapshotStore.save();
+
+        jdbcTemplate.update("insert into USER values (2, 'other', 'other', 0, null, null)");
+        snapshotStore.load();
+
+        assertEquals(2, jdbcTemplate.queryForObject("select count(*) from USER", Long.class));
+    }
+
+    @Test
+    public void load_columnAddedLater_leftEmpty() {
+        jdbcTemplate.update("insert into USER values (1, 'name', 'user', 0, null, null)");
+        UserSnapshotStore snapshotStore = snapshotStore();
+        snapshotStore.save();
+
+        jdbcTemplate.execute("delete from USER");
+        jdbcTemplate.execute("alter table USER add column VERSION bigint");
+        snapshotStore.load();
+
+        assertNull(jdbcTemplate.queryForMap("select * from USER where ID = 1").get("VERSION"));
+    }
+
+    private UserSnapshotStore snapshotStore() {
+        return new UserSnapshotStore(jdbcTemplate, statusWriteBehind, Mockito.mock(EntityManagerFactory.class),
+                directory.resolve("users.snapshot").toString());
+    }
+}
@@ -0,0 +1,103 @@
+package ch.uzh.ifi.hase.soprafs21.service;
+
+import ch.uzh.ifi.hase.soprafs21.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs21.entity.User;
+import ch.uzh.ifi.hase.soprafs21.repository.UserField;
+import ch.uzh.ifi.hase.soprafs21.repository.UserPageQuery;
+import ch.uzh.ifi.hase.soprafs21.repository.UserRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.web.WebAppConfiguration;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Runs login and logout with the write-behind of status changes enabled.
+ * The scheduled flush is pushed far out, so the test decides when the changes are written.
+ */
+@WebAppConfiguration
+@SpringBootTest(properties = {
+        "soprafs21.write-behind.enabled=true",
+        "soprafs21.write-behind.flush-interval-ms=3600000"
+})
+public class UserStatusWriteBehindIntegrationTest {
+
+    @Qualifier("userRepository")
+    @Autowired
+    private UserRepository userRepository;
+
+    @Autowired
+    private UserService userService;
+
+    @Autowired
+    private UserStatusWriteBehind statusWriteBehind;
+
+    @BeforeEach
+    public void setup() {
+        statusWriteBehind.flush();
+        userRepository.deleteAll();
+    }
+
+    @Test
+    public void logoutAndLogin_visibleRightAway_writtenOnFlush() {
+        User testUser = new User();
+        testUser.setName("testName");
+        testUser.setUsername("testUsername");
+        Long id = userService.createUser(testUser).getId();
+
+        userService.logout(id);
+
+        // the service already answers with the new status, the database does not know it yet
+        assertEquals(UserStatus.OFFLINE, userService.getUser(id).getStatus());
+        assertEquals(UserStatus.ONLINE, userRepository.findById(id).orElseThrow().getStatus());
+
+        User credentials = new User();
+        credentials.setName("testName");
+        credentials.setUsername("testUsername");
+        User loggedIn = userService.handleLoginRequest(credentials).join();
+        assertEquals(UserStatus.ONLINE, loggedIn.getStatus());
+        userService.logout(id);
+
+        statusWriteBehind.flush();
+
+        assertEquals(UserStatus.OFFLINE, userRepository.findById(id).orElseThrow().getStatus());
+        // the token of the login is written with the status
+        assertEquals(loggedIn.getToken(), userRepository.findById(id).orElseThrow().getToken());
+        assertEquals(0, statusWriteBehind.pendingCount());
+    }
+
+    @Test
+    public void statusFilter_seesPendingStatus() {
+        Long leaving = userService.createUser(newUser("leaving")).getId();
+        Long staying = userService.createUser(newUser("staying")).getId();
+        Long offline = userService.createUser(newUser("offline")).getId();
+        userService.logout(offline);
+        statusWriteBehind.flush();
+
+        // pending: the first goes offline, the third comes back online
+        userService.logout(leaving);
+        userService.handleLoginRequest(newUser("offline")).join();
+
+        UserPageQuery online = new UserPageQuery(null, 10, UserStatus.ONLINE, null, null);
+        assertEquals(List.of(staying, offline), ids(userService.getUsers(online)));
+        assertEquals(List.of(leaving), ids(userService.getUsers(new UserPageQuery(null, 10, UserStatus.OFFLINE, null, null))));
+        assertEquals(2, userService.getUsers(online, UserField.parse("username")).size());
+    }
+
+    private User newUser(String username) {
+        User user = new User();
+        user.setName("testName");
+        user.setUsername(username);
+        return user;
+    }
+
+    private static List<Long> ids(List<User> users) {
+        return users.stream().map(User::getId).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,124 @@
+package ch.uzh.ifi.hase.soprafs21.service;
+
+import ch.uzh.ifi.hase.soprafs21.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs21.entity.User;
+import ch.uzh.ifi.hase.soprafs21.repository.UserRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ParameterizedPreparedStatementSetter;
+
+import java.sql.PreparedStatement;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class UserStatusWriteBehindTest {
+
+    @Mock
+    private JdbcTemplate jdbcTemplate;
+
+    @Mock
+    private UserRepository userRepository;
+
+    private UserStatusWriteBehind statusWriteBehind;
+
+    @BeforeEach
+    public void setup() {
+        MockitoAnnotations.openMocks(this);
+        statusWriteBehind = new UserStatusWriteBehind(jdbcTemplate, userRepository, new UserChangeSequence(jdbcTemplate), true, 100);
+    }
+
+    @Test
+    public void flush_writesOnlyLatestStatusPerUser() {
+        statusWriteBehind.enqueue(1L, UserStatus.ONLINE);
+        statusWriteBehind.enqueue(2L, UserStatus.ONLINE);
+        statusWriteBehind.enqueue(1L, UserStatus.OFFLINE);
+
+        statusWriteBehind.flush();
+
+        Map<Long, UserStatus> written = captureBatch();
+        assertEquals(2, written.size());
+        assertEquals(UserStatus.OFFLINE, written.get(1L));
+        assertEquals(UserStatus.ONLINE, written.get(2L));
+        assertEquals(0, statusWriteBehind.pendingCount());
+        // written past Hibernate, the cached users are stale
+        Mockito.verify(userRepository).evict(Mockito.argThat(ids -> ids.containsAll(List.of(1L, 2L)) && ids.size() == 2));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void flush_loginToken_writtenWithLaterStatus() throws Exception {
+        statusWriteBehind.enqueue(1L, UserStatus.ONLINE, "new-token");
+        statusWriteBehind.enqueue(1L, UserStatus.OFFLINE);
+        statusWriteBehind.enqueue(2L, UserStatus.OFFLINE);
+
+        statusWriteBehind.flush();
+
+        ArgumentCaptor<Collection<Map.Entry<Long, UserStatus>>> batch = ArgumentCaptor.forClass(Collection.class);
+        ArgumentCaptor<ParameterizedPreparedStatementSetter<Map.Entry<Long, UserStatus>>> setter =
+                ArgumentCaptor.forClass(ParameterizedPreparedStatementSetter.class);
+        Mockito.verify(jdbcTemplate).batchUpdate(Mockito.eq(UserStatusWriteBehind.UPDATE_STATUS_SQL), batch.capture(),
+                Mockito.eq(100), setter.capture());
+        Map<Long, PreparedStatement> statements = new HashMap<>();
+        for (Map.Entry<Long, UserStatus> change : batch.getValue()) {
+            PreparedStatement statement = Mockito.mock(PreparedStatement.class);
+            setter.getValue().setValues(statement, change);
+            statements.put(change.getKey(), statement);
+        }
+
+        // the token of the login is not lost to the logout, a change without a token keeps the written one
+        Mockito.verify(statements.get(1L)).setString(2, "new-token");
+        Mockito.verify(statements.get(2L)).setString(2, null);
+    }
+
+    @Test
+    public void overlay_showsPendingStatus() {
+        User user = new User();
+        user.setId(1L);
+        user.setStatus(UserStatus.OFFLINE);
+
+        statusWriteBehind.enqueue(1L, UserStatus.ONLINE);
+
+        assertEquals(UserStatus.ONLINE, statusWriteBehind.overlay(user).getStatus());
+    }
+
+    @Test
+    public void flush_failed_keepsChanges() {
+        Mockito.when(jdbcTemplate.batchUpdate(Mockito.anyString(), Mockito.anyCollection(), Mockito.anyInt(),
+                Mockito.<ParameterizedPreparedStatementSetter<Object>>any())).thenThrow(new DataAccessResourceFailureException("down"));
+
+        statusWriteBehind.enqueue(1L, UserStatus.ONLINE);
+        statusWriteBehind.flush();
+
+        assertEquals(UserStatus.ONLINE, statusWriteBehind.pendingStatus(1L));
+    }
+
+    @Test
+    public void flush_nothingPending_noStatement() {
+        statusWriteBehind.flush();
+
+        Mockito.verifyNoInteractions(jdbcTemplate);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<Long, UserStatus> captureBatch() {
+        ArgumentCaptor<Collection<Map.Entry<Long, UserStatus>>> batch = ArgumentCaptor.forClass(Collection.class);
+        Mockito.verify(jdbcTemplate).batchUpdate(Mockito.eq(UserStatusWriteBehind.UPDATE_STATUS_SQL), batch.capture(),
+                Mockito.eq(100), Mockito.any());
+
+        Map<Long, UserStatus> written = new HashMap<>();
+        for (Map.Entry<Long, UserStatus> entry : batch.getValue()) {
+            written.put(entry.getKey(), entry.getValue());
+        }
+        return written;
+    }
+}
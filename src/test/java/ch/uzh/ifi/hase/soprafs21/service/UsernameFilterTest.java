@@ -0,0 +1,57 @@
+package ch.uzh.ifi.hase.soprafs21.service;
+
+import ch.uzh.ifi.hase.soprafs21.repository.UserRepository;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class UsernameFilterTest {
+
+    private static final int USERNAMES = 10_000;
+
+    @Test
+    public void addedUsernames_alwaysMightBeContained() {
+        UsernameFilter usernameFilter = new UsernameFilter(Mockito.mock(UserRepository.class), USERNAMES, 0.01);
+
+        for (int i = 0; i < USERNAMES; i++) {
+            usernameFilter.add("user" + i);
+        }
+
+        for (int i = 0; i < USERNAMES; i++) {
+            assertTrue(usernameFilter.mightContain("user" + i));
+        }
+    }
+
+    @Test
+    public void unknownUsernames_mostlyRuledOut() {
+        UsernameFilter usernameFilter = new UsernameFilter(Mockito.mock(UserRepository.class), USERNAMES, 0.01);
+        for (int i = 0; i < USERNAMES; i++) {
+            usernameFilter.add("user" + i);
+        }
+
+        int falsePositives = 0;
+        for (int i = 0; i < USERNAMES; i++) {
+            if (usernameFilter.mightContain("other" + i)) {
+                falsePositives++;
+            }
+        }
+
+        // 1% expected, leave some room for the randomness of the hashes
+        assertTrue(falsePositives < USERNAMES * 0.03, "false positives: " + falsePositives);
+    }
+
+    @Test
+    public void rebuild_addsStoredUsernames() {
+        UserRepository userRepository = Mockito.mock(UserRepository.class);
+        Mockito.when(userRepository.streamAllUsernames()).thenReturn(Stream.of("stored"));
+        UsernameFilter usernameFilter = new UsernameFilter(userRepository, 100, 0.01);
+
+        assertFalse(usernameFilter.mightContain("stored"));
+        usernameFilter.rebuild();
+
+        assertTrue(usernameFilter.mightContain("stored"));
+    }
+}